@@ -0,0 +1,299 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+import capitalism.controller.SimulationContext;
+import capitalism.controller.command.OnePeriod;
+import capitalism.model.Project;
+import capitalism.reporting.Reporter;
+import capitalism.utils.DBHandler;
+import capitalism.utils.Metrics;
+import capitalism.utils.XMLStuff;
+
+/**
+ * Runs the simulation without a display, for a given number of periods, and writes the summary {@link TimeSeries} of each project
+ * to a csv file. Nothing on this path creates the JavaFX Application or the {@link capitalism.reporting.LogWindow}; messages go to
+ * the log files and alerts are logged as warnings.
+ * <p>
+ * Usage: {@code BatchRunner (--csv <directory> | --xml <file>) [--periods <n>] [--projects <id,id,...|all>] [--out <directory>] [--kernel] [--threads <n>] [--store <directory> [--cacheSize <kB>]] [--record all|superstates|periods|<k>] [--verbosity <n>|<phase>=<n>,...] [--metrics <file>]}
+ * <ul>
+ * <li>--csv loads the csv files and CreateRawTables.sql in the given directory. Without it, the standard user data is loaded</li>
+ * <li>--xml imports a project saved by the editor or by the simulation, as XML or as a binary snapshot; unless --projects is given, only this project is run</li>
+ * <li>--periods is the number of periods to run (default 1)</li>
+ * <li>--projects says which projects to run (default 1)</li>
+ * <li>--out is the directory for the results (default the working directory). Project n is written to {@code project-n.csv}</li>
+ * <li>--kernel runs each project in memory, in its own {@link SimulationContext}, instead of with the command classes. No timeStamps are created and
+ * the projects run in parallel, on --threads threads (default, one per processor)</li>
+ * <li>--store keeps the database in a file in the given directory instead of in memory, so that long runs of large models do not exhaust
+ * the heap. --cacheSize is the size of its page cache (default 65536 kB)</li>
+ * <li>--record says which steps the command classes record as timeStamps: all of them, the first of each superState, the first of each period,
+ * or the first of every k'th period (default, the recording policy of each project). Steps that are not recorded run in memory</li>
+ * <li>--verbosity is the deepest level of report to write, from 0 (a summary of each period) to 3 (everything), for the whole run or,
+ * as {@code Trade=3,Produce=2}, for single phases (default 3, or the system property capsim.verbosity)</li>
+ * <li>--metrics writes the {@link Metrics} of the run to the given csv file: the time, queries, rows written, copies and allocation of each
+ * command and step, and the number of times each query was executed</li>
+ * </ul>
+ */
+public class BatchRunner {
+	private static final Logger logger = LogManager.getLogger("BatchRunner");
+
+	private String csvDirectory = null;
+	private File xmlFile = null;
+	private int periods = 1;
+	private String projectList = null;
+	private File outputDirectory = new File(".");
+	private boolean useKernel = false;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private String storeDirectory = null;
+	private int cacheSize = 65536;
+	private Project.RECORDING recordingPolicy = null;
+	private int recordingInterval = 1;
+	private File metricsFile = null;
+
+	public static void main(String[] args) {
+		Reporter.setStartTime();
+		BatchRunner runner = new BatchRunner();
+		if (!runner.parse(args)) {
+			System.err.println(
+					"Usage: BatchRunner (--csv <directory> | --xml <file>) [--periods <n>] [--projects <id,id,...|all>] [--out <directory>] [--kernel] [--threads <n>] [--store <directory> [--cacheSize <kB>]] [--record all|superstates|periods|<k>] [--verbosity <n>|<phase>=<n>,...] [--metrics <file>]");
+			System.exit(2);
+		}
+		boolean succeeded = runner.run();
+		logger.info("Batch run finished after {} milliseconds", Reporter.timeSinceStart());
+		System.exit(succeeded ? 0 : 1);
+	}
+
+	private boolean parse(String[] args) {
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--csv":
+					csvDirectory = args[++i];
+					break;
+				case "--xml":
+					xmlFile = new File(args[++i]);
+					break;
+				case "--periods":
+					periods = Integer.parseInt(args[++i]);
+					break;
+				case "--projects":
+					projectList = args[++i];
+					break;
+				case "--out":
+					outputDirectory = new File(args[++i]);
+					break;
+				case "--kernel":
+					useKernel = true;
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--store":
+					storeDirectory = args[++i];
+					break;
+				case "--cacheSize":
+					cacheSize = Integer.parseInt(args[++i]);
+					break;
+				case "--record":
+					String record = args[++i];
+					if (record.matches("\\d+")) {
+						recordingPolicy = Project.RECORDING.INTERVAL;
+						recordingInterval = Integer.parseInt(record);
+					} else {
+						recordingPolicy = Project.RECORDING.valueOf(record.toUpperCase());
+					}
+					break;
+				case "--verbosity":
+					Reporter.setVerbosity(args[++i]);
+					break;
+				case "--metrics":
+					metricsFile = new File(args[++i]);
+					break;
+				default:
+					System.err.println("Unknown option " + args[i]);
+					return false;
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			System.err.println("Missing or invalid option value");
+			return false;
+		}
+		if (storeDirectory != null)
+			DBHandler.useFileStorage(storeDirectory, cacheSize);
+		return periods >= 0 && threads > 0 && cacheSize > 0;
+	}
+
+	/**
+	 * Load the data, then run each selected project and write its time series and, if asked, the metrics of the run
+	 *
+	 * @return true if every project ran and its results were written, false otherwise
+	 */
+	public boolean run() {
+		if (!loadData(csvDirectory))
+			return false;
+		List<Integer> projectIDs = new ArrayList<Integer>();
+		if (xmlFile != null) {
+			int importedProjectID = XMLStuff.importFromXML(xmlFile);
+			if (importedProjectID < 0)
+				return false;
+			if (projectList == null)
+				projectIDs.add(importedProjectID);
+		}
+		if (projectList != null) {
+			if (!selectProjects(projectIDs))
+				return false;
+		} else if (projectIDs.isEmpty()) {
+			projectIDs.add(1);
+		}
+		if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			logger.error("Could not create the output directory {}", outputDirectory.getPath());
+			return false;
+		}
+		logger.info("Running {} periods of projects {} after {} milliseconds", periods, projectIDs, Reporter.timeSinceStart());
+		boolean succeeded = useKernel ? runKernel(projectIDs) : runCommands(projectIDs);
+		if (metricsFile != null)
+			succeeded &= writeMetrics();
+		return succeeded;
+	}
+
+	/**
+	 * Load the database and initialise the simulation, without a display
+	 *
+	 * @param csvDirectory
+	 *            the directory containing the csv files and CreateRawTables.sql, or null for the standard user data
+	 * @return true if the data was loaded and validated, false otherwise
+	 */
+	static boolean loadData(String csvDirectory) {
+		if (csvDirectory != null) {
+			if (!DBHandler.loadCSVDatabase(csvDirectory))
+				return false;
+		} else if (!DBHandler.initialiseDataBaseAndStart()) {
+			logger.error("Could not load the standard user data");
+			return false;
+		}
+		if (!Simulation.startup()) {
+			logger.error("The data did not validate");
+			return false;
+		}
+		return true;
+	}
+
+	private boolean selectProjects(List<Integer> projectIDs) {
+		if (projectList.equals("all")) {
+			for (Project p : Project.all())
+				projectIDs.add(p.getProjectID());
+			return true;
+		}
+		try {
+			for (String id : projectList.split(","))
+				projectIDs.add(Integer.parseInt(id.trim()));
+		} catch (NumberFormatException e) {
+			logger.error("Could not understand the list of projects {}", projectList);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Run each project in turn with the command classes, exactly as the interactive simulation would. Every recorded step creates a timeStamp
+	 *
+	 * @param projectIDs
+	 *            the projects to run
+	 * @return true if all went well
+	 */
+	private boolean runCommands(List<Integer> projectIDs) {
+		boolean succeeded = true;
+		OnePeriod onePeriod = new OnePeriod();
+		for (int projectID : projectIDs) {
+			if (!Simulation.selectProject(projectID)) {
+				logger.error("There is no project {}", projectID);
+				succeeded = false;
+				continue;
+			}
+			if (recordingPolicy != null) {
+				Simulation.getProjectCurrent().setRecordingPolicy(recordingPolicy);
+				Simulation.getProjectCurrent().setRecordingInterval(recordingInterval);
+			}
+			TimeSeries series = new TimeSeries(projectID);
+			series.recordFromDatabase(0, Simulation.timeStampIDCurrent());
+			for (int step = 1; step <= periods; step++) {
+				onePeriod.execute();
+				series.recordFromDatabase(step, Simulation.timeStampIDCurrent());
+			}
+			succeeded &= write(series);
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Run each project in its own {@link SimulationContext}, in parallel. The database is only read, and only while the contexts are loaded
+	 *
+	 * @param projectIDs
+	 *            the projects to run
+	 * @return true if all went well
+	 */
+	private boolean runKernel(List<Integer> projectIDs) {
+		// each series is only touched by the thread that runs its project
+		Map<Integer, TimeSeries> series = new ConcurrentHashMap<Integer, TimeSeries>();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<SimulationContext> contexts = SimulationContext.runAll(projectIDs, periods, false, pool, (context, period) -> series
+				.computeIfAbsent(context.getProjectID(), TimeSeries::new).recordFromState(period, context.getState()));
+		pool.shutdown();
+		boolean succeeded = contexts.size() == projectIDs.size();
+		for (SimulationContext context : contexts)
+			succeeded &= write(series.get(context.getProjectID()));
+		return succeeded;
+	}
+
+	private boolean writeMetrics() {
+		try {
+			Metrics.write(metricsFile);
+			logger.info("Wrote the metrics of the run to {}", metricsFile.getPath());
+			return true;
+		} catch (IOException e) {
+			logger.error("Could not write the metrics of the run because {}", e.getMessage());
+			return false;
+		}
+	}
+
+	private boolean write(TimeSeries series) {
+		File file = new File(outputDirectory, "project-" + series.getProjectID() + ".csv");
+		try {
+			series.write(file);
+			logger.info("Wrote the results of project {} to {}", series.getProjectID(), file.getPath());
+			return true;
+		} catch (IOException e) {
+			logger.error("Could not write the results of project {} because {}", series.getProjectID(), e.getMessage());
+			return false;
+		}
+	}
+}
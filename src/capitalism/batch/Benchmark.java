@@ -0,0 +1,368 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+import capitalism.controller.SimulationContext;
+import capitalism.controller.SimulationState;
+import capitalism.model.Project;
+import capitalism.reporting.Reporter;
+import capitalism.view.custom.ActionStates;
+
+/**
+ * Times the steps of the simulation: {@link Simulation#advanceOneStep(String, String)}, each command of a period and a whole period,
+ * both through the command classes and the database ('commands') and through the in-memory {@link SimulationState} ('kernel').
+ * <p>
+ * Each project is first run for a number of warmup periods, which are not measured, and then for a number of measured periods.
+ * For every step the benchmark reports the number of samples, the mean, median and 99th percentile latency, the throughput and,
+ * where the JVM can measure it, the number of bytes allocated per step and the allocation rate.
+ * <p>
+ * On the command path, advanceOneStep is timed on its own, once per measured period, and therefore adds one timeStamp per period to the
+ * project; the commands are timed exactly as {@link capitalism.controller.command.OnePeriod} runs them.
+ * <p>
+ * Usage: {@code Benchmark [--csv <directory>] [--projects <id,id,...|all>] [--warmup <n>] [--periods <n>] [--mode commands|kernel|both] [--out <file>]}
+ */
+public class Benchmark {
+	private static final Logger logger = LogManager.getLogger("Benchmark");
+
+	private static final ActionStates[] superStates = { ActionStates.M_C_Exchange, ActionStates.C_P_Produce, ActionStates.C_M_Distribute };
+
+	/**
+	 * The samples of one step of one model
+	 */
+	static class Measurement {
+		final String model;
+		final String path;
+		final String step;
+		private long[] nanos = new long[16];
+		private int samples = 0;
+		private long allocated = 0;
+
+		Measurement(String model, String path, String step) {
+			this.model = model;
+			this.path = path;
+			this.step = step;
+		}
+
+		void add(long elapsed, long bytes) {
+			if (samples == nanos.length)
+				nanos = Arrays.copyOf(nanos, 2 * samples);
+			nanos[samples++] = elapsed;
+			allocated += bytes;
+		}
+
+		int samples() {
+			return samples;
+		}
+
+		double meanMicros() {
+			long total = 0;
+			for (int i = 0; i < samples; i++)
+				total += nanos[i];
+			return samples == 0 ? 0 : total / 1000.0 / samples;
+		}
+
+		double percentileMicros(double percentile) {
+			if (samples == 0)
+				return 0;
+			long[] sorted = Arrays.copyOf(nanos, samples);
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100.0 * samples) - 1;
+			return sorted[Math.max(0, index)] / 1000.0;
+		}
+
+		double throughput() {
+			double mean = meanMicros();
+			return mean == 0 ? 0 : 1000000.0 / mean;
+		}
+
+		double bytesPerStep() {
+			return samples == 0 || allocated < 0 ? Double.NaN : (double) allocated / samples;
+		}
+
+		double megabytesPerSecond() {
+			return bytesPerStep() * throughput() / (1024.0 * 1024.0);
+		}
+	}
+
+	private final int warmup;
+	private final int periods;
+	private final Map<String, Measurement> measurements = new LinkedHashMap<String, Measurement>();
+	private final com.sun.management.ThreadMXBean allocationBean;
+
+	/**
+	 * @param warmup
+	 *            the number of periods to run, unmeasured, before measuring
+	 * @param periods
+	 *            the number of periods to measure
+	 */
+	public Benchmark(int warmup, int periods) {
+		this.warmup = warmup;
+		this.periods = periods;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			allocationBean = (com.sun.management.ThreadMXBean) bean;
+			allocationBean.setThreadAllocatedMemoryEnabled(true);
+		} else {
+			allocationBean = null;
+			logger.info("This JVM cannot measure allocation; allocation will not be reported");
+		}
+	}
+
+	public static void main(String[] args) {
+		Reporter.setStartTime();
+		String csvDirectory = null;
+		String projectList = null;
+		String mode = "both";
+		String outputFile = null;
+		int warmup = 5;
+		int periods = 20;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--csv":
+					csvDirectory = args[++i];
+					break;
+				case "--projects":
+					projectList = args[++i];
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(args[++i]);
+					break;
+				case "--periods":
+					periods = Integer.parseInt(args[++i]);
+					break;
+				case "--mode":
+					mode = args[++i];
+					break;
+				case "--out":
+					outputFile = args[++i];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+			if (!(mode.equals("commands") || mode.equals("kernel") || mode.equals("both")))
+				throw new IllegalArgumentException("Unknown mode " + mode);
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: Benchmark [--csv <directory>] [--projects <id,id,...|all>] [--warmup <n>] [--periods <n>]"
+					+ " [--mode commands|kernel|both] [--out <file>]");
+			System.exit(2);
+		}
+		if (!BatchRunner.loadData(csvDirectory))
+			System.exit(1);
+		List<Integer> projectIDs = new ArrayList<Integer>();
+		if (projectList == null || projectList.equals("all")) {
+			for (Project p : Project.all())
+				projectIDs.add(p.getProjectID());
+		} else {
+			for (String id : projectList.split(","))
+				projectIDs.add(Integer.parseInt(id.trim()));
+		}
+		Benchmark benchmark = new Benchmark(warmup, periods);
+		for (int projectID : projectIDs) {
+			// the kernel goes first, because the command path moves the project on
+			if (!mode.equals("commands"))
+				benchmark.measureKernel(projectID);
+			if (!mode.equals("kernel"))
+				benchmark.measureCommands(projectID);
+		}
+		benchmark.report();
+		if (outputFile != null) {
+			try {
+				benchmark.write(new File(outputFile));
+			} catch (IOException e) {
+				logger.error("Could not write the results because {}", e.getMessage());
+				System.exit(1);
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Measure the steps of the given project through the command classes. Every command creates a timeStamp, as in the interactive simulation
+	 *
+	 * @param projectID
+	 *            the project to measure
+	 * @return false if there is no such project
+	 */
+	public boolean measureCommands(int projectID) {
+		if (!Simulation.selectProject(projectID)) {
+			logger.error("There is no project {}", projectID);
+			return false;
+		}
+		String model = "project " + projectID;
+		for (int i = 0; i < warmup; i++)
+			commandPeriod(null);
+		for (int i = 0; i < periods; i++) {
+			long bytes = allocated();
+			long start = System.nanoTime();
+			Simulation.advanceOneStep("Benchmark", ActionStates.M_C_Exchange.text());
+			record(model, "commands", "advanceOneStep", System.nanoTime() - start, allocated() - bytes);
+			commandPeriod(model);
+		}
+		return true;
+	}
+
+	/**
+	 * Run one period as {@link capitalism.controller.command.OnePeriod} does, timing each command if a model is given
+	 */
+	private void commandPeriod(String model) {
+		long periodBytes = allocated();
+		long periodStart = System.nanoTime();
+		for (ActionStates superState : superStates) {
+			int startTimeStamp = Simulation.timeStampIDCurrent();
+			for (ActionStates a : superState.getChildren()) {
+				long bytes = allocated();
+				long start = System.nanoTime();
+				a.execute();
+				if (model != null)
+					record(model, "commands", a.commandName(), System.nanoTime() - start, allocated() - bytes);
+			}
+			Simulation.setTimeStampComparatorCursor(startTimeStamp);
+			Simulation.setComparators(Simulation.projectIDcurrent(), Simulation.timeStampIDCurrent());
+		}
+		if (model != null)
+			record(model, "commands", "OnePeriod", System.nanoTime() - periodStart, allocated() - periodBytes);
+	}
+
+	/**
+	 * Measure the phases of the given project in a {@link SimulationState}. The database is read once, before measuring
+	 *
+	 * @param projectID
+	 *            the project to measure
+	 * @return false if the project could not be loaded
+	 */
+	public boolean measureKernel(int projectID) {
+		SimulationContext context = new SimulationContext(projectID);
+		try {
+			if (!context.load())
+				return false;
+		} finally {
+			context.close();
+		}
+		return measureKernel("project " + projectID, context.getState());
+	}
+
+	/**
+	 * Measure the phases of a state, which is run on from where it stands
+	 *
+	 * @param model
+	 *            the name under which to report the measurements
+	 * @param state
+	 *            the state to run
+	 * @return true
+	 */
+	public boolean measureKernel(String model, SimulationState state) {
+		for (int i = 0; i < warmup; i++)
+			state.onePeriod();
+		Runnable[] phases = { state::demand, state::constrain, state::trade, state::industriesProduce, state::prices, state::classesReproduce,
+				state::revenue, state::accumulate };
+		String[] names = { "Demand", "Constrain", "Trade", "IndustriesProduce", "Prices", "ClassesReproduce", "Revenue", "Accumulate" };
+		for (int i = 0; i < periods; i++) {
+			long periodBytes = allocated();
+			long periodStart = System.nanoTime();
+			for (int p = 0; p < phases.length; p++) {
+				long bytes = allocated();
+				long start = System.nanoTime();
+				phases[p].run();
+				record(model, "kernel", names[p], System.nanoTime() - start, allocated() - bytes);
+			}
+			record(model, "kernel", "OnePeriod", System.nanoTime() - periodStart, allocated() - periodBytes);
+		}
+		return true;
+	}
+
+	private void record(String model, String path, String step, long nanos, long bytes) {
+		String key = model + "/" + path + "/" + step;
+		Measurement measurement = measurements.get(key);
+		if (measurement == null) {
+			measurement = new Measurement(model, path, step);
+			measurements.put(key, measurement);
+		}
+		measurement.add(nanos, allocationBean == null ? -1 : bytes);
+	}
+
+	/**
+	 * @return the bytes allocated so far by this thread, or 0 if this cannot be measured
+	 */
+	private long allocated() {
+		return allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * @return the measurements made so far, in the order in which they were first made
+	 */
+	public List<Measurement> getMeasurements() {
+		return new ArrayList<Measurement>(measurements.values());
+	}
+
+	/**
+	 * Log a table of the measurements
+	 */
+	public void report() {
+		logger.info(String.format("%-20s %-9s %-18s %8s %12s %12s %12s %12s %12s %10s", "Model", "Path", "Step", "Samples", "Mean us", "p50 us",
+				"p99 us", "Ops/s", "Bytes/op", "MB/s"));
+		for (Measurement m : measurements.values()) {
+			logger.info(String.format("%-20s %-9s %-18s %8d %12.1f %12.1f %12.1f %12.1f %12.0f %10.2f", m.model, m.path, m.step, m.samples(),
+					m.meanMicros(), m.percentileMicros(50), m.percentileMicros(99), m.throughput(), m.bytesPerStep(), m.megabytesPerSecond()));
+		}
+	}
+
+	/**
+	 * Write the measurements as a csv file, so that runs can be compared
+	 *
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write("Model,Path,Step,Samples,Mean us,p50 us,p99 us,Ops/s,Bytes/op,MB/s");
+			writer.newLine();
+			for (Measurement m : measurements.values()) {
+				writer.write(TimeSeries.quoted(m.model) + "," + m.path + "," + m.step + "," + m.samples() + "," + m.meanMicros() + ","
+						+ m.percentileMicros(50) + "," + m.percentileMicros(99) + "," + m.throughput() + "," + m.bytesPerStep() + ","
+						+ m.megabytesPerSecond());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.utils.DBHandler;
+
+/**
+ * Generates a synthetic economy of any size, as a set of csv files and the CreateRawTables.sql that loads them, so that the
+ * simulation, the persistence layer and the tables can be tried out on models much larger than the standard user data.
+ * <p>
+ * The economy is a single project (project 1) in simple reproduction. There are a given number of industrially produced commodities, the first few
+ * of which are consumer goods ('Consumption', 'Consumption 2', ...) and the rest productive inputs ('Input 1', 'Input 2', ...), together with
+ * Labour Power and Money. Each industry produces one commodity, and each commodity is produced by at least one industry. Every industry has a
+ * productive stock of every productive input, as validation requires, but only a given proportion of them (the density of the input-output
+ * table) are actually used. The classes are Capitalists, Workers and, if more are asked for, non-working classes that share the Capitalists' revenue.
+ * <p>
+ * The magnitudes are chosen so that the economy can reproduce itself: every industry that uses productive inputs spends 60% of the value of its
+ * output on them, every industry employs labour power to the value of 40% of its output, the outputs are solved so that the supply of each
+ * commodity equals the demand for it, and the consumer goods are consumed half by the Workers and half by the other classes. All unit values and prices are 1, except that of Labour Power, which is 0.5.
+ * <p>
+ * Usage: {@code ModelGenerator --out <directory> [--industries <n>] [--commodities <n>] [--consumerGoods <n>] [--classes <n>] [--density <d>] [--seed <seed>]}
+ * <p>
+ * The number of stocks is about industries * (commodities - consumerGoods + 3) + classes * (consumerGoods + 2), so that for example
+ * 1000 industries producing 1000 commodities give a million stocks.
+ */
+public class ModelGenerator {
+	private static final Logger logger = LogManager.getLogger("ModelGenerator");
+
+	private static final double inputShare = 0.6;
+	private static final double labourShare = 0.4;
+	private static final double labourPowerValue = 0.5;
+
+	private final int nIndustries;
+	private final int nCommodities;
+	private final int nConsumerGoods;
+	private final int nClasses;
+	private final double density;
+	private final Random random;
+
+	private String[] commodityNames;
+	private int[] industryCommodity;
+	private int[] producers;
+	private double[][] inputs;// inputs[j][i] is the quantity of productive input i used by industry j per unit of output
+	private double[] finalDemand;// the consumption of each consumer good
+	private double[] output;
+
+	/**
+	 * @param industries
+	 *            the number of industries, at least as many as there are commodities
+	 * @param commodities
+	 *            the number of industrially-produced commodities, not counting Labour Power and Money
+	 * @param consumerGoods
+	 *            how many of these are consumer goods; at least one
+	 * @param classes
+	 *            the number of social classes; at least two
+	 * @param density
+	 *            the proportion of the possible inputs to each industry that it actually uses, between 0 and 1
+	 * @param seed
+	 *            the seed of the random number generator, so that a model can be generated again
+	 */
+	public ModelGenerator(int industries, int commodities, int consumerGoods, int classes, double density, long seed) {
+		if (commodities < 1 || consumerGoods < 1 || consumerGoods > commodities || industries < commodities || classes < 2 || density < 0
+				|| density > 1)
+			throw new IllegalArgumentException(String.format(
+					"Cannot generate %d industries, %d commodities of which %d are consumer goods, %d classes and density %f", industries,
+					commodities, consumerGoods, classes, density));
+		this.nIndustries = industries;
+		this.nCommodities = commodities;
+		this.nConsumerGoods = consumerGoods;
+		this.nClasses = classes;
+		this.density = density;
+		this.random = new Random(seed);
+	}
+
+	public static void main(String[] args) {
+		int industries = 10;
+		int commodities = -1;
+		int consumerGoods = 1;
+		int classes = 2;
+		double density = 0.5;
+		long seed = 1;
+		String outputDirectory = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--industries":
+					industries = Integer.parseInt(args[++i]);
+					break;
+				case "--commodities":
+					commodities = Integer.parseInt(args[++i]);
+					break;
+				case "--consumerGoods":
+					consumerGoods = Integer.parseInt(args[++i]);
+					break;
+				case "--classes":
+					classes = Integer.parseInt(args[++i]);
+					break;
+				case "--density":
+					density = Double.parseDouble(args[++i]);
+					break;
+				case "--seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "--out":
+					outputDirectory = args[++i];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+			if (outputDirectory == null)
+				throw new IllegalArgumentException("No output directory was given");
+			ModelGenerator generator = new ModelGenerator(industries, commodities < 0 ? industries : commodities, consumerGoods, classes, density, seed);
+			generator.write(new File(outputDirectory));
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ModelGenerator --out <directory> [--industries <n>] [--commodities <n>] [--consumerGoods <n>]"
+					+ " [--classes <n>] [--density <d>] [--seed <seed>]");
+			System.exit(2);
+		} catch (IOException e) {
+			logger.error("Could not write the model because {}", e.getMessage());
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Generate the model and write it, with the CreateRawTables.sql that loads it, to the given directory.
+	 * The directory can then be loaded with {@link DBHandler#loadCSVDatabase(String)}
+	 *
+	 * @param directory
+	 *            the directory to write to. It is created if necessary
+	 * @throws IOException
+	 *             if the files cannot be written
+	 */
+	public void write(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create the directory " + directory.getPath());
+		generate();
+		writeProjects(new File(directory, "projects.csv"));
+		writeTimeStamps(new File(directory, "timeStamps.csv"));
+		writeCommodities(new File(directory, "commodities.csv"));
+		writeIndustries(new File(directory, "industries.csv"));
+		writeSocialClasses(new File(directory, "socialClasses.csv"));
+		writeStocks(new File(directory, "stocks.csv"));
+		DBHandler.copyFileToUserDirectory(directory.getCanonicalPath().replace('\\', '/'), "/", "CreateRawTables.sql");
+		logger.info("Wrote a model with {} industries, {} commodities and {} classes to {}", nIndustries, nCommodities, nClasses, directory.getPath());
+	}
+
+	/**
+	 * Choose the structure of the economy and solve for the outputs
+	 */
+	private void generate() {
+		int nInputs = nCommodities - nConsumerGoods;
+		commodityNames = new String[nCommodities];
+		for (int c = 0; c < nConsumerGoods; c++)
+			commodityNames[c] = c == 0 ? "Consumption" : "Consumption " + (c + 1);
+		for (int c = nConsumerGoods; c < nCommodities; c++)
+			commodityNames[c] = "Input " + (c - nConsumerGoods + 1);
+
+		// every commodity has at least one producer; the remaining industries produce commodities chosen at random
+		industryCommodity = new int[nIndustries];
+		producers = new int[nCommodities];
+		for (int j = 0; j < nIndustries; j++) {
+			industryCommodity[j] = j < nCommodities ? j : random.nextInt(nCommodities);
+			producers[industryCommodity[j]]++;
+		}
+
+		// choose which inputs each industry uses and in what proportion
+		inputs = new double[nIndustries][nInputs];
+		for (int j = 0; j < nIndustries; j++) {
+			double total = 0;
+			for (int i = 0; i < nInputs; i++) {
+				if (random.nextDouble() < density) {
+					inputs[j][i] = 0.1 + random.nextDouble();
+					total += inputs[j][i];
+				}
+			}
+			if (total > 0) {
+				for (int i = 0; i < nInputs; i++)
+					inputs[j][i] *= inputShare / total;
+			}
+		}
+		// make sure every input is used by a consumer good industry, so that it is demanded and its producers have some output
+		for (int i = 0; i < nInputs; i++) {
+			boolean used = false;
+			for (int j = 0; j < nIndustries && !used; j++)
+				used = inputs[j][i] > 0 && industryCommodity[j] < nConsumerGoods;
+			if (!used) {
+				int j = random.nextInt(nConsumerGoods);
+				double total = 0;
+				inputs[j][i] = 0.1 + random.nextDouble();
+				for (int k = 0; k < nInputs; k++)
+					total += inputs[j][k];
+				for (int k = 0; k < nInputs; k++)
+					inputs[j][k] *= inputShare / total;
+			}
+		}
+
+		finalDemand = new double[nConsumerGoods];
+		for (int c = 0; c < nConsumerGoods; c++)
+			finalDemand[c] = 1000.0 * nIndustries / nConsumerGoods * (0.5 + random.nextDouble());
+
+		// solve output = inputs * output + final demand by iteration; this converges because each industry spends less than its output on inputs
+		output = new double[nIndustries];
+		double[] demand = new double[nCommodities];
+		for (int iteration = 0; iteration < 1000; iteration++) {
+			for (int c = 0; c < nCommodities; c++)
+				demand[c] = c < nConsumerGoods ? finalDemand[c] : 0;
+			for (int j = 0; j < nIndustries; j++) {
+				for (int i = 0; i < nInputs; i++)
+					demand[nConsumerGoods + i] += inputs[j][i] * output[j];
+			}
+			double change = 0;
+			for (int j = 0; j < nIndustries; j++) {
+				double newOutput = demand[industryCommodity[j]] / producers[industryCommodity[j]];
+				change = Math.max(change, Math.abs(newOutput - output[j]));
+				output[j] = newOutput;
+			}
+			if (change < 1e-6)
+				break;
+		}
+	}
+
+	private void writeProjects(File file) throws IOException {
+		BufferedWriter writer = open(file, "ProjectID,description");
+		try {
+			line(writer, 1, "Synthetic " + nIndustries + " industries");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeTimeStamps(File file) throws IOException {
+		BufferedWriter writer = open(file,
+				"timeStampID,ProjectFK,period,superState,COMPARATORTIMESTAMPID,Description,MELT,PopulationGrowthRate,InvestmentRatio,LabourSupplyResponse,priceResponse,meltResponse,CurrencySymbol,QuantitySymbol");
+		try {
+			line(writer, 1, 1, 1, "", 1, "Start", 1, 0, 0, "FIXED", "VALUES", "PRICE_DRIVEN", "$", "#");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeCommodities(File file) throws IOException {
+		BufferedWriter writer = open(file, "Project,TimeStamp,name,originType,UnitValue,UnitPrice,TurnoverTime,functionType,DisplayOrder,ImageName,Tooltip");
+		try {
+			int nInputs = nCommodities - nConsumerGoods;
+			for (int c = nConsumerGoods; c < nCommodities; c++)
+				line(writer, 1, 1, commodityNames[c], "INDUSTRIALLY_PRODUCED", 1, 1, 1, "PRODUCTIVE_INPUT", c - nConsumerGoods + 1, "", "");
+			line(writer, 1, 1, "Labour Power", "SOCIALLY_PRODUCED", labourPowerValue, labourPowerValue, 1, "PRODUCTIVE_INPUT", nInputs + 1,
+					"labourPower.png", "Waged labour");
+			for (int c = 0; c < nConsumerGoods; c++)
+				line(writer, 1, 1, commodityNames[c], "INDUSTRIALLY_PRODUCED", 1, 1, 1, "CONSUMER_GOOD", nInputs + 2 + c, "necessities.png", "");
+			line(writer, 1, 1, "Money", "MONEY", 1, 1, 0, "MONEY", nCommodities + 2, "", "Money");
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeIndustries(File file) throws IOException {
+		BufferedWriter writer = open(file, "project,timeStamp,industryName,CommodityName,output,GrowthRate");
+		try {
+			for (int j = 0; j < nIndustries; j++)
+				line(writer, 1, 1, industryName(j), commodityNames[industryCommodity[j]], round(output[j]), 0);
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeSocialClasses(File file) throws IOException {
+		BufferedWriter writer = open(file, "Project,timeStamp,SocialClassName,Size,ParticipationRatio,Revenue");
+		try {
+			double labour = totalLabour();
+			line(writer, 1, 1, "Capitalists", round(revenueShare()), 0, round(revenueShare()));
+			line(writer, 1, 1, "Workers", round(labour), 1, 0);
+			for (int k = 2; k < nClasses; k++)
+				line(writer, 1, 1, className(k), round(revenueShare()), 0, round(revenueShare()));
+		} finally {
+			writer.close();
+		}
+	}
+
+	private void writeStocks(File file) throws IOException {
+		BufferedWriter writer = open(file, "PROJECT,TIMESTAMP,OWNER,OWNERTYPE,COMMODITY,STOCKTYPE,QUANTITY,PRODUCTIONQUANTITY,CONSUMPTIONQUANTITY");
+		try {
+			for (int j = 0; j < nIndustries; j++) {
+				String industry = industryName(j);
+				for (int i = 0; i < nCommodities - nConsumerGoods; i++)
+					line(writer, 1, 1, industry, "INDUSTRY", commodityNames[nConsumerGoods + i], "Productive", 0, round(inputs[j][i] * output[j]), 0);
+				line(writer, 1, 1, industry, "INDUSTRY", "Labour Power", "Productive", 0, round(labourShare * output[j] / labourPowerValue), 0);
+				line(writer, 1, 1, industry, "INDUSTRY", commodityNames[industryCommodity[j]], "Sales", round(output[j]), 0, 0);
+				line(writer, 1, 1, industry, "INDUSTRY", "Money", "Money", round(output[j]), 0, 0);
+			}
+			double labour = totalLabour();
+			for (int k = 0; k < nClasses; k++) {
+				boolean workers = k == 1;
+				String socialClass = k == 0 ? "Capitalists" : workers ? "Workers" : className(k);
+				double share = workers ? 0.5 : 0.5 / (nClasses - 1);
+				for (int c = 0; c < nConsumerGoods; c++)
+					line(writer, 1, 1, socialClass, "CLASS", commodityNames[c], "Consumption", 0, 0, round(share * finalDemand[c]));
+				line(writer, 1, 1, socialClass, "CLASS", "Money", "Money", round(workers ? labour * labourPowerValue : revenueShare()), 0, 0);
+				line(writer, 1, 1, socialClass, "CLASS", "Labour Power", "Sales", round(workers ? labour : 0), 0, 0);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @return the quantity of labour power that all the industries together employ
+	 */
+	private double totalLabour() {
+		double labour = 0;
+		for (int j = 0; j < nIndustries; j++)
+			labour += labourShare * output[j] / labourPowerValue;
+		return labour;
+	}
+
+	/**
+	 * @return the revenue, and the consumption, of each class other than the Workers
+	 */
+	private double revenueShare() {
+		double consumption = 0;
+		for (double d : finalDemand)
+			consumption += d;
+		return 0.5 * consumption / (nClasses - 1);
+	}
+
+	private static String industryName(int j) {
+		return "Industry " + (j + 1);
+	}
+
+	private static String className(int k) {
+		return "Class " + (k + 1);
+	}
+
+	private static double round(double d) {
+		return Math.round(d * 10000) / 10000.0;
+	}
+
+	private static BufferedWriter open(File file, String header) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		writer.write(header);
+		writer.newLine();
+		return writer;
+	}
+
+	private static void line(BufferedWriter writer, Object... fields) throws IOException {
+		for (int f = 0; f < fields.length; f++) {
+			if (f > 0)
+				writer.write(',');
+			writer.write(String.valueOf(fields[f]));
+		}
+		writer.newLine();
+	}
+}
@@ -0,0 +1,372 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Parameters;
+import capitalism.controller.SimulationContext;
+import capitalism.controller.SimulationState;
+import capitalism.reporting.Reporter;
+
+/**
+ * Runs one project many times, once for each point of a design over its parameters, and writes one row of results per run.
+ * <p>
+ * The project is loaded once into a {@link SimulationState}. Each run works on a copy of this base state, with the parameters of its point applied,
+ * so the data is neither re-read nor re-validated; the runs are independent and execute in parallel. Each row is written as soon as its run finishes,
+ * so rows appear in order of completion and carry the number of the run.
+ * <p>
+ * The design is a text file with one axis per line, in the form {@code name = levels}. Blank lines and lines starting with '#' are ignored.
+ * The names are
+ * <ul>
+ * <li>{@code meltResponse}, {@code priceResponse} and {@code labourSupplyResponse}, whose levels are the names of the constants in
+ * {@link Parameters} (for example {@code PRICE_DRIVEN, VALUE_DRIVEN})</li>
+ * <li>{@code coefficient:industry:commodity}, numeric: the production coefficient of the given commodity in the given industry</li>
+ * </ul>
+ * The investment ratio and the population growth rate of the project are not axes: the present dynamics do not use them, so every level
+ * would give the same run.
+ * Levels are either a list ({@code 0.1, 0.2, 0.4}) or, for numeric axes, a range. In a grid design, a range must say how many evenly spaced
+ * levels it contains ({@code 0.1..0.5/5}); in a random design, a range without a count ({@code 0.1..0.5}) is sampled uniformly.
+ * <p>
+ * Usage: {@code ParameterSweep --design <file> [--csv <directory>] [--project <id>] [--random <runs>] [--seed <seed>] [--periods <n>] [--threads <n>] [--out <file>]}
+ */
+public class ParameterSweep {
+	private static final Logger logger = LogManager.getLogger("ParameterSweep");
+
+	/**
+	 * One axis of the design
+	 */
+	static class Axis {
+		final String name;
+		final List<String> levels = new ArrayList<String>();
+		double minimum = Double.NaN;
+		double maximum = Double.NaN;
+
+		Axis(String name) {
+			this.name = name;
+		}
+
+		boolean isRange() {
+			return levels.isEmpty();
+		}
+
+		boolean isNumeric() {
+			return !(name.equals("meltResponse") || name.equals("priceResponse") || name.equals("labourSupplyResponse"));
+		}
+	}
+
+	private final SimulationState base;
+	private final List<Axis> axes;
+
+	/**
+	 * @param base
+	 *            the state from which every run starts. It is not modified
+	 * @param axes
+	 *            the axes of the design
+	 */
+	public ParameterSweep(SimulationState base, List<Axis> axes) {
+		this.base = base;
+		this.axes = axes;
+	}
+
+	public static void main(String[] args) {
+		Reporter.setStartTime();
+		String designFile = null;
+		String csvDirectory = null;
+		int projectID = 1;
+		int randomRuns = 0;
+		long seed = 1;
+		int periods = 1;
+		int threads = Runtime.getRuntime().availableProcessors();
+		String outputFile = "sweep.csv";
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--design":
+					designFile = args[++i];
+					break;
+				case "--csv":
+					csvDirectory = args[++i];
+					break;
+				case "--project":
+					projectID = Integer.parseInt(args[++i]);
+					break;
+				case "--random":
+					randomRuns = Integer.parseInt(args[++i]);
+					break;
+				case "--seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				case "--periods":
+					periods = Integer.parseInt(args[++i]);
+					break;
+				case "--threads":
+					threads = Integer.parseInt(args[++i]);
+					break;
+				case "--out":
+					outputFile = args[++i];
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+			if (designFile == null)
+				throw new IllegalArgumentException("No design was given");
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: ParameterSweep --design <file> [--csv <directory>] [--project <id>] [--random <runs>] [--seed <seed>]"
+					+ " [--periods <n>] [--threads <n>] [--out <file>]");
+			System.exit(2);
+		}
+		try {
+			List<Axis> axes = readDesign(new File(designFile));
+			if (!BatchRunner.loadData(csvDirectory))
+				System.exit(1);
+			SimulationContext context = new SimulationContext(projectID);
+			boolean loaded;
+			try {
+				loaded = context.load();
+			} finally {
+				context.close();
+			}
+			if (!loaded)
+				System.exit(1);
+			ParameterSweep sweep = new ParameterSweep(context.getState(), axes);
+			List<String[]> points = randomRuns > 0 ? sweep.random(randomRuns, seed) : sweep.grid();
+			sweep.run(points, periods, threads, new File(outputFile));
+		} catch (IOException | IllegalArgumentException e) {
+			logger.error("The sweep failed because {}", e.getMessage());
+			System.exit(1);
+		}
+		logger.info("Sweep finished after {} milliseconds", Reporter.timeSinceStart());
+		System.exit(0);
+	}
+
+	/**
+	 * Read a design file
+	 *
+	 * @param file
+	 *            the design file
+	 * @return the axes it defines
+	 * @throws IOException
+	 *             if the file cannot be read
+	 * @throws IllegalArgumentException
+	 *             if an axis is not understood
+	 */
+	public static List<Axis> readDesign(File file) throws IOException {
+		List<Axis> axes = new ArrayList<Axis>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				int equals = line.indexOf('=');
+				if (equals < 0)
+					throw new IllegalArgumentException("Expected 'name = levels' but found " + line);
+				axes.add(axis(line.substring(0, equals).trim(), line.substring(equals + 1).trim()));
+			}
+		} finally {
+			reader.close();
+		}
+		return axes;
+	}
+
+	private static Axis axis(String name, String specification) {
+		Axis axis = new Axis(name);
+		if (name.equals("investmentRatio") || name.equals("populationGrowthRate"))
+			throw new IllegalArgumentException("The parameter " + name + " does not affect the simulation, so it cannot be swept");
+		if (!(name.equals("meltResponse") || name.equals("priceResponse") || name.equals("labourSupplyResponse")
+				|| (name.startsWith("coefficient:") && name.split(":").length == 3)))
+			throw new IllegalArgumentException("Unknown parameter " + name);
+		int dots = specification.indexOf("..");
+		if (dots < 0) {
+			for (String level : specification.split(","))
+				axis.levels.add(level.trim());
+			return axis;
+		}
+		if (!axis.isNumeric())
+			throw new IllegalArgumentException("The parameter " + name + " cannot take a range");
+		String upper = specification.substring(dots + 2);
+		int slash = upper.indexOf('/');
+		axis.minimum = Double.parseDouble(specification.substring(0, dots).trim());
+		axis.maximum = Double.parseDouble((slash < 0 ? upper : upper.substring(0, slash)).trim());
+		if (slash >= 0) {
+			int count = Integer.parseInt(upper.substring(slash + 1).trim());
+			for (int i = 0; i < count; i++) {
+				double level = count == 1 ? axis.minimum : axis.minimum + i * (axis.maximum - axis.minimum) / (count - 1);
+				axis.levels.add(Double.toString(level));
+			}
+		}
+		return axis;
+	}
+
+	/**
+	 * @return every combination of the levels of the axes
+	 * @throws IllegalArgumentException
+	 *             if an axis is a range without a count
+	 */
+	public List<String[]> grid() {
+		List<String[]> points = new ArrayList<String[]>();
+		points.add(new String[axes.size()]);
+		for (int a = 0; a < axes.size(); a++) {
+			Axis axis = axes.get(a);
+			if (axis.isRange())
+				throw new IllegalArgumentException("The range of " + axis.name + " needs a number of levels in a grid design");
+			List<String[]> extended = new ArrayList<String[]>();
+			for (String[] point : points) {
+				for (String level : axis.levels) {
+					String[] newPoint = point.clone();
+					newPoint[a] = level;
+					extended.add(newPoint);
+				}
+			}
+			points = extended;
+		}
+		return points;
+	}
+
+	/**
+	 * @param runs
+	 *            the number of points
+	 * @param seed
+	 *            the seed of the random number generator, so that a design can be repeated
+	 * @return the given number of points, each taking a random level (or a uniformly distributed value in a range) on every axis
+	 */
+	public List<String[]> random(int runs, long seed) {
+		Random random = new Random(seed);
+		List<String[]> points = new ArrayList<String[]>();
+		for (int r = 0; r < runs; r++) {
+			String[] point = new String[axes.size()];
+			for (int a = 0; a < axes.size(); a++) {
+				Axis axis = axes.get(a);
+				if (axis.isRange())
+					point[a] = Double.toString(axis.minimum + random.nextDouble() * (axis.maximum - axis.minimum));
+				else
+					point[a] = axis.levels.get(random.nextInt(axis.levels.size()));
+			}
+			points.add(point);
+		}
+		return points;
+	}
+
+	/**
+	 * Run every point for the given number of periods, in parallel, writing one row per run to the output file
+	 *
+	 * @param points
+	 *            the points of the design
+	 * @param periods
+	 *            the number of periods to run each point for
+	 * @param threads
+	 *            the number of threads to run the points on
+	 * @param outputFile
+	 *            the csv file that receives the results
+	 * @throws IOException
+	 *             if the output file cannot be written
+	 * @throws IllegalArgumentException
+	 *             if a point cannot be applied to the base state
+	 */
+	public void run(List<String[]> points, int periods, int threads, File outputFile) throws IOException {
+		// check every point before spending time on any of them
+		for (String[] point : points)
+			apply(point, base.copy());
+		logger.info("Running {} points of the design for {} periods", points.size(), periods);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			StringBuilder header = new StringBuilder("Run");
+			for (Axis axis : axes)
+				header.append(',').append(TimeSeries.quoted(axis.name));
+			header.append(',').append(TimeSeries.summaryHeader(base));
+			writer.write(header.toString());
+			writer.newLine();
+			List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+			for (int r = 0; r < points.size(); r++) {
+				int run = r;
+				String[] point = points.get(r);
+				tasks.add(pool.submit(() -> {
+					String row = runPoint(run, point, periods);
+					synchronized (writer) {
+						try {
+							writer.write(row);
+							writer.newLine();
+						} catch (IOException e) {
+							logger.error("Could not write the result of run {} because {}", run, e.getMessage());
+						}
+					}
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks)
+				task.join();
+		} finally {
+			pool.shutdown();
+			writer.close();
+		}
+	}
+
+	private String runPoint(int run, String[] point, int periods) {
+		SimulationState state = base.copy();
+		apply(point, state);
+		for (int i = 0; i < periods; i++)
+			state.onePeriod();
+		StringBuilder row = new StringBuilder();
+		row.append(run);
+		for (String level : point)
+			row.append(',').append(level);
+		row.append(',').append(TimeSeries.summary(state));
+		return row.toString();
+	}
+
+	private void apply(String[] point, SimulationState state) {
+		for (int a = 0; a < axes.size(); a++) {
+			Axis axis = axes.get(a);
+			String level = point[a];
+			switch (axis.name) {
+			case "meltResponse":
+				state.setMeltResponse(Parameters.MELT_RESPONSE.valueOf(level));
+				break;
+			case "priceResponse":
+				state.setPriceResponse(Parameters.PRICE_RESPONSE.valueOf(level));
+				break;
+			case "labourSupplyResponse":
+				state.setLabourSupplyResponse(Parameters.LABOUR_RESPONSE.valueOf(level));
+				break;
+			default:
+				String[] parts = axis.name.split(":");
+				if (!state.setProductionCoefficient(parts[1], parts[2], Double.parseDouble(level)))
+					throw new IllegalArgumentException("Industry " + parts[1] + " has no productive stock of " + parts[2]);
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.SimulationState;
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.TimeStamp;
+
+/**
+ * The summary time series of one run of one project: one row for each period, containing the melt, the total value and price,
+ * the profit rate, the unit value and price of each commodity and the output of each industry.
+ * Rows can be recorded either from the database or from a {@link SimulationState}; both give the same columns in the same order.
+ */
+public class TimeSeries {
+	private static final Logger logger = LogManager.getLogger("TimeSeries");
+
+	private final int projectID;
+	private String header = null;
+	private List<String> rows = new ArrayList<String>();
+
+	/**
+	 * @param projectID
+	 *            the project whose time series this is
+	 */
+	public TimeSeries(int projectID) {
+		this.projectID = projectID;
+	}
+
+	/**
+	 * Record a row from the entities of the given timeStamp of this project
+	 *
+	 * @param step
+	 *            the number of periods that have been run so far
+	 * @param timeStampID
+	 *            the timeStamp to record
+	 */
+	public void recordFromDatabase(int step, int timeStampID) {
+		TimeStamp timeStamp = TimeStamp.single(projectID, timeStampID);
+		if (timeStamp == null) {
+			logger.error("Project {} has no timeStamp {} to record", projectID, timeStampID);
+			return;
+		}
+		List<String> names = new ArrayList<String>();
+		List<Double> values = new ArrayList<Double>();
+		for (Commodity c : Commodity.all(projectID, timeStampID)) {
+			names.add(c.name() + " unit value");
+			values.add(c.getUnitValue());
+			names.add(c.name() + " unit price");
+			values.add(c.getUnitPrice());
+		}
+		for (Industry i : Industry.all(projectID, timeStampID)) {
+			names.add(i.name() + " output");
+			values.add(i.getOutput());
+		}
+		record(step, timeStamp.getPeriod(), timeStamp.getMelt(), timeStamp.totalValue(), timeStamp.totalPrice(), timeStamp.profitRate(), names, values);
+	}
+
+	/**
+	 * Record a row from a simulation state
+	 *
+	 * @param step
+	 *            the number of periods that have been run so far
+	 * @param state
+	 *            the state to record
+	 */
+	public void recordFromState(int step, SimulationState state) {
+		List<String> names = new ArrayList<String>();
+		List<Double> values = new ArrayList<Double>();
+		collect(state, names, values);
+		record(step, state.getPeriod(), state.getMelt(), state.totalValue(), state.totalPrice(), state.profitRate(), names, values);
+	}
+
+	/**
+	 * The column headings of {@link #summary(SimulationState)}
+	 *
+	 * @param state
+	 *            a state of the project to be summarised
+	 * @return the headings, separated by commas
+	 */
+	static String summaryHeader(SimulationState state) {
+		List<String> names = new ArrayList<String>();
+		collect(state, names, new ArrayList<Double>());
+		return columns(names);
+	}
+
+	/**
+	 * A one-line summary of a state, with the same columns as a row of a time series, except the step
+	 *
+	 * @param state
+	 *            the state to summarise
+	 * @return the summary, separated by commas
+	 */
+	static String summary(SimulationState state) {
+		List<Double> values = new ArrayList<Double>();
+		collect(state, new ArrayList<String>(), values);
+		return values(state.getPeriod(), state.getMelt(), state.totalValue(), state.totalPrice(), state.profitRate(), values);
+	}
+
+	private static void collect(SimulationState state, List<String> names, List<Double> values) {
+		for (int c = 0; c < state.commodityCount(); c++) {
+			names.add(state.commodityName(c) + " unit value");
+			values.add(state.unitValue(c));
+			names.add(state.commodityName(c) + " unit price");
+			values.add(state.unitPrice(c));
+		}
+		for (int i = 0; i < state.industryCount(); i++) {
+			names.add(state.industryName(i) + " output");
+			values.add(state.output(i));
+		}
+	}
+
+	private void record(int step, int period, double melt, double totalValue, double totalPrice, double profitRate, List<String> names,
+			List<Double> values) {
+		if (header == null)
+			header = "Step," + columns(names);
+		rows.add(step + "," + values(period, melt, totalValue, totalPrice, profitRate, values));
+	}
+
+	private static String columns(List<String> names) {
+		StringBuilder builder = new StringBuilder("Period,MELT,Total Value,Total Price,Profit Rate");
+		for (String name : names)
+			builder.append(',').append(quoted(name));
+		return builder.toString();
+	}
+
+	private static String values(int period, double melt, double totalValue, double totalPrice, double profitRate, List<Double> values) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(period).append(',').append(melt).append(',').append(totalValue).append(',').append(totalPrice).append(',').append(profitRate);
+		for (Double value : values)
+			builder.append(',').append(value);
+		return builder.toString();
+	}
+
+	/**
+	 * Write the time series as a csv file
+	 *
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write(header == null ? "" : header);
+			writer.newLine();
+			for (String row : rows) {
+				writer.write(row);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		logger.debug("Wrote {} rows for project {} to {}", rows.size(), projectID, file.getPath());
+	}
+
+	/**
+	 * @return the projectID
+	 */
+	public int getProjectID() {
+		return projectID;
+	}
+
+	static String quoted(String name) {
+		if (name.indexOf(',') < 0 && name.indexOf('"') < 0)
+			return name;
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+}
@@ -0,0 +1,264 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+import capitalism.controller.SimulationState;
+import capitalism.controller.command.OnePeriod;
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.Ledger;
+import capitalism.model.Project;
+import capitalism.model.Session;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
+import capitalism.model.TimeStamp;
+import capitalism.reporting.Reporter;
+import capitalism.utils.MathStuff;
+
+/**
+ * Checks that the different ways of running and recording a project agree with each other. For each project:
+ * <ul>
+ * <li>one period is run both through the command classes, as {@link OnePeriod} runs it, and through a {@link SimulationState} that
+ * starts from the same entities. The state is written back ({@link SimulationState#writeBack(TimeStamp, List, List, List, List)}) onto copies
+ * of the entities that the commands produced, and every magnitude it writes is compared with the one the commands produced</li>
+ * <li>each timeStamp that the period created is rebuilt by replaying the {@link Ledger}, and the result is compared with the stocks that
+ * the database holds for that timeStamp</li>
+ * </ul>
+ * Instead of loading a set of csv files, the check can be run on a model made by {@link ModelGenerator} with the given number of industries.
+ * Such a model has zero production coefficients wherever an industry does not use an input, which the standard user data does not.
+ * <p>
+ * Every difference is logged. The exit status is 0 if there were none, 1 if there were some or the data could not be loaded, and 2 if the
+ * options were not understood.
+ * <p>
+ * Usage: {@code Verify [--csv <directory> | --generate <industries> [--seed <seed>]] [--projects <id,id,...|all>]}
+ */
+public class Verify {
+	private static final Logger logger = LogManager.getLogger("Verify");
+
+	private int differences = 0;
+
+	public static void main(String[] args) {
+		Reporter.setStartTime();
+		String csvDirectory = null;
+		String projectList = null;
+		int generatedIndustries = 0;
+		long seed = 1;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "--csv":
+					csvDirectory = args[++i];
+					break;
+				case "--projects":
+					projectList = args[++i];
+					break;
+				case "--generate":
+					generatedIndustries = Integer.parseInt(args[++i]);
+					break;
+				case "--seed":
+					seed = Long.parseLong(args[++i]);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: Verify [--csv <directory> | --generate <industries> [--seed <seed>]] [--projects <id,id,...|all>]");
+			System.exit(2);
+		}
+		if (generatedIndustries > 0) {
+			try {
+				File directory = Files.createTempDirectory("capsim-verify").toFile();
+				new ModelGenerator(generatedIndustries, generatedIndustries, 1, 2, 0.5, seed).write(directory);
+				csvDirectory = directory.getCanonicalPath().replace('\\', '/');
+				logger.info("Generated a model with {} industries in {}", generatedIndustries, csvDirectory);
+			} catch (IOException | IllegalArgumentException e) {
+				logger.error("Could not generate a model because {}", e.getMessage());
+				System.exit(1);
+			}
+		}
+		if (!BatchRunner.loadData(csvDirectory))
+			System.exit(1);
+		List<Integer> projectIDs = new ArrayList<Integer>();
+		if (projectList == null || projectList.equals("all")) {
+			for (Project p : Project.all())
+				projectIDs.add(p.getProjectID());
+		} else {
+			for (String id : projectList.split(","))
+				projectIDs.add(Integer.parseInt(id.trim()));
+		}
+		Verify verify = new Verify();
+		boolean checked = true;
+		for (int projectID : projectIDs)
+			checked &= verify.check(projectID);
+		logger.info("{} projects checked: {} differences found", projectIDs.size(), verify.getDifferences());
+		System.exit(checked && verify.getDifferences() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Run one period of the given project through the command classes and through a {@link SimulationState}, and compare the results; then
+	 * compare the ledger of the period with what the database holds. The project is left one period further on.
+	 *
+	 * @param projectID
+	 *            the project to check
+	 * @return false if there is no such project
+	 */
+	public boolean check(int projectID) {
+		if (!Simulation.selectProject(projectID)) {
+			logger.error("There is no project {}", projectID);
+			return false;
+		}
+		Ledger.setEnabled(true);
+		int startTimeStampID = Simulation.timeStampIDCurrent();
+		SimulationState state = SimulationState.of(TimeStamp.single(projectID, startTimeStampID), Commodity.all(projectID, startTimeStampID),
+				Industry.all(projectID, startTimeStampID), SocialClass.all(projectID, startTimeStampID), Stock.all(projectID, startTimeStampID));
+		state.onePeriod();
+		new OnePeriod().execute();
+		int endTimeStampID = Simulation.timeStampIDCurrent();
+
+		// write out what the commands did and let go of it, so that what is compared below is read back from the database
+		Session.begin();
+		Session.release();
+		Session.commit();
+
+		checkLedger(projectID, startTimeStampID, endTimeStampID);
+		checkKernel(projectID, endTimeStampID, state);
+		return true;
+	}
+
+	/**
+	 * Compare the state of each timeStamp in the given range, as rebuilt from the ledger, with the stocks that the database holds for it.
+	 * A timeStamp that no step of the ledger worked on is skipped.
+	 */
+	private void checkLedger(int projectID, int fromTimeStampID, int toTimeStampID) {
+		for (int timeStampID = fromTimeStampID; timeStampID <= toTimeStampID; timeStampID++) {
+			int step = Ledger.lastStepAt(projectID, timeStampID);
+			if (step < 0)
+				continue;
+			Map<String, double[]> replayed = Ledger.replay(projectID, step);
+			if (replayed == null) {
+				difference(projectID, "the ledger could not replay step %d", step);
+				continue;
+			}
+			String where = String.format("ledger at timeStamp %d", timeStampID);
+			List<Stock> stocks = Stock.all(projectID, timeStampID);
+			if (stocks.size() != replayed.size())
+				difference(projectID, "%s: %d stocks replayed but %d stored", where, replayed.size(), stocks.size());
+			for (Stock s : stocks) {
+				double[] figures = replayed.get(s.snapshotKey());
+				if (figures == null) {
+					difference(projectID, "%s: stock %s is not in the ledger", where, s.snapshotKey());
+					continue;
+				}
+				compare(projectID, where, s.snapshotKey() + " quantity", s.getQuantity(), figures[0]);
+				compare(projectID, where, s.snapshotKey() + " value", s.getValue(), figures[1]);
+				compare(projectID, where, s.snapshotKey() + " price", s.getPrice(), figures[2]);
+			}
+		}
+	}
+
+	/**
+	 * Write the state back onto copies of the entities at the given timeStamp, and compare each magnitude written with the stored one
+	 */
+	private void checkKernel(int projectID, int timeStampID, SimulationState state) {
+		// the copies have the key of the working entities; the ledger would take the changes written to them for changes to those entities
+		Ledger.setEnabled(false);
+		TimeStamp timeStamp = TimeStamp.single(projectID, timeStampID);
+		List<Commodity> commodities = Commodity.all(projectID, timeStampID);
+		List<Industry> industries = Industry.all(projectID, timeStampID);
+		List<SocialClass> socialClasses = SocialClass.all(projectID, timeStampID);
+		List<Stock> stocks = Stock.all(projectID, timeStampID);
+		TimeStamp timeStampCopy = new TimeStamp(timeStamp);
+		List<Commodity> commodityCopies = new ArrayList<Commodity>();
+		for (Commodity c : commodities)
+			commodityCopies.add(new Commodity(c));
+		List<Industry> industryCopies = new ArrayList<Industry>();
+		for (Industry i : industries)
+			industryCopies.add(new Industry(i));
+		List<SocialClass> socialClassCopies = new ArrayList<SocialClass>();
+		for (SocialClass sc : socialClasses) {
+			SocialClass copy = new SocialClass();
+			copy.copy(sc);
+			socialClassCopies.add(copy);
+		}
+		List<Stock> stockCopies = new ArrayList<Stock>();
+		for (Stock s : stocks)
+			stockCopies.add(new Stock(s));
+		state.writeBack(timeStampCopy, commodityCopies, industryCopies, socialClassCopies, stockCopies);
+		Ledger.setEnabled(true);
+
+		String where = "kernel";
+		compare(projectID, where, "melt", timeStamp.getMelt(), timeStampCopy.getMelt());
+		compare(projectID, where, "period", timeStamp.getPeriod(), timeStampCopy.getPeriod());
+		for (int n = 0; n < commodities.size(); n++) {
+			Commodity c = commodities.get(n);
+			Commodity k = commodityCopies.get(n);
+			compare(projectID, where, c.name() + " unit value", c.getUnitValue(), k.getUnitValue());
+			compare(projectID, where, c.name() + " unit price", c.getUnitPrice(), k.getUnitPrice());
+		}
+		for (int n = 0; n < industries.size(); n++) {
+			Industry i = industries.get(n);
+			Industry k = industryCopies.get(n);
+			compare(projectID, where, i.name() + " output", i.getOutput(), k.getOutput());
+			compare(projectID, where, i.name() + " initial capital", i.initialCapital(), k.initialCapital());
+			compare(projectID, where, i.name() + " profit", i.profit(), k.profit());
+		}
+		for (int n = 0; n < socialClasses.size(); n++) {
+			SocialClass sc = socialClasses.get(n);
+			compare(projectID, where, sc.name() + " revenue", sc.getRevenue(), socialClassCopies.get(n).getRevenue());
+		}
+		for (int n = 0; n < stocks.size(); n++) {
+			Stock s = stocks.get(n);
+			Stock k = stockCopies.get(n);
+			compare(projectID, where, s.snapshotKey() + " quantity", s.getQuantity(), k.getQuantity());
+			compare(projectID, where, s.snapshotKey() + " value", s.getValue(), k.getValue());
+			compare(projectID, where, s.snapshotKey() + " price", s.getPrice(), k.getPrice());
+		}
+	}
+
+	private void compare(int projectID, String where, String what, double expected, double found) {
+		if (!MathStuff.equals(expected, found))
+			difference(projectID, "%s: %s is %f but should be %f", where, what, found, expected);
+	}
+
+	private void difference(int projectID, String format, Object... args) {
+		differences++;
+		logger.error("Project {}: {}", projectID, String.format(format, args));
+	}
+
+	/**
+	 * @return the number of differences found so far
+	 */
+	public int getDifferences() {
+		return differences;
+	}
+}
@@ -20,20 +20,32 @@
 
 package capitalism.controller;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import capitalism.model.Aggregates;
 import capitalism.model.Commodity;
+import capitalism.model.EntityCache;
 import capitalism.model.Industry;
+import capitalism.model.Ledger;
 import capitalism.model.Project;
+import capitalism.model.Session;
+import capitalism.model.Snapshots;
 import capitalism.model.SocialClass;
 import capitalism.model.Stock;
 import capitalism.model.TimeStamp;
+import capitalism.model.Totals;
 import capitalism.reporting.Dialogues;
 import capitalism.reporting.Reporter;
+import capitalism.utils.DBHandler;
 import capitalism.utils.MathStuff;
+import capitalism.utils.Metrics;
 import capitalism.utils.Validate;
 import capitalism.view.custom.ActionButtonsBox;
 import capitalism.view.custom.DisplayControlsBox;
@@ -154,9 +166,36 @@ public class Simulation {
 	 *            the components(children) of this record, once these have been generated
 	 */
 	public static void advanceOneStep(String description, String superState) {
+		Metrics.Probe probe = Metrics.start("advanceOneStep");
+		try {
+			takeOneStep(description, superState);
+		} finally {
+			probe.stop();
+		}
+	}
 
+	/**
+	 * Carry out {@link #advanceOneStep(String, String)}, which measures it
+	 * 
+	 * @param description
+	 *            the description of the step
+	 * @param superState
+	 *            the superState of the step
+	 */
+	private static void takeOneStep(String description, String superState) {
+		Aggregates.recompute();
 		checkMoneySufficiency(projectIDcurrent(), timeStampIDCurrent());
 
+		// if the project does not record this step, the step works on the current timeStamp, in memory, and that timeStamp is relabelled
+		// to stand for the state after it. Its changes are written out with the next step that is recorded.
+		if (!projectCurrent.records(description, getPeriodCurrent())) {
+			logger.debug("Step {} is not recorded; timeStamp {} now stands for it", description, timeStampIDCurrent());
+			timeStampCurrent.setDescription(description);
+			timeStampCurrent.setSuperState(superState);
+			Ledger.step(description, superState, false);
+			return;
+		}
+
 		// move the timeStamp forward in the current project persistent record and save it.
 		// do not create a new project record - modify the existing one.
 		// NOTE we move forward the persistent project record, and then copy it to
@@ -165,21 +204,58 @@ public class Simulation {
 		// probably we do, but I haven't studied JPA internals enough to be sure, so this is belt and braces
 
 		int oldTimeStampID = timeStampIDCurrent();
-		Project.getEntityManager().getTransaction().begin();
+
+		int tempPID = projectIDCurrent();
+
+		// the whole step, including the changes that the commands made to the working entities before it was called, is written out
+		// by this one transaction, or not at all
+		Session.begin();
+		try {
+			moveToNewTimeStamp(description, superState, oldTimeStampID);
+			// the step of the ledger belongs to the transaction, so that it is kept only if the new timeStamp is
+			Ledger.step(description, superState, true);
+			Session.commit();
+		} catch (RuntimeException e) {
+			// the rollback discards what the step wrote, and detaches the entities it changed in memory; so look up the project and its
+			// timeStamp as they were before the step. Snapshots has forgotten what changed at the old timeStamp, so it will be copied
+			// as a whole when the simulation next moves on
+			Session.rollback();
+			projectCurrent = Project.get(tempPID);
+			timeStampCurrent = TimeStamp.single(tempPID, oldTimeStampID);
+			throw e;
+		}
+
+		// some diagnostics - switch off if not needed for debug
+		// for (Industry i:Industry.all()) {
+		// logger.debug("Industry {} has project {} and timeStamp {}",i.getName(),i.getProject(),i.getTimeStamp());
+		// }
+
+		logger.debug("Done Persisting: exit AdvanceOneStep");
+	}
+
+	/**
+	 * The body of {@link #advanceOneStep(String, String)}, which must be called inside a transaction of the shared persistence session.
+	 * 
+	 * @param description
+	 *            description of the new timeStamp
+	 * @param superState
+	 *            the superState of the new timeStamp
+	 * @param oldTimeStampID
+	 *            the timeStamp that is current when the step is taken
+	 */
+	private static void moveToNewTimeStamp(String description, String superState, int oldTimeStampID) {
+		int tempPID = projectIDCurrent();
 		Project.get(projectCurrent.getProjectID()).setTimeStampComparatorCursor(oldTimeStampID);
 		Project.get(projectCurrent.getProjectID()).setTimeStampDisplayCursor(oldTimeStampID + 1);
 		Project.get(projectCurrent.getProjectID()).setTimeStampID(oldTimeStampID + 1);
-		Project.getEntityManager().getTransaction().commit();
 		projectCurrent = Project.get(projectCurrent.getProjectID()); // retrieve the newly-persisted record and take a fresh copy
 
 		logger.debug("Move One Step in project {} at period {} by creating a new timeStamp {} called {}",
 				projectCurrent.getProjectID(), getPeriodCurrent(), projectCurrent.getTimeStampID(), description);
 
 		// persist a new version of all simulation entities, with the same project, and the new timeStamp...
-		TimeStamp.getEntityManager().getTransaction().begin();
 		// Create a new timeStamp that moves on by one from the present timeStamp, but has the same project and period
 		// set its description and superState from the parameters in the call to advanceOneStep
-		int tempPID = projectIDCurrent();
 		TimeStamp oldTimeStamp = TimeStamp.single(tempPID, oldTimeStampID);
 		timeStampCurrent = new TimeStamp(oldTimeStamp);
 		timeStampCurrent.setTimeStampID(projectCurrent.getTimeStampID());
@@ -188,17 +264,54 @@ public class Simulation {
 		timeStampCurrent.setPeriod(getPeriodCurrent());
 		TimeStamp.getEntityManager().persist(timeStampCurrent);
 
-		TimeStamp.getEntityManager().getTransaction().commit();
+		// copy-on-write: move the working entities to the new timeStamp, and keep at the old one, which is now history, only those that
+		// changed while it was the working timeStamp; the rest will be resolved from the earlier timeStamp where they are stored.
+		// This lets go of every entity the session holds.
+		boolean moved = Snapshots.moveOn(tempPID, oldTimeStampID, timeStampIDCurrent());
+		if (!moved) {
+			// Snapshots does not know what changed, or the old timeStamp is the first one, which must stay complete: so copy the whole
+			// of it to the new one, in the database, with one statement per table
+			logger.debug(" Copying the entities of timeStamp {} to timeStamp {}", oldTimeStampID, timeStampIDCurrent());
+			if (!DBHandler.copyTimeStamp(tempPID, oldTimeStampID, timeStampIDCurrent()))
+				persistCopies(Commodity.all(tempPID, oldTimeStampID), Stock.all(tempPID, oldTimeStampID), Industry.all(tempPID, oldTimeStampID),
+						SocialClass.all(tempPID, oldTimeStampID));
+		}
+		EntityCache.invalidate();
+
+		// when the database is in a file, the history need not stay on the heap: let go of everything the session holds. Either way,
+		// if the session has let go, look up again the entities that the simulation keeps
+		if (!moved && DBHandler.isFileBacked())
+			Session.release();
+		if (moved || DBHandler.isFileBacked()) {
+			projectCurrent = Project.get(tempPID);
+			timeStampCurrent = TimeStamp.single(tempPID, timeStampIDCurrent());
+		}
 
-		Commodity.getEntityManager().getTransaction().begin();
-		Stock.getEntityManager().getTransaction().begin();
-		Industry.getEntityManager().getTransaction().begin();
-		SocialClass.getEntityManager().getTransaction().begin();
+		// from now on, remember which of the new working entities change, so that only these are kept when the simulation next moves on
+		Snapshots.track(tempPID, timeStampIDCurrent());
+		setComparators(projectIDCurrent(), timeStampIDCurrent());
+	}
 
+	/**
+	 * Persist a copy of each of the given entities at the current timeStamp, one by one. This is the way the new timeStamp is created
+	 * if it cannot be copied in the database (see {@link DBHandler#copyTimeStamp(int, int, int)}).
+	 * The caller must already have begun a transaction of the shared persistence session.
+	 * 
+	 * @param oldCommodities
+	 *            the commodities to copy
+	 * @param oldStocks
+	 *            the stocks to copy
+	 * @param oldIndustries
+	 *            the industries to copy
+	 * @param oldSocialClasses
+	 *            the social classes to copy
+	 */
+	private static void persistCopies(List<Commodity> oldCommodities, List<Stock> oldStocks, List<Industry> oldIndustries,
+			List<SocialClass> oldSocialClasses) {
 		// Commodities
 		logger.debug(" Persisting a new set of commodities with timeStamp {} and period {}", timeStampIDCurrent(), getPeriodCurrent());
 		Commodity commodity;
-		for (Commodity u : Commodity.all(projectIDCurrent(), oldTimeStampID)) {
+		for (Commodity u : oldCommodities) {
 			commodity = new Commodity(u);
 			commodity.setTimeStampID(timeStampIDCurrent());
 			Commodity.getEntityManager().persist(commodity);
@@ -207,7 +320,7 @@ public class Simulation {
 		// Stocks
 		logger.debug(" Persisting a new set of stocks with timeStamp {} ", timeStampIDCurrent());
 		Stock newStock;
-		for (Stock s : Stock.all(projectIDCurrent(), oldTimeStampID)) {
+		for (Stock s : oldStocks) {
 			newStock = new Stock(s);
 			newStock.setTimeStamp(timeStampIDCurrent());
 			Stock.getEntityManager().persist(newStock);
@@ -216,7 +329,7 @@ public class Simulation {
 		// industries
 		logger.debug("Persisting a new set of industries with timeStamp {} ", timeStampIDCurrent());
 		Industry newIndustry;
-		for (Industry c : Industry.all(projectIDCurrent(), oldTimeStampID)) {
+		for (Industry c : oldIndustries) {
 			logger.debug("Persisting an industry that produces commodity" + c.name());
 			newIndustry = new Industry(c);
 			newIndustry.setTimeStamp(timeStampIDCurrent());
@@ -226,28 +339,17 @@ public class Simulation {
 		// Social Classes
 		logger.debug("Persisting a new set of social classes with timeStamp {}", timeStampIDCurrent());
 		SocialClass newSocialClass;
-		for (SocialClass sc : SocialClass.all(projectIDCurrent(), oldTimeStampID)) {
+		for (SocialClass sc : oldSocialClasses) {
 			logger.debug("  Persisting a social class whose name is " + sc.name());
 			newSocialClass = new SocialClass();
 			newSocialClass.copy(sc);
 			newSocialClass.setTimeStamp(timeStampIDCurrent());
 			SocialClass.getEntityManager().persist(newSocialClass);
 		}
+		Metrics.copied(oldCommodities.size() + oldStocks.size() + oldIndustries.size() + oldSocialClasses.size());
 
-		setComparators(projectIDCurrent(), timeStampIDCurrent());
-
-		// now commit all the modified records
-		SocialClass.getEntityManager().getTransaction().commit();
-		Industry.getEntityManager().getTransaction().commit();
-		Stock.getEntityManager().getTransaction().commit();
-		Commodity.getEntityManager().getTransaction().commit();
-
-		// some diagnostics - switch off if not needed for debug
-		// for (Industry i:Industry.all()) {
-		// logger.debug("Industry {} has project {} and timeStamp {}",i.getName(),i.getProject(),i.getTimeStamp());
-		// }
-
-		logger.debug("Done Persisting: exit AdvanceOneStep");
+		// write the copies out now, so that Snapshots, which is told of each one as it is written, does not take them for changes
+		Session.getEntityManager().flush();
 	}
 
 	/**
@@ -255,34 +357,22 @@ public class Simulation {
 	 */
 	public static void restart() {
 		int projectID = Simulation.projectIDCurrent();
-		Project project=Project.get(projectID);
 		Reporter.report(logger, 1, "RESTART OF PROJECT %d REQUESTED", projectID);
-		Commodity.getEntityManager().getTransaction().begin();
-		Commodity.deleteFromProject(projectID);
-		Commodity.getEntityManager().getTransaction().commit();
-
-		Industry.getEntityManager().getTransaction().begin();
-		Industry.deleteFromProject(projectID);
-		Industry.getEntityManager().getTransaction().commit();
-
-		SocialClass.getEntityManager().getTransaction().begin();
-		SocialClass.deleteFromProject(projectID);
-		SocialClass.getEntityManager().getTransaction().commit();
-
-		Stock.getEntityManager().getTransaction().begin();
-		Stock.deleteFromProject(projectID);
-		Stock.getEntityManager().getTransaction().commit();
-		
-		TimeStamp.getEntityManager().getTransaction().begin();
-		TimeStamp.deleteFromProject(projectID);
-		TimeStamp.getEntityManager().getTransaction().commit();
-		
-		Project.getEntityManager().getTransaction().begin();
-		project.setTimeStampID(1);
-		project.setTimeStampComparatorCursor(1);
-		project.setTimeStampDisplayCursor(1);
+		Session.begin();
+		DBHandler.deleteHistory(projectID);
+		Snapshots.forget(projectID);
+		Session.commit();
+		Ledger.discard(projectID);
+
+		// the session has let go of everything it held, so look up the project, and its first timeStamp, again
+		Session.begin();
+		projectCurrent = Project.get(projectID);
+		timeStampCurrent = TimeStamp.single(projectID, 1);
+		projectCurrent.setTimeStampID(1);
+		projectCurrent.setTimeStampComparatorCursor(1);
+		projectCurrent.setTimeStampDisplayCursor(1);
 		Project.setTimeStampCursor(projectID, 1);
-		Project.getEntityManager().getTransaction().commit();
+		Session.commit();
 		setPeriodCurrent(1);
 		setCapitals(projectID, 1);
 	}
@@ -317,10 +407,9 @@ public class Simulation {
 	 */
 	public static void calculateStockAggregates(int projectID, int timeStampID) {
 		Reporter.report(logger, 2, "Calculating stock values and prices from stock quantities, unit values and unit prices");
-		List<Stock> allStocks = Stock.all(projectID, timeStampID);
-		for (Stock s : allStocks) {
-			s.modifyTo(s.getQuantity());
-		}
+		Session.begin();
+		Stock.reCalculateAll(projectID, timeStampID, true);
+		Session.commit();
 	}
 
 	/**
@@ -329,6 +418,7 @@ public class Simulation {
 	 * per-commodity basis. They are 'social' values; however production creates 'individual'
 	 * values on a per-industry basis. Now, individual industries must reconcile the value
 	 * of their product with social average values.
+	 * The stocks are recalculated in the database, in a transaction that also writes out what the command has done to them so far.
 	 */
 	public static void computeUnitValues() {
 		for (Commodity u : Commodity.all(projectIDCurrent(), timeStampIDCurrent())) {
@@ -340,46 +430,68 @@ public class Simulation {
 				u.setUnitValue(newUnitValue);
 			}
 		}
-		for (Stock s : Stock.all(projectIDCurrent(), timeStampIDCurrent())) {
-			s.reCalculateStockTotalValuesAndPrices();
-		}
+		Session.begin();
+		Stock.reCalculateAll(projectIDCurrent(), timeStampIDCurrent(), false);
+		Session.commit();
 	}
 
 	/**
-	 * this helper method simply checks consistency
+	 * this helper method simply checks consistency. The totals of each commodity, which are kept up to date as the stocks change, are
+	 * compared with the sum of the stocks themselves, obtained independently of that bookkeeping: commodity by commodity for the quantity,
+	 * value and price, and for the simulation as a whole for the value and price.
 	 */
 	public static void checkConsistency() {
 		double totalValue = 0.0;
 		double totalPrice = 0.0;
 
-		// TODO this is somewhat hamfisted. Need queries to do this stuff.
-		if (Parameters.isFullPricing()) {
-			for (Commodity u : Commodity.all(projectIDCurrent(), timeStampIDCurrent())) {
-				Reporter.report(logger, 2, "Commodity [%s] Total value is %.0f, and total price is %.0f", u.name(), u.totalValue(), u.totalPrice());
-				totalValue += u.totalValue();
-				totalPrice += u.totalPrice();
-			}
-		} else {
-			for (Commodity u : Commodity.currentByFunction(projectIDCurrent(), timeStampIDCurrent(), Commodity.FUNCTION.PRODUCTIVE_INPUT)) {
-				Reporter.report(logger, 2, "Commodity [%s] Total value is %.0f, and total price is %.0f", u.name(), u.totalValue(), u.totalPrice());
-				totalValue += u.totalValue();
-				totalPrice += u.totalPrice();
-
-			}
-			for (Commodity u : Commodity.currentByFunction(projectIDCurrent(), timeStampIDCurrent(), Commodity.FUNCTION.CONSUMER_GOOD)) {
-				Reporter.report(logger, 2, "Commodity [%s] Total value is %.0f, and total price is %.0f", u.name(), u.totalValue(), u.totalPrice());
-				totalValue += u.totalValue();
-				totalPrice += u.totalPrice();
-			}
+		// the totals of every commodity, as recorded
+		Totals totals = Totals.of(projectIDCurrent(), timeStampIDCurrent());
+		Set<String> counted = new HashSet<String>();
+		for (Commodity u : Commodity.all(projectIDCurrent(), timeStampIDCurrent())) {
+			if (!Parameters.isFullPricing() && u.getFunction() == Commodity.FUNCTION.MONEY)
+				continue;
+			counted.add(u.name());
+			double value = totals.commodity(u.name(), Totals.VALUE);
+			double price = totals.commodity(u.name(), Totals.PRICE);
+			Reporter.report(logger, 2, "Commodity [%s] Total value is %.0f, and total price is %.0f", u.name(), value, price);
+			totalValue += value;
+			totalPrice += price;
 		}
 		Reporter.report(logger, 1, "Total value is %.0f, and Total price is %.0f", totalValue, totalPrice);
 
-		logger.debug("Recorded total value is {}, and calculated total value is {}", timeStampCurrent.totalValue(), totalValue);
-		logger.debug("Recorded total price is {}, and calculated total price is {}", timeStampCurrent.totalPrice(), totalPrice);
+		// the same totals, calculated directly from the stocks
+		double stockValue = 0.0;
+		double stockPrice = 0.0;
+		Map<String, double[]> sums = new HashMap<String, double[]>();
+		for (Stock s : Stock.all(projectIDCurrent(), timeStampIDCurrent())) {
+			if (!counted.contains(s.name()))
+				continue;
+			double[] sum = sums.get(s.name());
+			if (sum == null) {
+				sum = new double[3];
+				sums.put(s.name(), sum);
+			}
+			sum[0] += s.getQuantity();
+			sum[1] += s.getValue();
+			sum[2] += s.getPrice();
+			stockValue += s.getValue();
+			stockPrice += s.getPrice();
+		}
+		for (String name : counted) {
+			double[] sum = sums.containsKey(name) ? sums.get(name) : new double[3];
+			if (!MathStuff.equals(totals.commodity(name, Totals.QUANTITY), sum[0]))
+				Dialogues.alert(logger, "The total quantity of commodity %s is out of sync", name);
+			if (!MathStuff.equals(totals.commodity(name, Totals.VALUE), sum[1]))
+				Dialogues.alert(logger, "The total value of commodity %s is out of sync", name);
+			if (!MathStuff.equals(totals.commodity(name, Totals.PRICE), sum[2]))
+				Dialogues.alert(logger, "The total price of commodity %s is out of sync", name);
+		}
+		logger.debug("Total value of the stocks is {}, and recorded total value is {}", stockValue, totalValue);
+		logger.debug("Total price of the stocks is {}, and recorded total price is {}", stockPrice, totalPrice);
 
-		if (!MathStuff.equals(totalValue, timeStampCurrent.totalValue()))
+		if (!MathStuff.equals(totalValue, stockValue))
 			Dialogues.alert(logger, "The total value of stocks is out of sync");
-		if (!MathStuff.equals(totalPrice, timeStampCurrent.totalPrice()))
+		if (!MathStuff.equals(totalPrice, stockPrice))
 			Dialogues.alert(logger, "The total price of stocks is out of sync");
 	}
 
@@ -396,8 +508,9 @@ public class Simulation {
 		TimeStamp ts = TimeStamp.single(projectID, timeStampID);
 		for (Industry c : Industry.all(projectID, timeStampID)) {
 			double initialCapital = c.currentCapital();
-			Reporter.report(logger, 3, "The initial capital of the industry[%s] is now $%.0f (intrinsic %.0f)", c.name(), initialCapital,
-					initialCapital / ts.getMelt());
+			if (Reporter.reports(3))
+				Reporter.report(logger, 3, "The initial capital of the industry[%s] is now $%.0f (intrinsic %.0f)", c.name(), initialCapital,
+						initialCapital / ts.getMelt());
 			c.setInitialCapital(initialCapital);
 		}
 		Reporter.report(logger, 2, "Total initial capital is now $%.0f (intrinsic %.0f)", ts.initialCapital(),
@@ -453,12 +566,12 @@ public class Simulation {
 			return;
 		}
 
-		Project.getEntityManager().getTransaction().begin();
+		Session.begin();
 
 		// save the state of the present project so it knows how to return to the same point
 		projectCurrent.setButtonState(ActionButtonsBox.getLastAction().text());
 
-		Project.getEntityManager().getTransaction().commit();
+		Session.commit();
 
 		// retrieve the selected project record, and copy its various cursors and into the simulation cursors
 		projectCurrent = Project.get(newProjectID);
@@ -469,6 +582,27 @@ public class Simulation {
 		// ViewManager.getTabbedTableViewer().buildTables();
 	}
 
+	/**
+	 * Make the given project current, without reference to the display. Used when the simulation runs without one;
+	 * the interactive simulation uses {@link #switchProjects(int, ActionButtonsBox)}, which also restores the state of the action buttons.
+	 * 
+	 * @param projectID
+	 *            the ID of the project to select
+	 * @return true if the project and its current timeStamp exist, false otherwise
+	 */
+	public static boolean selectProject(int projectID) {
+		Project project = Project.get(projectID);
+		if (project == null)
+			return false;
+		TimeStamp timeStamp = TimeStamp.single(projectID, project.getTimeStampID());
+		if (timeStamp == null)
+			return false;
+		projectCurrent = project;
+		timeStampCurrent = timeStamp;
+		logger.debug("Selected project {} at timeStamp {}", projectID, project.getTimeStampID());
+		return true;
+	}
+
 	/**
 	 * for all persistent entities at the given timeStamp, set comparators that refer to the timeStampComparatorCursor
 	 * TODO previousComparator not yet properly implemented.
@@ -479,6 +613,7 @@ public class Simulation {
 	 *            all persistent records at this timeStampID will be given comparators equal to the timeStampComparatorCursor
 	 */
 	public static void setComparators(int projectID, int timeStampID) {
+		Metrics.Probe probe = Metrics.start("setComparators");
 		try {
 			Stock.setComparators(projectID, timeStampID);
 			Commodity.setComparators(projectID, timeStampID);
@@ -488,6 +623,7 @@ public class Simulation {
 		} catch (Exception e) {
 			Dialogues.alert(logger, "Could not set comparators. Sorry, please contact developer");
 		}
+		probe.stop();
 	}
 
 	/**
@@ -497,8 +633,11 @@ public class Simulation {
 	 *            the projectID of the entire project to be deleted
 	 */
 	public static void deleteAllFromProject(int projectID) {
-		Commodity.deleteFromProject(projectID);
-		// TODO etcetera
+		Session.begin();
+		DBHandler.deleteProject(projectID);
+		Snapshots.forget(projectID);
+		Session.commit();
+		Ledger.discard(projectID);
 	}
 
 	/**
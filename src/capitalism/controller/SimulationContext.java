@@ -0,0 +1,289 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.controller;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.persistence.EntityManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.Project;
+import capitalism.model.Session;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
+import capitalism.model.TimeStamp;
+
+/**
+ * The simulation of one project, isolated from every other project and from the interactive simulation.
+ *
+ * {@link Simulation} keeps the current project in static fields, and the model classes share one static entityManager,
+ * so only one project can be simulated at a time through them. A context instead holds its own {@link SimulationState} and its own
+ * persistence session (an entityManager created for this context alone). Any number of contexts can therefore run at once,
+ * each on its own thread; {@link #runAll(List, int, boolean, ForkJoinPool)} does this for a list of projects.
+ *
+ * A context reads the project at its current timeStamp when it is loaded, runs entirely in memory, and touches the database again
+ * only if it is asked to {@link #save()} its state, in which case the state overwrites the project's current timeStamp.
+ * Like {@link SimulationState}, it does not create timeStamps.
+ *
+ * The reports and alerts of the state go to the log of this class, labelled with the project, and not to the
+ * {@link capitalism.reporting.Reporter} or to a dialogue, which belong to the interactive simulation.
+ */
+public class SimulationContext {
+	private static final Logger logger = LogManager.getLogger("SimulationContext");
+
+	private final int projectID;
+	private int timeStampID;
+	private SimulationState state = null;
+
+	private EntityManager manager;
+
+	/**
+	 * Follows the projects run by {@link SimulationContext#runAll(List, int, boolean, ForkJoinPool, Listener)}
+	 */
+	public interface Listener {
+		/**
+		 * Called on the thread of the context when its project has been loaded, with a period of 0, and again at the end of each period
+		 * that it runs
+		 * 
+		 * @param context
+		 *            the context
+		 * @param period
+		 *            the number of periods run so far
+		 */
+		void periodEnded(SimulationContext context, int period);
+	}
+
+	/**
+	 * Sends the reports and alerts of the state to the log, labelled with the project
+	 */
+	private class LogSink implements SimulationState.Sink {
+		@Override public void report(int level, String formatString, Object... args) {
+			if (logger.isDebugEnabled())
+				logger.debug("Project {}: {}", projectID, String.format(formatString, args));
+		}
+
+		@Override public void alert(String formatString, Object... args) {
+			logger.error("Project {}: {}", projectID, String.format(formatString, args));
+		}
+	}
+
+	/**
+	 * Create a context for the given project and open its persistence session. The project is not read until {@link #load()} is called
+	 *
+	 * @param projectID
+	 *            the project to simulate
+	 */
+	public SimulationContext(int projectID) {
+		this.projectID = projectID;
+		manager = Session.createEntityManager();
+	}
+
+	/**
+	 * Read the project at its current timeStamp into the state of this context
+	 *
+	 * @return true if the project and its current timeStamp exist, false otherwise
+	 */
+	public boolean load() {
+		List<Project> projects = manager.createQuery("SELECT p from Project p where p.projectID= :project", Project.class)
+				.setParameter("project", projectID).getResultList();
+		if (projects.isEmpty()) {
+			logger.error("There is no project {}", projectID);
+			return false;
+		}
+		timeStampID = projects.get(0).getTimeStampID();
+		TimeStamp timeStamp = timeStamp();
+		if (timeStamp == null) {
+			logger.error("Project {} has no timeStamp {}", projectID, timeStampID);
+			return false;
+		}
+		state = SimulationState.of(timeStamp, commodities(), industries(), socialClasses(), stocks());
+		state.setSink(new LogSink());
+		return true;
+	}
+
+	/**
+	 * Run the given number of periods
+	 *
+	 * @param periods
+	 *            the number of periods to run
+	 */
+	public void run(int periods) {
+		run(periods, null);
+	}
+
+	/**
+	 * Run the given number of periods, telling a listener at the end of each
+	 *
+	 * @param periods
+	 *            the number of periods to run
+	 * @param listener
+	 *            the listener, or null
+	 */
+	public void run(int periods, Listener listener) {
+		for (int i = 1; i <= periods; i++) {
+			state.onePeriod();
+			if (listener != null)
+				listener.periodEnded(this, i);
+		}
+	}
+
+	/**
+	 * Write the state back to the project's current timeStamp, in one transaction
+	 */
+	public void save() {
+		manager.getTransaction().begin();
+		state.writeBack(timeStamp(), commodities(), industries(), socialClasses(), stocks());
+		manager.getTransaction().commit();
+		logger.debug("Saved project {} at timeStamp {}", projectID, timeStampID);
+	}
+
+	/**
+	 * Close the persistence session of this context. The state remains available
+	 */
+	public void close() {
+		if (manager.getTransaction().isActive())
+			manager.getTransaction().rollback();
+		manager.close();
+	}
+
+	/**
+	 * Load, run and optionally save each of the given projects, in parallel, each in its own context.
+	 * A project that cannot be loaded is logged and left out of the result.
+	 *
+	 * @param projectIDs
+	 *            the projects to run
+	 * @param periods
+	 *            the number of periods to run each project for
+	 * @param save
+	 *            if true, each project's state is written back to its current timeStamp when it has finished
+	 * @param pool
+	 *            the pool that runs the projects, for example {@link ForkJoinPool#commonPool()}
+	 * @return the contexts of the projects that ran, in the order given, with their persistence sessions closed
+	 */
+	public static List<SimulationContext> runAll(List<Integer> projectIDs, int periods, boolean save, ForkJoinPool pool) {
+		return runAll(projectIDs, periods, save, pool, null);
+	}
+
+	/**
+	 * Load, run and optionally save each of the given projects, as {@link #runAll(List, int, boolean, ForkJoinPool)} does, telling a listener
+	 * when each project has been loaded and at the end of each of its periods
+	 *
+	 * @param projectIDs
+	 *            the projects to run
+	 * @param periods
+	 *            the number of periods to run each project for
+	 * @param save
+	 *            if true, each project's state is written back to its current timeStamp when it has finished
+	 * @param pool
+	 *            the pool that runs the projects
+	 * @param listener
+	 *            the listener, which is called on the threads of the pool, or null
+	 * @return the contexts of the projects that ran, in the order given, with their persistence sessions closed
+	 */
+	public static List<SimulationContext> runAll(List<Integer> projectIDs, int periods, boolean save, ForkJoinPool pool, Listener listener) {
+		List<ForkJoinTask<SimulationContext>> tasks = new ArrayList<ForkJoinTask<SimulationContext>>();
+		for (int projectID : projectIDs) {
+			tasks.add(pool.submit(() -> {
+				SimulationContext context = new SimulationContext(projectID);
+				try {
+					if (!context.load())
+						return null;
+					if (listener != null)
+						listener.periodEnded(context, 0);
+					context.run(periods, listener);
+					if (save)
+						context.save();
+					return context;
+				} finally {
+					context.close();
+				}
+			}));
+		}
+		List<SimulationContext> contexts = new ArrayList<SimulationContext>();
+		for (ForkJoinTask<SimulationContext> task : tasks) {
+			try {
+				SimulationContext context = task.join();
+				if (context != null)
+					contexts.add(context);
+			} catch (RuntimeException e) {
+				logger.error("A project could not be run because {}", e.getMessage());
+			}
+		}
+		return contexts;
+	}
+
+	/**
+	 * @return the projectID
+	 */
+	public int getProjectID() {
+		return projectID;
+	}
+
+	/**
+	 * @return the timeStamp from which the state was loaded, and to which it is saved
+	 */
+	public int getTimeStampID() {
+		return timeStampID;
+	}
+
+	/**
+	 * @return the state of this context, or null if it has not been loaded
+	 */
+	public SimulationState getState() {
+		return state;
+	}
+
+	private TimeStamp timeStamp() {
+		List<TimeStamp> timeStamps = manager
+				.createQuery("SELECT t FROM TimeStamp t where t.pk.projectID = :project and t.pk.timeStampID = :timeStamp", TimeStamp.class)
+				.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+		return timeStamps.isEmpty() ? null : timeStamps.get(0);
+	}
+
+	private List<Commodity> commodities() {
+		return manager
+				.createQuery("SELECT u FROM Commodity u where u.pk.projectID= :project and u.pk.timeStampID = :timeStamp", Commodity.class)
+				.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+	}
+
+	private List<Industry> industries() {
+		return manager
+				.createQuery("Select c from Industry c where c.pk.projectID = :project and c.pk.timeStampID = :timeStamp", Industry.class)
+				.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+	}
+
+	private List<SocialClass> socialClasses() {
+		return manager
+				.createQuery("SELECT c FROM SocialClass c where c.pk.projectID= :project and c.pk.timeStampID = :timeStamp ", SocialClass.class)
+				.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+	}
+
+	private List<Stock> stocks() {
+		return manager.createQuery("SELECT s FROM Stock s where s.pk.projectID= :project and s.pk.timeStampID = :timeStamp", Stock.class)
+				.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+	}
+}
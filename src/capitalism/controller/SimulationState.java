@@ -0,0 +1,1266 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
+import capitalism.model.TimeStamp;
+import capitalism.reporting.Dialogues;
+import capitalism.reporting.Reporter;
+import capitalism.utils.MathStuff;
+
+/**
+ * An in-memory copy of the state of one project at one timeStamp, held in dense arrays rather than in entities.
+ *
+ * Commodities, industries, social classes and stocks are each identified by an integer index, namely their position in the
+ * list returned by the corresponding all(projectID,timeStampID) query. Every relation that the command classes look up with a
+ * query (the money stock of an owner, the productive stocks of an industry, the sales stocks of a commodity and so on) is
+ * resolved once, when the state is loaded, into index tables.
+ *
+ * The phase methods ({@link #demand()}, {@link #constrain()}, {@link #trade()}, {@link #industriesProduce()}, {@link #prices()},
+ * {@link #classesReproduce()}, {@link #revenue()} and {@link #accumulate()}) reproduce the arithmetic of the command classes
+ * of the same name, including their rounding and the order in which they visit entities, so the results are identical.
+ * They do not report in detail and they do not create timeStamps. The command classes remain the reference implementation used
+ * by the interactive simulation; this class is for runs that only need to see the outcome, which can call {@link #onePeriod()}
+ * repeatedly and use {@link #writeBack(int)} when a timeStamp has to be persisted or shown.
+ *
+ * The few reports and alerts that a state makes go to the {@link Reporter} and to {@link Dialogues}, as those of the command classes do,
+ * unless it has been given a {@link Sink} of its own. A state that runs on a thread other than that of the simulation, as in a
+ * {@link SimulationContext}, should have one: the Reporter labels reports with the phase that the simulation is running, and an alert
+ * raises a dialogue.
+ */
+public class SimulationState {
+	private static final Logger logger = LogManager.getLogger("SimulationState");
+
+	/**
+	 * Receives the reports and alerts of a state, in place of the {@link Reporter} and {@link Dialogues}
+	 */
+	public interface Sink {
+		/**
+		 * @param level
+		 *            the level of the report, as for {@link Reporter#report(Logger, int, String, Object...)}
+		 * @param formatString
+		 *            the format of the report
+		 * @param args
+		 *            its arguments
+		 */
+		void report(int level, String formatString, Object... args);
+
+		/**
+		 * @param formatString
+		 *            the format of the alert
+		 * @param args
+		 *            its arguments
+		 */
+		void alert(String formatString, Object... args);
+	}
+
+	private final int projectID;
+	private Sink sink = null;
+
+	// parameters of the simulation, taken from the timeStamp that was loaded
+	private double melt;
+	private int period;
+	private Parameters.LABOUR_RESPONSE labourSupplyResponse;
+	private Parameters.PRICE_RESPONSE priceResponse;
+	private Parameters.MELT_RESPONSE meltResponse;
+	private boolean fullPricing;
+
+	// commodities
+	private int nCommodities;
+	private String[] commodityNames;
+	private Commodity.ORIGIN[] origin;
+	private Commodity.FUNCTION[] function;
+	private double[] turnoverTime;
+	private double[] unitValue;
+	private double[] unitPrice;
+	private double[] allocationShare;
+	private double[] commodityStockUsedUp;
+	private double[] stockProduced;
+	private double[] surplusProduct;
+
+	// industries
+	private int nIndustries;
+	private String[] industryNames;
+	private int[] industryCommodity;
+	private double[] output;
+	private double[] initialCapital;
+	private double[] persistedProfit;
+	private double[] growthRate;
+	private double[] productiveCapital;
+
+	// social classes
+	private int nClasses;
+	private String[] classNames;
+	private double[] size;
+	private double[] participationRatio;
+	private double[] revenue;
+
+	// stocks
+	private int nStocks;
+	private String[] stockOwners;
+	private int[] stockCommodity;
+	private Stock.STOCKTYPE[] stockType;
+	private double[] quantity;
+	private double[] value;
+	private double[] price;
+	private double[] replenishmentDemand;
+	private double[] expansionDemand;
+	private double[] productionCoefficient;
+	private double[] consumptionCoefficient;
+	private double[] stockUsedUp;
+
+	// index tables. A value of -1 means that the entity does not exist
+	private int[] industryMoney;
+	private int[] industrySales;
+	private int[][] industryProductive;
+	private int[] classMoney;
+	private int[] classSales;
+	private int[][] classConsumption;
+	private int[][] commodityStocks;
+	private int[][] commoditySales;
+	private int[][] commodityIndustries;
+	private int[] sourcesOfDemand;
+	private int[] productiveInputsByDisplayOrder;
+	private int[] consumerGoodsByDisplayOrder;
+	private int labourPowerOrigin;// the single socially-produced commodity, or -1
+	private int labourPowerNamed;// the commodity named 'Labour Power', or -1
+	private int capitalists;// the class named 'Capitalists', or -1
+
+	private SimulationState(int projectID) {
+		this.projectID = projectID;
+	}
+
+	/**
+	 * Make an independent copy of this state, which can be modified and run without affecting the original. The copy has the same {@link Sink}.
+	 * The names and index tables never change once a state is loaded, so the copy shares them; only the magnitudes are duplicated.
+	 *
+	 * @return the copy
+	 */
+	public SimulationState copy() {
+		SimulationState copy = new SimulationState(projectID);
+		copy.sink = sink;
+		copy.melt = melt;
+		copy.period = period;
+		copy.labourSupplyResponse = labourSupplyResponse;
+		copy.priceResponse = priceResponse;
+		copy.meltResponse = meltResponse;
+		copy.fullPricing = fullPricing;
+
+		copy.nCommodities = nCommodities;
+		copy.commodityNames = commodityNames;
+		copy.origin = origin;
+		copy.function = function;
+		copy.turnoverTime = turnoverTime.clone();
+		copy.unitValue = unitValue.clone();
+		copy.unitPrice = unitPrice.clone();
+		copy.allocationShare = allocationShare.clone();
+		copy.commodityStockUsedUp = commodityStockUsedUp.clone();
+		copy.stockProduced = stockProduced.clone();
+		copy.surplusProduct = surplusProduct.clone();
+
+		copy.nIndustries = nIndustries;
+		copy.industryNames = industryNames;
+		copy.industryCommodity = industryCommodity;
+		copy.output = output.clone();
+		copy.initialCapital = initialCapital.clone();
+		copy.persistedProfit = persistedProfit.clone();
+		copy.growthRate = growthRate.clone();
+		copy.productiveCapital = productiveCapital.clone();
+
+		copy.nClasses = nClasses;
+		copy.classNames = classNames;
+		copy.size = size.clone();
+		copy.participationRatio = participationRatio.clone();
+		copy.revenue = revenue.clone();
+
+		copy.nStocks = nStocks;
+		copy.stockOwners = stockOwners;
+		copy.stockCommodity = stockCommodity;
+		copy.stockType = stockType;
+		copy.quantity = quantity.clone();
+		copy.value = value.clone();
+		copy.price = price.clone();
+		copy.replenishmentDemand = replenishmentDemand.clone();
+		copy.expansionDemand = expansionDemand.clone();
+		copy.productionCoefficient = productionCoefficient.clone();
+		copy.consumptionCoefficient = consumptionCoefficient.clone();
+		copy.stockUsedUp = stockUsedUp.clone();
+
+		copy.industryMoney = industryMoney;
+		copy.industrySales = industrySales;
+		copy.industryProductive = industryProductive;
+		copy.classMoney = classMoney;
+		copy.classSales = classSales;
+		copy.classConsumption = classConsumption;
+		copy.commodityStocks = commodityStocks;
+		copy.commoditySales = commoditySales;
+		copy.commodityIndustries = commodityIndustries;
+		copy.sourcesOfDemand = sourcesOfDemand;
+		copy.productiveInputsByDisplayOrder = productiveInputsByDisplayOrder;
+		copy.consumerGoodsByDisplayOrder = consumerGoodsByDisplayOrder;
+		copy.labourPowerOrigin = labourPowerOrigin;
+		copy.labourPowerNamed = labourPowerNamed;
+		copy.capitalists = capitalists;
+		return copy;
+	}
+
+	/**
+	 * Load the state of the given project at the given timeStamp
+	 *
+	 * @param projectID
+	 *            the project
+	 * @param timeStampID
+	 *            the timeStamp
+	 * @return the state, or null if the timeStamp does not exist
+	 */
+	public static SimulationState load(int projectID, int timeStampID) {
+		TimeStamp timeStamp = TimeStamp.single(projectID, timeStampID);
+		if (timeStamp == null) {
+			logger.error("Cannot load project {} at timeStamp {}: no such timeStamp", projectID, timeStampID);
+			return null;
+		}
+		return of(timeStamp, Commodity.all(projectID, timeStampID), Industry.all(projectID, timeStampID),
+				SocialClass.all(projectID, timeStampID), Stock.all(projectID, timeStampID));
+	}
+
+	/**
+	 * Create the state from a complete set of entities, which need not be managed. This is the way in for callers that read the entities
+	 * through their own persistence session (see {@link SimulationContext}) or that never stored them at all.
+	 * The entities are only read; the state keeps no reference to them.
+	 *
+	 * @param timeStamp
+	 *            the timeStamp, which supplies the project, the melt, the period and the response parameters
+	 * @param commodities
+	 *            the commodities at this timeStamp
+	 * @param industries
+	 *            the industries at this timeStamp
+	 * @param socialClasses
+	 *            the social classes at this timeStamp
+	 * @param stocks
+	 *            the stocks at this timeStamp
+	 * @return the state
+	 */
+	public static SimulationState of(TimeStamp timeStamp, List<Commodity> commodities, List<Industry> industries, List<SocialClass> socialClasses,
+			List<Stock> stocks) {
+		SimulationState state = new SimulationState(timeStamp.getProjectID());
+		state.melt = timeStamp.getMelt();
+		state.period = timeStamp.getPeriod();
+		state.labourSupplyResponse = timeStamp.getLabourSupplyResponse();
+		state.priceResponse = timeStamp.getPriceResponse();
+		state.meltResponse = timeStamp.getMeltResponse();
+		state.fullPricing = Parameters.isFullPricing();
+		state.loadEntities(commodities, industries, socialClasses, stocks);
+		logger.debug("Loaded project {} at timeStamp {}: {} commodities, {} industries, {} classes, {} stocks", state.projectID,
+				timeStamp.getTimeStampID(), state.nCommodities, state.nIndustries, state.nClasses, state.nStocks);
+		return state;
+	}
+
+	private void loadEntities(List<Commodity> commodities, List<Industry> industries, List<SocialClass> socialClasses, List<Stock> stocks) {
+		Map<String, Integer> commodityIndex = new HashMap<String, Integer>();
+		Map<String, Integer> industryIndex = new HashMap<String, Integer>();
+		Map<String, Integer> classIndex = new HashMap<String, Integer>();
+
+		nCommodities = commodities.size();
+		commodityNames = new String[nCommodities];
+		origin = new Commodity.ORIGIN[nCommodities];
+		function = new Commodity.FUNCTION[nCommodities];
+		turnoverTime = new double[nCommodities];
+		unitValue = new double[nCommodities];
+		unitPrice = new double[nCommodities];
+		allocationShare = new double[nCommodities];
+		commodityStockUsedUp = new double[nCommodities];
+		stockProduced = new double[nCommodities];
+		surplusProduct = new double[nCommodities];
+		int[] displayOrder = new int[nCommodities];
+		labourPowerOrigin = -1;
+		labourPowerNamed = -1;
+		int sociallyProduced = 0;
+		for (int c = 0; c < nCommodities; c++) {
+			Commodity commodity = commodities.get(c);
+			commodityNames[c] = commodity.name();
+			origin[c] = commodity.getOrigin();
+			function[c] = commodity.getFunction();
+			turnoverTime[c] = commodity.getTurnoverTime();
+			unitValue[c] = commodity.getUnitValue();
+			unitPrice[c] = commodity.getUnitPrice();
+			allocationShare[c] = commodity.getAllocationShare();
+			commodityStockUsedUp[c] = commodity.getStockUsedUp();
+			stockProduced[c] = commodity.getStockProduced();
+			surplusProduct[c] = commodity.getSurplusProduct();
+			displayOrder[c] = commodity.getDisplayOrder();
+			commodityIndex.put(commodityNames[c], c);
+			if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED) {
+				labourPowerOrigin = c;
+				sociallyProduced++;
+			}
+			if ("Labour Power".equals(commodityNames[c]))
+				labourPowerNamed = c;
+		}
+		// Commodity.labourPower() expects exactly one socially-produced commodity
+		if (sociallyProduced != 1)
+			labourPowerOrigin = -1;
+		productiveInputsByDisplayOrder = byDisplayOrder(Commodity.FUNCTION.PRODUCTIVE_INPUT, displayOrder);
+		consumerGoodsByDisplayOrder = byDisplayOrder(Commodity.FUNCTION.CONSUMER_GOOD, displayOrder);
+
+		nIndustries = industries.size();
+		industryNames = new String[nIndustries];
+		industryCommodity = new int[nIndustries];
+		output = new double[nIndustries];
+		initialCapital = new double[nIndustries];
+		persistedProfit = new double[nIndustries];
+		growthRate = new double[nIndustries];
+		productiveCapital = new double[nIndustries];
+		List<List<Integer>> industriesOfCommodity = lists(nCommodities);
+		for (int i = 0; i < nIndustries; i++) {
+			Industry industry = industries.get(i);
+			industryNames[i] = industry.name();
+			industryCommodity[i] = indexOf(commodityIndex, industry.getCommodityName());
+			output[i] = industry.getOutput();
+			initialCapital[i] = industry.initialCapital();
+			persistedProfit[i] = industry.profit();
+			growthRate[i] = industry.getGrowthRate();
+			productiveCapital[i] = industry.productiveCapital();
+			industryIndex.put(industryNames[i], i);
+			if (industryCommodity[i] >= 0)
+				industriesOfCommodity.get(industryCommodity[i]).add(i);
+		}
+
+		nClasses = socialClasses.size();
+		classNames = new String[nClasses];
+		size = new double[nClasses];
+		participationRatio = new double[nClasses];
+		revenue = new double[nClasses];
+		capitalists = -1;
+		for (int k = 0; k < nClasses; k++) {
+			SocialClass socialClass = socialClasses.get(k);
+			classNames[k] = socialClass.name();
+			size[k] = socialClass.getSize();
+			participationRatio[k] = socialClass.getparticipationRatio();
+			revenue[k] = socialClass.getRevenue();
+			classIndex.put(classNames[k], k);
+			if ("Capitalists".equals(classNames[k]))
+				capitalists = k;
+		}
+
+		nStocks = stocks.size();
+		stockOwners = new String[nStocks];
+		stockCommodity = new int[nStocks];
+		stockType = new Stock.STOCKTYPE[nStocks];
+		quantity = new double[nStocks];
+		value = new double[nStocks];
+		price = new double[nStocks];
+		replenishmentDemand = new double[nStocks];
+		expansionDemand = new double[nStocks];
+		productionCoefficient = new double[nStocks];
+		consumptionCoefficient = new double[nStocks];
+		stockUsedUp = new double[nStocks];
+		industryMoney = filled(nIndustries);
+		industrySales = filled(nIndustries);
+		classMoney = filled(nClasses);
+		classSales = filled(nClasses);
+		List<List<Integer>> productive = lists(nIndustries);
+		List<List<Integer>> consumption = lists(nClasses);
+		List<List<Integer>> stocksOfCommodity = lists(nCommodities);
+		List<List<Integer>> salesOfCommodity = lists(nCommodities);
+		List<Integer> demandSources = new ArrayList<Integer>();
+		for (int s = 0; s < nStocks; s++) {
+			Stock stock = stocks.get(s);
+			stockOwners[s] = stock.getOwner();
+			stockCommodity[s] = indexOf(commodityIndex, stock.name());
+			stockType[s] = stockTypeOf(stock.getStockType());
+			quantity[s] = stock.getQuantity();
+			value[s] = stock.getValue();
+			price[s] = stock.getPrice();
+			replenishmentDemand[s] = stock.getReplenishmentDemand();
+			expansionDemand[s] = stock.getExpansionDemand();
+			productionCoefficient[s] = stock.getProductionCoefficient();
+			consumptionCoefficient[s] = stock.getConsumptionCoefficient();
+			stockUsedUp[s] = stock.getStockUsedUp();
+			if (stockType[s] == null) {
+				logger.error("Stock {} owned by {} has an unknown type {}", stock.name(), stockOwners[s], stock.getStockType());
+				continue;
+			}
+			int c = stockCommodity[s];
+			if (c >= 0) {
+				stocksOfCommodity.get(c).add(s);
+				if (stockType[s] == Stock.STOCKTYPE.SALES)
+					salesOfCommodity.get(c).add(s);
+			}
+			if (stockType[s] == Stock.STOCKTYPE.PRODUCTIVE || stockType[s] == Stock.STOCKTYPE.CONSUMPTION)
+				demandSources.add(s);
+			Integer i = industryIndex.get(stockOwners[s]);
+			Integer k = classIndex.get(stockOwners[s]);
+			switch (stockType[s]) {
+			case MONEY:
+				if (i != null)
+					industryMoney[i] = s;
+				if (k != null)
+					classMoney[k] = s;
+				break;
+			case SALES:
+				if (i != null && c >= 0 && c == industryCommodity[i])
+					industrySales[i] = s;
+				if (k != null && c >= 0 && c == labourPowerNamed)
+					classSales[k] = s;
+				break;
+			case PRODUCTIVE:
+				if (i != null)
+					productive.get(i).add(s);
+				break;
+			case CONSUMPTION:
+				if (k != null)
+					consumption.get(k).add(s);
+				break;
+			}
+		}
+		industryProductive = arrays(productive);
+		classConsumption = arrays(consumption);
+		commodityStocks = arrays(stocksOfCommodity);
+		commoditySales = arrays(salesOfCommodity);
+		commodityIndustries = arrays(industriesOfCommodity);
+		sourcesOfDemand = array(demandSources);
+	}
+
+	/**
+	 * Execute one whole period, in the same sequence as {@link capitalism.controller.command.OnePeriod}
+	 */
+	public void onePeriod() {
+		demand();
+		constrain();
+		trade();
+		industriesProduce();
+		prices();
+		classesReproduce();
+		revenue();
+		accumulate();
+	}
+
+	/**
+	 * The Demand phase. See {@link capitalism.controller.command.Demand}
+	 */
+	public void demand() {
+		for (int s = 0; s < nStocks; s++)
+			replenishmentDemand[s] = 0.0;
+		for (int i = 0; i < nIndustries; i++) {
+			if (industryMoney[i] < 0 || industrySales[i] < 0) {
+				alert("Industry [%s] has no money stock or no sales stock. This is a data error", industryNames[i]);
+				continue;
+			}
+			double moneyAvailable = quantity[industryMoney[i]];
+			double desiredOutput = output[i];
+			computeDemand(i, 0);
+			double totalCost = replenishmentCosts(i);
+			double salesPrice = price[industrySales[i]];
+			double resources = moneyAvailable + salesPrice;
+			if (totalCost < resources + MathStuff.epsilon) {
+				output[i] = MathStuff.round(desiredOutput);
+			} else {
+				desiredOutput = desiredOutput * resources / totalCost;
+				output[i] = MathStuff.round(desiredOutput);
+				computeDemand(i, 0);
+				report(2, "Output of industry %s was constrained to %.0f by its financial resources", industryNames[i], output[i]);
+			}
+		}
+		registerLabourResponse();
+		for (int k = 0; k < nClasses; k++) {
+			for (int s : classConsumption[k])
+				replenishmentDemand[s] = MathStuff.round(revenue[k] * consumptionCoefficient[s]);
+		}
+	}
+
+	/**
+	 * Adjust the supply of labour power, and hence the revenue of the classes, as in {@link capitalism.controller.command.Demand}
+	 */
+	private void registerLabourResponse() {
+		if (labourPowerOrigin < 0)
+			return;
+		double demandForLabourPower = totalReplenishmentDemand(labourPowerOrigin);
+		double supplyOfLabourPower = totalSupply(labourPowerOrigin);
+		switch (labourSupplyResponse) {
+		case FLEXIBLE:
+			if (demandForLabourPower < supplyOfLabourPower)
+				return;
+			double adjustmentFactor = demandForLabourPower / supplyOfLabourPower;
+			if (labourPowerNamed >= 0) {
+				for (int s : commoditySales[labourPowerNamed])
+					modifyTo(s, quantity[s] * adjustmentFactor);
+			}
+			break;
+		case FIXED:
+			break;
+		}
+		for (int k = 0; k < nClasses; k++) {
+			double wage = classSales[k] < 0 ? 0 : price[classSales[k]];
+			setRevenue(k, wage + revenue[k]);
+		}
+	}
+
+	/**
+	 * The Constrain phase. See {@link capitalism.controller.command.Constrain}
+	 */
+	public void constrain() {
+		for (int c = 0; c < nCommodities; c++) {
+			double share = totalSupply(c) / totalReplenishmentDemand(c);
+			allocationShare[c] = share > 1 ? 1 : share;
+		}
+		for (int s : sourcesOfDemand)
+			replenishmentDemand[s] = MathStuff.round(replenishmentDemand[s] * allocationShare[stockCommodity[s]]);
+		for (int i = 0; i < nIndustries; i++) {
+			double desiredOutput = output[i];
+			for (int s : industryProductive[i]) {
+				double coefficient = productionCoefficient[s];
+				double available = quantity[s] + replenishmentDemand[s];
+				if (coefficient > 0) {
+					double possibleOutput = available / coefficient;
+					if (possibleOutput < desiredOutput - MathStuff.epsilon)
+						desiredOutput = possibleOutput;
+				}
+			}
+			output[i] = MathStuff.round(desiredOutput);
+		}
+	}
+
+	/**
+	 * The Trade phase. See {@link capitalism.controller.command.Trade}
+	 */
+	public void trade() {
+		for (int i = 0; i < nIndustries; i++) {
+			int buyerMoney = industryMoney[i];
+			for (int s : industryProductive[i]) {
+				int c = stockCommodity[s];
+				double quantityTransferred = replenishmentDemand[s];
+				if (quantityTransferred <= 0 || c < 0)
+					continue;
+				double commodityUnitPrice = unitPrice[c];
+				if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED) {
+					int sellerMoney = -1;
+					int sellerSales = -1;
+					for (int k = 0; k < nClasses; k++) {
+						if (classSales[k] >= 0) {
+							sellerMoney = classMoney[k];
+							sellerSales = classSales[k];
+						}
+					}
+					if (sellerSales < 0) {
+						alert("Nobody is selling labour Power");
+						continue;
+					}
+					if (transfer(sellerSales, s, quantityTransferred))
+						transfer(buyerMoney, sellerMoney, quantityTransferred * commodityUnitPrice);
+				} else {
+					for (int j : commodityIndustries[c]) {
+						int sellerSales = industrySales[j];
+						if (sellerSales < 0) {
+							alert("Industry [%s] has no sales stock. This is a data error", industryNames[j]);
+							continue;
+						}
+						double share = quantity[sellerSales] / totalSupply(c);
+						double quantitySold = quantityTransferred * share;
+						if (transfer(sellerSales, s, quantitySold))
+							transfer(buyerMoney, industryMoney[j], quantitySold * commodityUnitPrice);
+					}
+				}
+			}
+		}
+		for (int k = 0; k < nClasses; k++) {
+			int buyerMoney = classMoney[k];
+			for (int c : consumerGoodsByDisplayOrder) {
+				if (commodityIndustries[c].length == 0) {
+					alert("Nobody produces the consumer good %s", commodityNames[c]);
+					break;
+				}
+				int seller = commodityIndustries[c][0];
+				int sellerSales = industrySales[seller];
+				int sellerMoney = industryMoney[seller];
+				int consumptionStock = consumptionStockOf(k, c);
+				if (buyerMoney < 0 || sellerSales < 0 || sellerMoney < 0 || consumptionStock < 0) {
+					alert("A stock required by [%s] to meet its needs is missing", classNames[k]);
+					break;
+				}
+				double quantityAdded = replenishmentDemand[consumptionStock];
+				double maximumQuantityAdded = quantity[buyerMoney] / unitPrice[c];
+				if (revenue[k] > quantity[buyerMoney] + MathStuff.epsilon) {
+					alert("The revenue of [%s] exceeds its money. This is a programme error", classNames[k]);
+					break;
+				}
+				if (maximumQuantityAdded < quantityAdded - MathStuff.epsilon) {
+					alert("The social class [%s] cannot afford the consumer goods %s it needs", classNames[k], commodityNames[c]);
+					break;
+				}
+				if (transfer(sellerSales, consumptionStock, quantityAdded))
+					transfer(buyerMoney, sellerMoney, quantityAdded * unitPrice[c]);
+				setRevenue(k, revenue[k] - quantityAdded * unitPrice[c]);
+			}
+		}
+	}
+
+	/**
+	 * The IndustriesProduce phase. See {@link capitalism.controller.command.IndustriesProduce}
+	 */
+	public void industriesProduce() {
+		for (int c = 0; c < nCommodities; c++) {
+			if (origin[c] == Commodity.ORIGIN.INDUSTRIALLY_PRODUCED) {
+				commodityStockUsedUp[c] = 0;
+				stockProduced[c] = 0;
+			}
+		}
+		for (int i = 0; i < nIndustries; i++) {
+			double capital = 0;
+			for (int s : industryProductive[i])
+				capital += price[s];
+			capital += industrySales[i] < 0 ? Float.NaN : price[industrySales[i]];
+			productiveCapital[i] = capital;
+		}
+		for (int i = 0; i < nIndustries; i++) {
+			int salesStock = industrySales[i];
+			int outputCommodity = industryCommodity[i];
+			double industryOutput = output[i];
+			double intrinsicValueAdded = 0;
+			for (int s : industryProductive[i]) {
+				int c = stockCommodity[s];
+				double used = industryOutput * productionCoefficient[s];
+				if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED) {
+					intrinsicValueAdded += used;
+				} else {
+					double intrinsicStockUsedUp = used * unitPrice[outputCommodity] / melt;
+					intrinsicValueAdded += intrinsicStockUsedUp;
+				}
+				if (used > 0) {
+					commodityStockUsedUp[c] = MathStuff.round(commodityStockUsedUp[c] + used);
+					modifyBy(s, -used);
+					stockUsedUp[s] += used;
+				}
+			}
+			if (salesStock >= 0) {
+				double oldValue = value[salesStock];
+				modifyBy(salesStock, industryOutput);
+				value[salesStock] = MathStuff.round(oldValue + intrinsicValueAdded * melt);
+			} else {
+				alert("Industry %s has no sales stock", industryNames[i]);
+			}
+			stockProduced[outputCommodity] += industryOutput;
+		}
+		for (int c = 0; c < nCommodities; c++) {
+			if (origin[c] == Commodity.ORIGIN.INDUSTRIALLY_PRODUCED)
+				surplusProduct[c] = stockProduced[c] - commodityStockUsedUp[c];
+		}
+		for (int i = 0; i < nIndustries; i++)
+			persistedProfit[i] = currentCapital(i) - initialCapital[i];
+	}
+
+	/**
+	 * The Prices phase. See {@link capitalism.controller.command.Prices}
+	 */
+	public void prices() {
+		switch (priceResponse) {
+		case VALUES:
+			break;
+		case DYNAMIC:
+			alert("Dynamic price adjustment not available yet, sorry");
+			break;
+		case EQUALIZED:
+			for (int c = 0; c < nCommodities; c++) {
+				if (origin[c] != Commodity.ORIGIN.INDUSTRIALLY_PRODUCED)
+					continue;
+				double profit = 0;
+				double capital = 0;
+				for (int i : commodityIndustries[c])
+					profit += persistedProfit[i];
+				for (int i : commodityIndustries[c])
+					capital += productiveCapital[i];
+				double totalPrice = capital * (1 + profitRate());
+				double totalValue = capital + profit;
+				double priceValueRatio = totalPrice / totalValue;
+				unitPrice[c] = MathStuff.round(priceValueRatio * unitValue[c]);
+			}
+			break;
+		default:
+			break;
+		}
+		double adjustmentFactor = totalPrice() / totalValue();
+		if (MathStuff.equals(adjustmentFactor, 1)) {
+			if (meltResponse == Parameters.MELT_RESPONSE.PRICE_DRIVEN)
+				melt = melt * adjustmentFactor;
+		}
+		reCalculateStockTotalValuesAndPrices();
+	}
+
+	/**
+	 * The ClassesReproduce phase. See {@link capitalism.controller.command.ClassesReproduce}.
+	 * The consistency checks of the command class are not repeated here.
+	 */
+	public void classesReproduce() {
+		for (int k = 0; k < nClasses; k++) {
+			for (int s : classConsumption[k]) {
+				double quantityConsumed = quantity[s];
+				modifyBy(s, -quantityConsumed);
+				stockUsedUp[s] += quantityConsumed;
+				commodityStockUsedUp[stockCommodity[s]] += quantityConsumed;
+			}
+			int salesStock = classSales[k];
+			if (salesStock >= 0) {
+				double existingLabourPower = quantity[salesStock];
+				double newLabourPower = size[k] * participationRatio[k] / turnoverTime[stockCommodity[salesStock]];
+				double extraLabourPower = newLabourPower - existingLabourPower;
+				if (extraLabourPower > 0)
+					modifyBy(salesStock, extraLabourPower);
+			}
+		}
+		for (int c = 0; c < nCommodities; c++) {
+			if (function[c] == Commodity.FUNCTION.MONEY)
+				continue;
+			double totalQuantity = 0;
+			double totalValue = 0;
+			for (int s : commodityStocks[c])
+				totalQuantity += quantity[s];
+			for (int s : commodityStocks[c])
+				totalValue += value[s];
+			unitValue[c] = MathStuff.round(totalValue / totalQuantity);
+		}
+		reCalculateStockTotalValuesAndPrices();
+	}
+
+	/**
+	 * The Revenue phase. See {@link capitalism.controller.command.Revenue}
+	 */
+	public void revenue() {
+		if (capitalists < 0) {
+			alert("There is no class called Capitalists to receive the profits");
+			return;
+		}
+		int recipient = classMoney[capitalists];
+		double capitalistRevenue = 0.0;
+		for (int i = 0; i < nIndustries; i++) {
+			double profit = persistedProfit[i];
+			modifyBy(recipient, profit);
+			modifyBy(industryMoney[i], -profit);
+			capitalistRevenue += profit;
+		}
+		setRevenue(capitalists, capitalistRevenue);
+	}
+
+	/**
+	 * The Accumulate phase. See {@link capitalism.controller.command.Accumulate}. Ends the period, as
+	 * {@link Simulation#advanceOnePeriod()} does, by moving on the period and resetting the initial capital of every industry.
+	 */
+	public void accumulate() {
+		for (int c : productiveInputsByDisplayOrder) {
+			if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED)
+				continue;
+			for (int i : commodityIndustries[c])
+				expand(i, growthRate[i]);
+		}
+		for (int c : consumerGoodsByDisplayOrder) {
+			if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED)
+				continue;
+			for (int i : commodityIndustries[c])
+				expand(i, computeGrowthRate(i));
+		}
+		period++;
+		for (int i = 0; i < nIndustries; i++)
+			initialCapital[i] = currentCapital(i);
+		for (int i = 0; i < nIndustries; i++)
+			persistedProfit[i] = currentCapital(i) - initialCapital[i];
+	}
+
+	private void expand(int i, double rate) {
+		growthRate[i] = rate;
+		double extraOutput = output[i] * rate;
+		computeDemand(i, extraOutput);
+		double costOfExpansion = 0;
+		for (int s : industryProductive[i])
+			costOfExpansion += expansionDemand[s] * unitPrice[stockCommodity[s]];
+		if (capitalists >= 0) {
+			transfer(classMoney[capitalists], industryMoney[i], costOfExpansion);
+			setRevenue(capitalists, revenue[capitalists] - costOfExpansion);
+		}
+		output[i] = MathStuff.round(output[i] + extraOutput);
+		for (int s : industryProductive[i]) {
+			int c = stockCommodity[s];
+			surplusProduct[c] = surplusProduct[c] - expansionDemand[s];
+		}
+	}
+
+	private double computeGrowthRate(int i) {
+		double rate = Double.MAX_VALUE;
+		for (int s : industryProductive[i]) {
+			int c = stockCommodity[s];
+			if (origin[c] == Commodity.ORIGIN.SOCIALLY_PRODUCED)
+				continue;
+			double requirement = productionCoefficient[s] * output[i];
+			double possibleRate = surplusProduct[c] / requirement;
+			if (possibleRate < rate)
+				rate = possibleRate;
+		}
+		// as in Industry.computeGrowthRate, an industry none of whose inputs limits its growth (because it has none, or uses none of them) does not grow
+		if (rate == Double.MAX_VALUE) {
+			alert("Industry %s seems to have no viable growth rate", industryNames[i]);
+			rate = 0;
+		}
+		growthRate[i] = rate;
+		return rate;
+	}
+
+	/**
+	 * Copy this state onto the entities of the given timeStamp, which must exist and be complete (normally the current timeStamp of the project).
+	 * Entities are matched with the state by their snapshot key, so the timeStamp need not be the one that was loaded.
+	 * Like the command classes, this modifies managed entities; the changes are persisted by the enclosing transaction.
+	 *
+	 * @param timeStampID
+	 *            the timeStamp whose entities will receive the state
+	 */
+	public void writeBack(int timeStampID) {
+		TimeStamp timeStamp = TimeStamp.single(projectID, timeStampID);
+		if (timeStamp == null) {
+			logger.error("Cannot write back to project {} at timeStamp {}: no such timeStamp", projectID, timeStampID);
+			return;
+		}
+		writeBack(timeStamp, Commodity.all(projectID, timeStampID), Industry.all(projectID, timeStampID), SocialClass.all(projectID, timeStampID),
+				Stock.all(projectID, timeStampID));
+	}
+
+	/**
+	 * Copy this state onto the given entities, matching them by their snapshot key. Entities that have no counterpart in the state are left alone.
+	 *
+	 * @param timeStamp
+	 *            receives the melt and the period
+	 * @param commodities
+	 *            the commodities to receive the state
+	 * @param industries
+	 *            the industries to receive the state
+	 * @param socialClasses
+	 *            the social classes to receive the state
+	 * @param stocks
+	 *            the stocks to receive the state
+	 */
+	public void writeBack(TimeStamp timeStamp, List<Commodity> commodities, List<Industry> industries, List<SocialClass> socialClasses,
+			List<Stock> stocks) {
+		timeStamp.setMelt(melt);
+		timeStamp.setPeriod(period);
+		Map<String, Integer> commodityIndex = index(commodityNames);
+		for (Commodity commodity : commodities) {
+			Integer c = commodityIndex.get(commodity.name());
+			if (c == null)
+				continue;
+			commodity.setUnitValue(unitValue[c]);
+			commodity.setUnitPrice(unitPrice[c]);
+			commodity.setAllocationShare(allocationShare[c]);
+			commodity.setStockUsedUp(commodityStockUsedUp[c]);
+			commodity.setStockProduced(stockProduced[c]);
+			commodity.setSurplusProduct(surplusProduct[c]);
+		}
+		Map<String, Integer> industryIndex = index(industryNames);
+		for (Industry industry : industries) {
+			Integer i = industryIndex.get(industry.name());
+			if (i == null)
+				continue;
+			industry.setOutput(output[i]);
+			industry.setInitialCapital(initialCapital[i]);
+			industry.setPersistedProfit(persistedProfit[i]);
+			industry.setGrowthRate(growthRate[i]);
+			industry.setProductiveCapital(productiveCapital[i]);
+		}
+		Map<String, Integer> classIndex = index(classNames);
+		for (SocialClass socialClass : socialClasses) {
+			Integer k = classIndex.get(socialClass.name());
+			if (k == null)
+				continue;
+			socialClass.setRevenue(revenue[k]);
+		}
+		Map<String, Integer> stockIndex = new HashMap<String, Integer>();
+		for (int s = 0; s < nStocks; s++)
+			stockIndex.put(stockKey(stockOwners[s], stockCommodity[s] < 0 ? null : commodityNames[stockCommodity[s]], stockType[s]), s);
+		for (Stock stock : stocks) {
+			Integer s = stockIndex.get(stockKey(stock.getOwner(), stock.name(), stockTypeOf(stock.getStockType())));
+			if (s == null)
+				continue;
+			stock.setQuantity(quantity[s]);
+			stock.setValue(value[s]);
+			stock.setPrice(price[s]);
+			stock.setReplenishmentDemand(replenishmentDemand[s]);
+			stock.setExpansionDemand(expansionDemand[s]);
+			stock.setStockUsedUp(stockUsedUp[s]);
+		}
+	}
+
+	/**
+	 * @return the melt
+	 */
+	public double getMelt() {
+		return melt;
+	}
+
+	/**
+	 * @return the period
+	 */
+	public int getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @param meltResponse
+	 *            the meltResponse to set
+	 */
+	public void setMeltResponse(Parameters.MELT_RESPONSE meltResponse) {
+		this.meltResponse = meltResponse;
+	}
+
+	/**
+	 * @param priceResponse
+	 *            the priceResponse to set
+	 */
+	public void setPriceResponse(Parameters.PRICE_RESPONSE priceResponse) {
+		this.priceResponse = priceResponse;
+	}
+
+	/**
+	 * @param labourSupplyResponse
+	 *            the labourSupplyResponse to set
+	 */
+	public void setLabourSupplyResponse(Parameters.LABOUR_RESPONSE labourSupplyResponse) {
+		this.labourSupplyResponse = labourSupplyResponse;
+	}
+
+	/**
+	 * Set the production coefficient of the productive stock of a given commodity owned by a given industry
+	 *
+	 * @param industryName
+	 *            the industry that owns the stock
+	 * @param commodityName
+	 *            the commodity of the stock
+	 * @param coefficient
+	 *            the new production coefficient
+	 * @return false if the industry has no such productive stock
+	 */
+	public boolean setProductionCoefficient(String industryName, String commodityName, double coefficient) {
+		for (int i = 0; i < nIndustries; i++) {
+			if (!industryNames[i].equals(industryName))
+				continue;
+			for (int s : industryProductive[i]) {
+				if (stockCommodity[s] >= 0 && commodityNames[stockCommodity[s]].equals(commodityName)) {
+					productionCoefficient[s] = coefficient;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the projectID
+	 */
+	public int getProjectID() {
+		return projectID;
+	}
+
+	/**
+	 * @return the number of commodities
+	 */
+	public int commodityCount() {
+		return nCommodities;
+	}
+
+	/**
+	 * @param c
+	 *            the index of a commodity
+	 * @return the name of the commodity
+	 */
+	public String commodityName(int c) {
+		return commodityNames[c];
+	}
+
+	/**
+	 * @param c
+	 *            the index of a commodity
+	 * @return the unit value of the commodity
+	 */
+	public double unitValue(int c) {
+		return unitValue[c];
+	}
+
+	/**
+	 * @param c
+	 *            the index of a commodity
+	 * @return the unit price of the commodity
+	 */
+	public double unitPrice(int c) {
+		return unitPrice[c];
+	}
+
+	/**
+	 * @return the number of industries
+	 */
+	public int industryCount() {
+		return nIndustries;
+	}
+
+	/**
+	 * @param i
+	 *            the index of an industry
+	 * @return the name of the industry
+	 */
+	public String industryName(int i) {
+		return industryNames[i];
+	}
+
+	/**
+	 * @param i
+	 *            the index of an industry
+	 * @return the output of the industry
+	 */
+	public double output(int i) {
+		return output[i];
+	}
+
+	// the helpers below reproduce the arithmetic of the entity methods of the same name
+
+	private void computeDemand(int i, double extraOutput) {
+		for (int s : industryProductive[i]) {
+			replenishmentDemand[s] = MathStuff.round(output[i] * productionCoefficient[s]);
+			expansionDemand[s] = extraOutput * productionCoefficient[s];
+		}
+	}
+
+	private double replenishmentCosts(int i) {
+		double cost = 0;
+		for (int s : industryProductive[i])
+			cost += replenishmentDemand[s] * unitPrice[stockCommodity[s]];
+		return cost;
+	}
+
+	private double currentCapital(int i) {
+		double moneyPrice = industryMoney[i] < 0 ? Float.NaN : price[industryMoney[i]];
+		double salesPrice = industrySales[i] < 0 ? Float.NaN : price[industrySales[i]];
+		double productivePrice = 0;
+		for (int s : industryProductive[i])
+			productivePrice += price[s];
+		return moneyPrice + salesPrice + productivePrice;
+	}
+
+	private double totalSupply(int c) {
+		double supply = 0.0;
+		for (int s : commoditySales[c])
+			supply += quantity[s];
+		return supply;
+	}
+
+	private double totalReplenishmentDemand(int c) {
+		double demand = 0.0;
+		for (int s : commodityStocks[c])
+			demand += replenishmentDemand[s];
+		return demand;
+	}
+
+	/**
+	 * @return the profit rate for the whole economy, as {@link TimeStamp#profitRate()} computes it
+	 */
+	public double profitRate() {
+		double capital = 0;
+		for (int i = 0; i < nIndustries; i++)
+			capital += productiveCapital[i];
+		if (MathStuff.round(capital) == 0)
+			return Double.NaN;
+		double profit = 0.0;
+		for (int c = 0; c < nCommodities; c++) {
+			double commodityProfit = 0;
+			for (int i : commodityIndustries[c])
+				commodityProfit += persistedProfit[i];
+			profit += commodityProfit;
+		}
+		return profit / capital;
+	}
+
+	/**
+	 * @return the total price in the economy, as {@link TimeStamp#totalPrice()} computes it
+	 */
+	public double totalPrice() {
+		double total = 0;
+		for (int s = 0; s < nStocks; s++) {
+			if (stockType[s] != Stock.STOCKTYPE.MONEY || fullPricing)
+				total += price[s];
+		}
+		return total;
+	}
+
+	/**
+	 * @return the total value in the economy, as {@link TimeStamp#totalValue()} computes it
+	 */
+	public double totalValue() {
+		double total = 0;
+		for (int s = 0; s < nStocks; s++) {
+			if (stockType[s] != Stock.STOCKTYPE.MONEY || fullPricing)
+				total += value[s];
+		}
+		return total;
+	}
+
+	private int consumptionStockOf(int k, int c) {
+		for (int s : classConsumption[k]) {
+			if (stockCommodity[s] == c)
+				return s;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param sink
+	 *            where the reports and alerts of this state are to go, or null for the {@link Reporter} and {@link Dialogues}
+	 */
+	public void setSink(Sink sink) {
+		this.sink = sink;
+	}
+
+	private void report(int level, String formatString, Object... args) {
+		if (sink == null)
+			Reporter.report(logger, level, formatString, args);
+		else
+			sink.report(level, formatString, args);
+	}
+
+	private void alert(String formatString, Object... args) {
+		if (sink == null)
+			Dialogues.alert(logger, formatString, args);
+		else
+			sink.alert(formatString, args);
+	}
+
+	private void setRevenue(int k, double newRevenue) {
+		if (newRevenue < 0) {
+			alert(
+					"Capitalist revenue will fall below zero if $%.0f is deducted from it. This is probably a programme error. Contact the developer", newRevenue);
+			return;
+		}
+		revenue[k] = newRevenue;
+	}
+
+	private void modifyBy(int s, double extraQuantity) {
+		int c = stockCommodity[s];
+		quantity[s] = MathStuff.round(quantity[s] + extraQuantity);
+		value[s] = MathStuff.round(value[s] + extraQuantity * unitValue[c]);
+		price[s] = MathStuff.round(price[s] + extraQuantity * unitPrice[c]);
+	}
+
+	private void modifyTo(int s, double newQuantity) {
+		int c = stockCommodity[s];
+		quantity[s] = MathStuff.round(newQuantity);
+		value[s] = MathStuff.round(newQuantity * unitValue[c]);
+		price[s] = MathStuff.round(newQuantity * unitPrice[c]);
+	}
+
+	/**
+	 * Transfer a quantity from one stock to another, as {@link Stock#transferStock(Stock, double)} does.
+	 *
+	 * @return false if either stock does not exist, in which case nothing is transferred
+	 */
+	private boolean transfer(int from, int to, double quantityTransferred) {
+		if (quantityTransferred == 0)
+			return true;
+		if (from < 0 || to < 0) {
+			alert("A stock that should take part in a transfer of %.0f does not exist", quantityTransferred);
+			return false;
+		}
+		modifyBy(to, quantityTransferred);
+		modifyBy(from, -quantityTransferred);
+		return true;
+	}
+
+	private void reCalculateStockTotalValuesAndPrices() {
+		for (int s = 0; s < nStocks; s++) {
+			int c = stockCommodity[s];
+			if (c < 0)
+				continue;
+			price[s] = quantity[s] * unitPrice[c];
+			value[s] = quantity[s] * unitValue[c];
+		}
+	}
+
+	private int[] byDisplayOrder(Commodity.FUNCTION selected, int[] displayOrder) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int c = 0; c < nCommodities; c++) {
+			if (function[c] == selected)
+				result.add(c);
+		}
+		result.sort((a, b) -> Integer.compare(displayOrder[a], displayOrder[b]));
+		return array(result);
+	}
+
+	private static Stock.STOCKTYPE stockTypeOf(String text) {
+		for (Stock.STOCKTYPE type : Stock.STOCKTYPE.values()) {
+			if (type.text().equals(text))
+				return type;
+		}
+		return null;
+	}
+
+	private static String stockKey(String owner, String commodityName, Stock.STOCKTYPE type) {
+		return owner + "|" + commodityName + "|" + type;
+	}
+
+	private static int indexOf(Map<String, Integer> index, String name) {
+		Integer i = index.get(name);
+		return i == null ? -1 : i;
+	}
+
+	private static Map<String, Integer> index(String[] names) {
+		Map<String, Integer> result = new HashMap<String, Integer>();
+		for (int i = 0; i < names.length; i++)
+			result.put(names[i], i);
+		return result;
+	}
+
+	private static int[] filled(int n) {
+		int[] result = new int[n];
+		for (int i = 0; i < n; i++)
+			result[i] = -1;
+		return result;
+	}
+
+	private static List<List<Integer>> lists(int n) {
+		List<List<Integer>> result = new ArrayList<List<Integer>>();
+		for (int i = 0; i < n; i++)
+			result.add(new ArrayList<Integer>());
+		return result;
+	}
+
+	private static int[][] arrays(List<List<Integer>> lists) {
+		int[][] result = new int[lists.size()][];
+		for (int i = 0; i < result.length; i++)
+			result[i] = array(lists.get(i));
+		return result;
+	}
+
+	private static int[] array(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+}
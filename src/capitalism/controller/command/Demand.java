@@ -117,8 +117,9 @@ public class Demand implements Command {
 			c.computeDemand(0);
 			totalCost=c.replenishmentCosts();
 			
-			Reporter.report(logger, 3, "Total cost of an output of %.0f is $%.0f and $%.0f is available.",
-					output, totalCost, moneyAvailable);
+			if (Reporter.reports(3))
+				Reporter.report(logger, 3, "Total cost of an output of %.0f is $%.0f and $%.0f is available.",
+						output, totalCost, moneyAvailable);
 			double anticipatedMoneyFromSales=c.salesPrice();
 			double resources=moneyAvailable+anticipatedMoneyFromSales;
 			
@@ -230,10 +231,11 @@ public class Demand implements Command {
 					sc.name(),sc.getRevenue());
 			for (Stock s:sc.consumptionStocks()) {
 				double demand = sc.getRevenue()*s.getConsumptionCoefficient();
-				Reporter.report(logger, 3, 
-						"This class's demand for the commodity [%s] is %.0f%% of its revenue, which is $%.0f", 
-						s.name(), 
-						s.getConsumptionCoefficient()*100,demand);
+				if (Reporter.reports(3))
+					Reporter.report(logger, 3, 
+							"This class's demand for the commodity [%s] is %.0f%% of its revenue, which is $%.0f", 
+							s.name(), 
+							s.getConsumptionCoefficient()*100,demand);
 				s.setReplenishmentDemand(demand);
 			}
 		}
@@ -33,7 +33,7 @@ public class Distribute extends Simulation implements Command {
 	public void execute() {
 		int startTimeStamp = Simulation.timeStampIDCurrent();
 		for (ActionStates a : ActionStates.C_M_Distribute.getChildren()) {
-			a.getCommand().execute();
+			a.execute();
 		}
 
 		// since this is a super-action, the comparison should be with the state at the beginning of the whole set of actions
@@ -11,8 +11,8 @@ public class OnePeriod  extends Simulation implements Command{
 	 * One complete period
 	 */
 	public void execute() {
-		ActionStates.M_C_Exchange.getCommand().execute();
-		ActionStates.C_P_Produce.getCommand().execute();
-		ActionStates.C_M_Distribute.getCommand().execute();
+		ActionStates.M_C_Exchange.execute();
+		ActionStates.C_P_Produce.execute();
+		ActionStates.C_M_Distribute.execute();
 	}
 }
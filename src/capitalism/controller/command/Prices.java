@@ -27,6 +27,7 @@ import capitalism.controller.Simulation;
 import capitalism.model.Commodity;
 import capitalism.model.Industry;
 import capitalism.model.Project;
+import capitalism.model.Session;
 import capitalism.model.Stock;
 import capitalism.reporting.Dialogues;
 import capitalism.reporting.Reporter;
@@ -65,10 +66,11 @@ public class Prices implements Command {
 		computeRelativePrices();
 		computeAbsolutePrices();
 
-		// recalculate the values and prices of each stock on the basis of the new unit values and prices
-		for (Stock s : Stock.all(Simulation.projectIDCurrent(), Simulation.timeStampIDCurrent())) {
-			s.reCalculateStockTotalValuesAndPrices();
-		}
+		// recalculate the values and prices of each stock on the basis of the new unit values and prices. This is done in the database, so
+		// the new prices are written out with it
+		Session.begin();
+		Stock.reCalculateAll(Simulation.projectIDCurrent(), Simulation.timeStampIDCurrent(), false);
+		Session.commit();
 	}
 
 	/**
@@ -153,8 +155,9 @@ public class Prices implements Command {
 		for (Stock s : Stock.consumedByClass(Simulation.projectIDCurrent(), Simulation.timeStampIDCurrent(), "Workers")) {
 			Commodity u = s.getCommodity();
 			double price = u.getUnitPrice();
-			Reporter.report(logger, 3, "Wage earners just consumed %.0f of [%s] which would add $%.0f to the price of their labour power at the new prices",
-					s.getStockUsedUp(), u.name(), s.getStockUsedUp() * price);
+			if (Reporter.reports(3))
+				Reporter.report(logger, 3, "Wage earners just consumed %.0f of [%s] which would add $%.0f to the price of their labour power at the new prices",
+						s.getStockUsedUp(), u.name(), s.getStockUsedUp() * price);
 			totalWage += s.getStockUsedUp() * price;
 		}
 
@@ -74,8 +74,9 @@ public class Trade implements Command {
 				double quantityPurchased = s.getReplenishmentDemand();
 				double unitPrice = stockCommodity.getUnitPrice();
 				if (quantityPurchased > 0) {
-					Reporter.report(logger, 2, "Industry [%s] is purchasing %.0f units of [%s] for $%.0f", s.getOwner(), quantityPurchased,
-							s.name(), quantityPurchased * unitPrice);
+					if (Reporter.reports(2))
+						Reporter.report(logger, 2, "Industry [%s] is purchasing %.0f units of [%s] for $%.0f", s.getOwner(), quantityPurchased,
+								s.name(), quantityPurchased * unitPrice);
 					Stock sellerMoneyStock = null;
 					Stock sellerSalesStock = null;
 					if (s.getCommodity().getOrigin() == ORIGIN.SOCIALLY_PRODUCED){
@@ -178,8 +179,9 @@ public class Trade implements Command {
 
 				// OK, it seems as if we are good to go
 				
-				Reporter.report(logger, 2, "The social class [%s] is buying %.0f units of [%s] for %.0f",
-						buyerName, quantityAdded, u.name(), quantityAdded * unitPrice);
+				if (Reporter.reports(2))
+					Reporter.report(logger, 2, "The social class [%s] is buying %.0f units of [%s] for %.0f",
+							buyerName, quantityAdded, u.name(), quantityAdded * unitPrice);
 				try {
 					sellerSalesStock.transferStock(consumptionStock, quantityAdded);
 					buyerMoneyStock.transferStock(sellerMoneyStock, quantityAdded * unitPrice);
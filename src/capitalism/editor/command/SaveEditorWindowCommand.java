@@ -26,7 +26,7 @@ import org.apache.logging.log4j.Logger;
 import capitalism.editor.EditorLoader;
 import capitalism.model.OneProject;
 import capitalism.reporting.Dialogues;
-import capitalism.utils.XMLStuff;
+import capitalism.utils.BinaryStuff;
 import capitalism.view.command.DisplayCommand;
 import capitalism.view.custom.ImageButton;
 
@@ -44,6 +44,6 @@ public class SaveEditorWindowCommand implements DisplayCommand {
 			return;
 		logger.debug("Saving new project to {}", file.getAbsolutePath());
 		OneProject oneProject = EditorLoader.wrappedOneProject();
-		XMLStuff.exportToXML(oneProject, file);
+		BinaryStuff.exportProject(oneProject, file);
 	}
 }
@@ -0,0 +1,224 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Running totals of the stocks and industries at the working timeStamp of the current project: for each commodity, the total quantity,
+ * value and price of its stocks, the quantity offered for sale and the replenishment and expansion demand; and for the timeStamp as a whole,
+ * the total value and price and the total productive capital and profit of the industries.
+ *
+ * The totals are computed once, from the entities in the {@link EntityCache}, the first time one of them is asked for. From then on,
+ * every change to one of these entities adjusts the totals by the difference it makes, so that reading a total takes constant time.
+ * A change is bracketed by {@link #beforeChange(Stock)}, which takes the entity's old contribution out of the totals, and
+ * {@link #afterChange(Stock)}, which puts its new contribution back. Only the entities held by the cache are counted; copies
+ * (comparators, snapshots, entities read through another persistence session) are ignored.
+ *
+ * The totals are forgotten whenever the cache is invalidated, and are then recomputed, from scratch, the next time they are asked for.
+ * Because each adjustment rounds, a total kept up to date in this way drifts, however slightly, from the sum of the entities; so the
+ * totals are also forgotten at the start of every step of the simulation ({@link #recompute()}), and never carry an adjustment from one
+ * step to the next.
+ */
+public class Aggregates {
+	private static final Logger logger = LogManager.getLogger("Aggregates");
+
+	// the columns of the per-commodity totals
+	static final int QUANTITY = 0;
+	static final int VALUE = 1;
+	static final int PRICE = 2;
+	static final int SUPPLY = 3;
+	static final int REPLENISHMENT_DEMAND = 4;
+	static final int EXPANSION_DEMAND = 5;
+
+	private static boolean built = false;
+	private static Map<String, double[]> commodityTotals = new HashMap<String, double[]>();
+	private static double nonMoneyValue;
+	private static double nonMoneyPrice;
+	private static double moneyValue;
+	private static double moneyPrice;
+	private static double productiveCapital;
+	private static double profit;
+
+	/**
+	 * Forget the totals. Called by {@link EntityCache#invalidate()}
+	 */
+	static void invalidate() {
+		built = false;
+		commodityTotals.clear();
+	}
+
+	/**
+	 * Forget the totals, so that they are computed afresh from the entities the next time they are asked for. Called at the start of each
+	 * step of the simulation
+	 */
+	public static void recompute() {
+		invalidate();
+	}
+
+	/**
+	 * The total of one column for one commodity at the cached timeStamp. The caller must first have checked {@link EntityCache#covers(int, int)}
+	 *
+	 * @param commodityName
+	 *            the commodity
+	 * @param column
+	 *            one of {@link #QUANTITY}, {@link #VALUE}, {@link #PRICE}, {@link #SUPPLY}, {@link #REPLENISHMENT_DEMAND} or {@link #EXPANSION_DEMAND}
+	 * @return the total, which is zero if there are no stocks of this commodity
+	 */
+	static double commodityTotal(String commodityName, int column) {
+		build();
+		double[] totals = commodityTotals.get(commodityName);
+		return totals == null ? 0 : totals[column];
+	}
+
+	/**
+	 * The total value of the stocks at the cached timeStamp. The caller must first have checked {@link EntityCache#covers(int, int)}
+	 *
+	 * @param includeMoney
+	 *            true if money stocks are included
+	 * @return the total value
+	 */
+	static double totalValue(boolean includeMoney) {
+		build();
+		return includeMoney ? nonMoneyValue + moneyValue : nonMoneyValue;
+	}
+
+	/**
+	 * The total price of the stocks at the cached timeStamp. The caller must first have checked {@link EntityCache#covers(int, int)}
+	 *
+	 * @param includeMoney
+	 *            true if money stocks are included
+	 * @return the total price
+	 */
+	static double totalPrice(boolean includeMoney) {
+		build();
+		return includeMoney ? nonMoneyPrice + moneyPrice : nonMoneyPrice;
+	}
+
+	/**
+	 * @return the total productive capital of the industries at the cached timeStamp. The caller must first have checked
+	 *         {@link EntityCache#covers(int, int)}
+	 */
+	static double productiveCapital() {
+		build();
+		return productiveCapital;
+	}
+
+	/**
+	 * @return the total profit of the industries at the cached timeStamp. The caller must first have checked {@link EntityCache#covers(int, int)}
+	 */
+	static double profit() {
+		build();
+		return profit;
+	}
+
+	/**
+	 * Take the contribution of a stock out of the totals, because it is about to change
+	 *
+	 * @param stock
+	 *            the stock that is about to change
+	 */
+	static void beforeChange(Stock stock) {
+		if (built && EntityCache.holds(stock))
+			add(stock, -1);
+	}
+
+	/**
+	 * Put the contribution of a stock back into the totals, now that it has changed
+	 *
+	 * @param stock
+	 *            the stock that has changed
+	 */
+	static void afterChange(Stock stock) {
+		if (built && EntityCache.holds(stock))
+			add(stock, 1);
+	}
+
+	/**
+	 * Take the contribution of an industry out of the totals, because it is about to change
+	 *
+	 * @param industry
+	 *            the industry that is about to change
+	 */
+	static void beforeChange(Industry industry) {
+		if (built && EntityCache.holds(industry))
+			add(industry, -1);
+	}
+
+	/**
+	 * Put the contribution of an industry back into the totals, now that it has changed
+	 *
+	 * @param industry
+	 *            the industry that has changed
+	 */
+	static void afterChange(Industry industry) {
+		if (built && EntityCache.holds(industry))
+			add(industry, 1);
+	}
+
+	private static void build() {
+		if (built)
+			return;
+		commodityTotals.clear();
+		nonMoneyValue = 0;
+		nonMoneyPrice = 0;
+		moneyValue = 0;
+		moneyPrice = 0;
+		productiveCapital = 0;
+		profit = 0;
+		for (Stock s : EntityCache.stocks())
+			add(s, 1);
+		for (Industry i : EntityCache.industries())
+			add(i, 1);
+		built = true;
+		logger.debug("Computed the totals of {} commodities", commodityTotals.size());
+	}
+
+	private static void add(Stock s, int sign) {
+		double[] totals = commodityTotals.get(s.name());
+		if (totals == null) {
+			totals = new double[6];
+			commodityTotals.put(s.name(), totals);
+		}
+		totals[QUANTITY] += sign * s.getQuantity();
+		totals[VALUE] += sign * s.getValue();
+		totals[PRICE] += sign * s.getPrice();
+		totals[REPLENISHMENT_DEMAND] += sign * s.getReplenishmentDemand();
+		totals[EXPANSION_DEMAND] += sign * s.getExpansionDemand();
+		if (s.getStockType().equals(Stock.STOCKTYPE.SALES.text()))
+			totals[SUPPLY] += sign * s.getQuantity();
+		if (s.getStockType().equals(Stock.STOCKTYPE.MONEY.text())) {
+			moneyValue += sign * s.getValue();
+			moneyPrice += sign * s.getPrice();
+		} else {
+			nonMoneyValue += sign * s.getValue();
+			nonMoneyPrice += sign * s.getPrice();
+		}
+	}
+
+	private static void add(Industry i, int sign) {
+		productiveCapital += sign * i.productiveCapital();
+		profit += sign * i.profit();
+	}
+}
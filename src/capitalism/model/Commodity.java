@@ -21,6 +21,7 @@
 package capitalism.model;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import javax.persistence.*;
 import javax.xml.bind.annotation.XmlAccessorType;
@@ -80,20 +81,20 @@ public class Commodity implements Serializable {
 	@Transient private Commodity endComparator;
 
 	// Data Management fields
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_COMMODITIES");
 	private static EntityManager entityManager;
 	private static TypedQuery<Commodity> primaryQuery;
 	private static TypedQuery<Commodity> withProjectAndTimeStampQuery;
 	private static TypedQuery<Commodity> withOriginQuery;
 	private static TypedQuery<Commodity> withFunctionQuery;
-	private static TypedQuery<Commodity> deleteQuery;
 	private static TypedQuery<Commodity> allInProjectQuery;
 	private static TypedQuery<Commodity> allQuery;
+	private static TypedQuery<Commodity> upToTimeStampQuery;
+	private static TypedQuery<Commodity> upToTimeStampWithNameQuery;
 
 	// initialise the entitManagers and queries statically once only, hopefully to reduce expensive requests for connections and query-building
 	// TODO test with the EclipseLink profiler
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
 		primaryQuery = entityManager.createQuery(
 				"SELECT u FROM Commodity u where u.pk.projectID= :project AND u.pk.timeStampID= :timeStamp and u.pk.name=:name", Commodity.class);
 		allQuery = entityManager.createQuery("SELECT u from Commodity u", Commodity.class);
@@ -105,7 +106,10 @@ public class Commodity implements Serializable {
 		withFunctionQuery = entityManager.createQuery(
 				"SELECT u FROM Commodity u where u.pk.projectID= :project and u.pk.timeStampID = :timeStamp and u.function=:function order by u.displayOrder",
 				Commodity.class);
-		deleteQuery = entityManager.createQuery("Delete from Commodity c where c.pk.projectID=:project and c.pk.timeStampID>1", Commodity.class);
+		upToTimeStampQuery = entityManager.createQuery(
+				"SELECT u FROM Commodity u where u.pk.projectID= :project and u.pk.timeStampID <= :timeStamp", Commodity.class);
+		upToTimeStampWithNameQuery = entityManager.createQuery(
+				"SELECT u FROM Commodity u where u.pk.projectID= :project AND u.pk.timeStampID <= :timeStamp and u.pk.name=:name", Commodity.class);
 	}
 
 	// Enums
@@ -266,9 +270,8 @@ public class Commodity implements Serializable {
 	 * @return a list of Observable Commodities for the current project and timeStamp
 	 */
 	public static ObservableList<Commodity> commoditiesObservable(int projectID, int timeStampID) {
-		Commodity.withProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		ObservableList<Commodity> result = FXCollections.observableArrayList();
-		for (Commodity u : Commodity.withProjectAndTimeStampQuery.getResultList()) {
+		for (Commodity u : all(projectID, timeStampID)) {
 			result.add(u);
 		}
 		return result;
@@ -516,8 +519,9 @@ public class Commodity implements Serializable {
 			quantity += s.getQuantity();
 			value += s.getValue();
 			price += s.getPrice();
-			logger.debug(String.format("  Stock of type [%s] with name [%s] has added quantity %.2f; value %.2f, and price %.2f. ",
-					s.getStockType(), s.getOwner(), s.getQuantity(), s.getPrice(), s.getValue()));
+			if (logger.isDebugEnabled())
+				logger.debug(String.format("  Stock of type [%s] with name [%s] has added quantity %.2f; value %.2f, and price %.2f. ",
+						s.getStockType(), s.getOwner(), s.getQuantity(), s.getPrice(), s.getValue()));
 		}
 		quantity = MathStuff.round(quantity);
 		value = MathStuff.round(value);
@@ -539,20 +543,13 @@ public class Commodity implements Serializable {
 		this.comparator = comparator;
 	}
 
-	// aggregators
-	// TODO get aggregator queries working
+	// aggregators. At the working timeStamp these come from the running totals; elsewhere, from the grouped queries of Totals
 
 	/**
-	 * nothing more than a testbed so far here
-	 * 
-	 * @return stockUsedUp
+	 * @return the stock used up, over all commodities, at the timeStamp of this commodity
 	 */
 	public double stockUsedUp() {
-		Reporter.report(logger, 1, "Starting Computation");
-		Query query = Commodity.getEntityManager().createQuery("Select SUM(u.stockUsedUp) from Commodity u");
-		double stockUsed = (double) query.getSingleResult();
-		Reporter.report(logger, 0, "Computed stock used up was %.4f", stockUsed);
-		return stockUsed;
+		return Totals.of(pk.projectID, pk.timeStampID).stockUsedUp();
 	}
 
 	/**
@@ -560,11 +557,9 @@ public class Commodity implements Serializable {
 	 */
 
 	public double totalValue() {
-		double totalValue = 0;
-		for (Stock s : Stock.stocksOfCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			totalValue += s.getValue();
-		}
-		return totalValue;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.VALUE);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.VALUE);
 	}
 
 	/**
@@ -572,11 +567,9 @@ public class Commodity implements Serializable {
 	 */
 
 	public double totalPrice() {
-		double totalPrice = 0;
-		for (Stock s : Stock.stocksOfCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			totalPrice += s.getPrice();
-		}
-		return totalPrice;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.PRICE);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.PRICE);
 	}
 
 	/**
@@ -584,11 +577,9 @@ public class Commodity implements Serializable {
 	 */
 
 	public double totalQuantity() {
-		double totalQuantity = 0;
-		for (Stock s : Stock.stocksOfCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			totalQuantity += s.getQuantity();
-		}
-		return totalQuantity;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.QUANTITY);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.QUANTITY);
 	}
 
 	/**
@@ -596,6 +587,8 @@ public class Commodity implements Serializable {
 	 */
 
 	public double profit() {
+		if (!EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.PROFIT);
 		double profit = 0;
 		for (Industry c : industries()) {
 			profit += c.profit();
@@ -614,6 +607,8 @@ public class Commodity implements Serializable {
 	 * @return the total capital invested in producing this commodity
 	 */
 	public double initialCapital() {
+		if (!EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.INITIAL_CAPITAL);
 		double capital = 0;
 		for (Industry c : industries()) {
 			capital += c.initialCapital();
@@ -629,6 +624,8 @@ public class Commodity implements Serializable {
 	 * @return the initial productive capital invested in producing this commodity
 	 */
 	public double initialProductiveCapital() {
+		if (!EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.PRODUCTIVE_CAPITAL);
 		double productiveCapital = 0.0;
 		for (Industry c : industries()) {
 			productiveCapital += c.productiveCapital();
@@ -642,11 +639,9 @@ public class Commodity implements Serializable {
 	 * @return the total supply of this commmodity
 	 */
 	public double totalSupply() {
-		double supply = 0.0;
-		for (Stock s : Stock.salesByCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			supply += s.getQuantity();
-		}
-		return supply;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.SUPPLY);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.SUPPLY);
 	}
 
 	/**
@@ -656,11 +651,9 @@ public class Commodity implements Serializable {
 	 */
 
 	public double replenishmentDemand() {
-		double demand = 0.0;
-		for (Stock s : Stock.stocksOfCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			demand += s.getReplenishmentDemand();
-		}
-		return demand;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.REPLENISHMENT_DEMAND);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.REPLENISHMENT_DEMAND);
 	}
 
 	/**
@@ -669,11 +662,9 @@ public class Commodity implements Serializable {
 	 * @return expansion demand from all stocks of this commodity
 	 */
 	public double expansionDemand() {
-		double demand = 0.0;
-		for (Stock s : Stock.stocksOfCommodity(pk.projectID, pk.timeStampID, pk.name)) {
-			demand += s.getExpansionDemand();
-		}
-		return demand;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.commodityTotal(pk.name, Aggregates.EXPANSION_DEMAND);
+		return Totals.of(pk.projectID, pk.timeStampID).commodity(pk.name, Totals.EXPANSION_DEMAND);
 	}
 
 	/**
@@ -707,6 +698,10 @@ public class Commodity implements Serializable {
 	 * @return the singlecommodity given by this primary key, null if it does not exist
 	 */
 	public static Commodity single(int project, int timeStamp, String name) {
+		if (EntityCache.covers(project, timeStamp))
+			return EntityCache.commodity(name);
+		if (Snapshots.isSparse(project, timeStamp))
+			return resolvedSingle(project, timeStamp, name);
 		primaryQuery.setParameter("project", project).setParameter("timeStamp", timeStamp).setParameter("name", name);
 		try {
 			return primaryQuery.getSingleResult();
@@ -725,6 +720,8 @@ public class Commodity implements Serializable {
 	 * @return a list of all commodities at the given projectID and timeStampID
 	 */
 	public static List<Commodity> all(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolved(projectID, timeStampID);
 		withProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		return withProjectAndTimeStampQuery.getResultList();
 	}
@@ -763,6 +760,14 @@ public class Commodity implements Serializable {
 	 * 
 	 */
 	public static List<Commodity> currentByOrigin(int projectID, int timeStampID, Commodity.ORIGIN origin) {
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			List<Commodity> result = new ArrayList<Commodity>();
+			for (Commodity c : resolved(projectID, timeStampID)) {
+				if (c.origin == origin)
+					result.add(c);
+			}
+			return result;
+		}
 		withOriginQuery.setParameter("project", projectID);
 		withOriginQuery.setParameter("timeStamp", timeStampID);
 		withOriginQuery.setParameter("origin", origin);
@@ -781,6 +786,15 @@ public class Commodity implements Serializable {
 	 * @return a list of all commodities with the given function at the given timeStamp and project
 	 */
 	public static List<Commodity> currentByFunction(int projectID, int timeStampID, Commodity.FUNCTION function) {
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			List<Commodity> result = new ArrayList<Commodity>();
+			for (Commodity c : resolved(projectID, timeStampID)) {
+				if (c.function == function)
+					result.add(c);
+			}
+			result.sort((a, b) -> Integer.compare(a.displayOrder, b.displayOrder));
+			return result;
+		}
 		withFunctionQuery.setParameter("timeStamp", timeStampID).setParameter("project", projectID);
 		withFunctionQuery.setParameter("function", function);
 		return withFunctionQuery.getResultList();
@@ -797,6 +811,10 @@ public class Commodity implements Serializable {
 	 * @return the single use value of origin type SOCIALLY_PRODUCED, which will be labour poweer
 	 */
 	public static Commodity labourPower(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			List<Commodity> labourPower = currentByOrigin(projectID, timeStampID, Commodity.ORIGIN.SOCIALLY_PRODUCED);
+			return labourPower.isEmpty() ? null : labourPower.get(0);
+		}
 		
 		// temporary debug query
 		for (Commodity commodity: all(projectID)) {
@@ -823,6 +841,101 @@ public class Commodity implements Serializable {
 		}
 	}
 
+	/**
+	 * the commodities as they stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * Each commodity is taken from the nearest timeStamp, no later than the given one, at which it was stored.
+	 * 
+	 * @param projectID
+	 *            the project of the commodities returned
+	 * @param timeStampID
+	 *            the timeStamp of the commodities returned
+	 * @return a list of all commodities at the given projectID, as they stood at the given timeStampID
+	 */
+	private static List<Commodity> resolved(int projectID, int timeStampID) {
+		upToTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
+		List<Commodity> result = Snapshots.latest(upToTimeStampQuery.getResultList(), Commodity::snapshotKey, Commodity::getTimeStampID);
+		for (int i = 0; i < result.size(); i++) {
+			result.set(i, atTimeStamp(result.get(i), timeStampID));
+		}
+		return result;
+	}
+
+	/**
+	 * the named commodity as it stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * 
+	 * @param projectID
+	 *            the given project
+	 * @param timeStampID
+	 *            the timeStamp to report on
+	 * @param name
+	 *            the given commodity name
+	 * @return the commodity, taken from the nearest timeStamp no later than the given one, or null if it does not exist
+	 */
+	private static Commodity resolvedSingle(int projectID, int timeStampID, String name) {
+		upToTimeStampWithNameQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("name", name);
+		List<Commodity> found = Snapshots.latest(upToTimeStampWithNameQuery.getResultList(), Commodity::snapshotKey, Commodity::getTimeStampID);
+		return found.isEmpty() ? null : atTimeStamp(found.get(0), timeStampID);
+	}
+
+	/**
+	 * present a stored commodity as it stood at a later timeStamp, during which it did not change.
+	 * If it was stored at that timeStamp, it is returned as it is. Otherwise an unmanaged copy is returned, so that
+	 * the aggregates (total value, total price, etc) are computed from the stocks at the requested timeStamp.
+	 * 
+	 * <p>
+	 * The comparators of the copy are those it would have been given when the requested timeStamp was current (see
+	 * {@link #setComparators(int, int)}), not those of the stored commodity, which compare it with the predecessors of the timeStamp at which
+	 * it was stored. Since it did not change, its state at the timeStamp before the requested one is the stored state.
+	 * 
+	 * @param stored
+	 *            the commodity as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a commodity whose timeStampID is the requested timeStamp
+	 */
+	private static Commodity atTimeStamp(Commodity stored, int timeStampID) {
+		if (stored.pk.timeStampID == timeStampID)
+			return stored;
+		Commodity view = copyAt(stored, timeStampID);
+		view.previousComparator = stored.pk.timeStampID == timeStampID - 1 ? stored : copyAt(stored, timeStampID - 1);
+		view.startComparator = single(stored.pk.projectID, 1, stored.pk.name);
+		view.customComparator = view;
+		view.endComparator = view;
+		return view;
+	}
+
+	/**
+	 * an unmanaged copy of a stored commodity, as it stood at a later timeStamp during which it did not change, without comparators
+	 * 
+	 * @param stored
+	 *            the commodity as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a copy of the commodity whose timeStampID is the requested timeStamp
+	 */
+	private static Commodity copyAt(Commodity stored, int timeStampID) {
+		Commodity view = new Commodity(stored);
+		view.pk.timeStampID = timeStampID;
+		return view;
+	}
+
+	/**
+	 * @return the key which identifies this commodity independently of its timeStamp
+	 */
+	public String snapshotKey() {
+		return pk.name;
+	}
+
+	/**
+	 * Tell {@link Snapshots} that this commodity has been written to the database, so that it is kept in the history when the simulation
+	 * moves on
+	 */
+	@PostPersist
+	@PostUpdate
+	private void written() {
+		Snapshots.written(this);
+	}
+
 	/**
 	 * Set the comparators for the commodities at the given project and timeStamp
 	 * 
@@ -843,16 +956,6 @@ public class Commodity implements Serializable {
 		}
 	}
 
-	/**
-	 * Delete all commodities with the given projectID except those with timeStamp 1
-	 * 
-	 * @param projectID
-	 *            the projectID whose commodities will be deleted
-	 */
-	public static void deleteFromProject(int projectID) {
-		deleteQuery.setParameter("project", projectID);
-		deleteQuery.executeUpdate();
-	}
 
 	/**
 	 * 
@@ -907,6 +1010,16 @@ public class Commodity implements Serializable {
 		return Commodity.entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the Commodity entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	/**
 	 * Get the turnover time of this commodity
 	 * 
@@ -1009,6 +1122,13 @@ public class Commodity implements Serializable {
 		pk.timeStampID = timeStampID;
 	}
 
+	/**
+	 * @return the displayOrder
+	 */
+	public int getDisplayOrder() {
+		return displayOrder;
+	}
+
 	/**
 	 * @return the surplusProduct
 	 */
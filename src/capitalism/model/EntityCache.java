@@ -0,0 +1,223 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+
+/**
+ * An identity map of the stocks, commodities and industries at the working timeStamp of the current project.
+ *
+ * The commands look up the same entities by key many times in each step (the money stock of an industry, the commodity of a stock,
+ * the industries that produce a commodity, and so on). Each such lookup would otherwise execute a query. Instead, the first lookup of
+ * each kind at the working timeStamp reads all the entities of that kind at this timeStamp, once, and indexes them by key; every later
+ * lookup is a hash lookup. The entities are the managed entities that the queries themselves would return, so changes made through them
+ * are seen by everyone.
+ *
+ * Only the working timeStamp of the current project is cached, because it is the only one that the commands look at and the only one
+ * whose entities are neither created nor removed while it is being worked on. Lookups at any other timeStamp go to the database as before.
+ * The map must be invalidated whenever entities are created or removed, which {@link Simulation#advanceOneStep(String, String)} and
+ * {@link Simulation#restart()} do.
+ */
+public class EntityCache {
+	private static final Logger logger = LogManager.getLogger("EntityCache");
+
+	private static int projectID = -1;
+	private static int timeStampID = -1;
+
+	// each index is null until it is first needed at the cached timeStamp
+	private static Map<String, Stock> stocks = null;
+	private static Map<String, Commodity> commodities = null;
+	private static Map<String, Industry> industries = null;
+	private static Map<String, List<Industry>> industriesByCommodity = null;
+
+	/**
+	 * Whether lookups at the given project and timeStamp can be answered from the map. If this is the working timeStamp of the current project
+	 * and the map was made for some other timeStamp, the map is emptied, ready to be refilled for this one.
+	 *
+	 * @param projectID
+	 *            the projectID of the lookup
+	 * @param timeStampID
+	 *            the timeStampID of the lookup
+	 * @return true if this is the working timeStamp of the current project
+	 */
+	static boolean covers(int projectID, int timeStampID) {
+		Project current = Simulation.getProjectCurrent();
+		if (current == null || current.getProjectID() != projectID || current.getTimeStampID() != timeStampID)
+			return false;
+		if (projectID != EntityCache.projectID || timeStampID != EntityCache.timeStampID) {
+			invalidate();
+			EntityCache.projectID = projectID;
+			EntityCache.timeStampID = timeStampID;
+		}
+		return true;
+	}
+
+	/**
+	 * Forget everything. The next lookup at the working timeStamp will read its entities afresh
+	 */
+	public static void invalidate() {
+		if (projectID >= 0)
+			logger.debug("Invalidating the entities cached for project {} at timeStamp {}", projectID, timeStampID);
+		projectID = -1;
+		timeStampID = -1;
+		stocks = null;
+		commodities = null;
+		industries = null;
+		industriesByCommodity = null;
+		Aggregates.invalidate();
+		Totals.invalidate();
+	}
+
+	/**
+	 * The stock with the given key at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 *
+	 * @param owner
+	 *            the owner of the stock
+	 * @param commodity
+	 *            the commodity of the stock
+	 * @param stockType
+	 *            the type of the stock
+	 * @return the stock, or null if there is no such stock
+	 */
+	static Stock stock(String owner, String commodity, String stockType) {
+		indexStocks();
+		return stocks.get(owner + "|" + commodity + "|" + stockType);
+	}
+
+	/**
+	 * @return all the stocks at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 */
+	static Collection<Stock> stocks() {
+		indexStocks();
+		return stocks.values();
+	}
+
+	/**
+	 * @param stock
+	 *            a stock
+	 * @return true if this very stock (not merely one with the same key) is held by the cache
+	 */
+	static boolean holds(Stock stock) {
+		return stocks != null && stocks.get(stock.snapshotKey()) == stock;
+	}
+
+	/**
+	 * The commodity with the given name at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 *
+	 * @param name
+	 *            the name of the commodity
+	 * @return the commodity, or null if there is no such commodity
+	 */
+	static Commodity commodity(String name) {
+		indexCommodities();
+		return commodities.get(name);
+	}
+
+	/**
+	 * @return all the commodities at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 */
+	static Collection<Commodity> commodities() {
+		indexCommodities();
+		return commodities.values();
+	}
+
+	/**
+	 * The industry with the given name at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 *
+	 * @param name
+	 *            the name of the industry
+	 * @return the industry, or null if there is no such industry
+	 */
+	static Industry industry(String name) {
+		indexIndustries();
+		return industries.get(name);
+	}
+
+	/**
+	 * The industries that produce the given commodity at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 *
+	 * @param commodityName
+	 *            the name of the commodity
+	 * @return a new list of the industries that produce it, which is empty if there are none
+	 */
+	static List<Industry> industriesProducing(String commodityName) {
+		indexIndustries();
+		List<Industry> producers = industriesByCommodity.get(commodityName);
+		return producers == null ? new ArrayList<Industry>() : new ArrayList<Industry>(producers);
+	}
+
+	/**
+	 * @return all the industries at the cached timeStamp. The caller must first have checked {@link #covers(int, int)}
+	 */
+	static Collection<Industry> industries() {
+		indexIndustries();
+		return industries.values();
+	}
+
+	/**
+	 * @param industry
+	 *            an industry
+	 * @return true if this very industry (not merely one with the same name) is held by the cache
+	 */
+	static boolean holds(Industry industry) {
+		return industries != null && industries.get(industry.snapshotKey()) == industry;
+	}
+
+	private static void indexStocks() {
+		if (stocks != null)
+			return;
+		stocks = new HashMap<String, Stock>();
+		for (Stock s : Stock.all(projectID, timeStampID))
+			stocks.put(s.snapshotKey(), s);
+	}
+
+	private static void indexCommodities() {
+		if (commodities != null)
+			return;
+		commodities = new HashMap<String, Commodity>();
+		for (Commodity c : Commodity.all(projectID, timeStampID))
+			commodities.put(c.snapshotKey(), c);
+	}
+
+	private static void indexIndustries() {
+		if (industries != null)
+			return;
+		industries = new HashMap<String, Industry>();
+		industriesByCommodity = new HashMap<String, List<Industry>>();
+		for (Industry i : Industry.all(projectID, timeStampID)) {
+			industries.put(i.snapshotKey(), i);
+			List<Industry> producers = industriesByCommodity.get(i.getCommodityName());
+			if (producers == null) {
+				producers = new ArrayList<Industry>();
+				industriesByCommodity.put(i.getCommodityName(), producers);
+			}
+			producers.add(i);
+		}
+	}
+}
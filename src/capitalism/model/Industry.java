@@ -28,8 +28,8 @@ import javax.persistence.Embeddable;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
-import javax.persistence.Persistence;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import javax.persistence.TypedQuery;
@@ -80,16 +80,16 @@ public class Industry implements Serializable {
 	@Transient private Industry endComparator;
 
 	// Data Management
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_INDUSTRIES");
 	private static EntityManager entityManager;
 	private static TypedQuery<Industry> primaryQuery;
 	private static TypedQuery<Industry> allWithProjectQuery;
 	private static TypedQuery<Industry> allWithProjectAndTimeStampQuery;
 	private static TypedQuery<Industry> withProjectTimeStampAndCommodityNameQuery;
 	private static TypedQuery<Industry> allQuery;
-	private static TypedQuery<Industry> deleteQuery;
+	private static TypedQuery<Industry> upToTimeStampQuery;
+	private static TypedQuery<Industry> upToTimeStampWithNameQuery;
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
 		primaryQuery = entityManager.createQuery(
 				"Select c from Industry c where c.pk.projectID= :project and c.pk.timeStampID = :timeStamp and c.pk.name= :industryName", Industry.class);
 		allWithProjectAndTimeStampQuery = entityManager.createQuery(
@@ -98,7 +98,10 @@ public class Industry implements Serializable {
 				"Select c from Industry c where c.pk.projectID=:project and c.pk.timeStampID=:timeStamp and c.commodityName=:commodityName", Industry.class);
 		allQuery = entityManager.createQuery("Select i from Industry i", Industry.class);
 		allWithProjectQuery=entityManager.createQuery("Select i from Industry i where i.pk.projectID = :project",Industry.class);
-		deleteQuery = entityManager.createQuery("Delete from Industry i where i.pk.projectID=:project and i.pk.timeStampID>1", Industry.class);
+		upToTimeStampQuery = entityManager.createQuery(
+				"Select c from Industry c where c.pk.projectID = :project and c.pk.timeStampID <= :timeStamp", Industry.class);
+		upToTimeStampWithNameQuery = entityManager.createQuery(
+				"Select c from Industry c where c.pk.projectID = :project and c.pk.timeStampID <= :timeStamp and c.pk.name= :industryName", Industry.class);
 	}
 
 	/**
@@ -225,9 +228,8 @@ public class Industry implements Serializable {
 	 * @return an ObservableList of industries
 	 */
 	public static ObservableList<Industry> industriesObservable(int projectID, int timeStampID) {
-		Industry.allWithProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		ObservableList<Industry> result = FXCollections.observableArrayList();
-		for (Industry c : Industry.allWithProjectAndTimeStampQuery.getResultList()) {
+		for (Industry c : all(projectID, timeStampID)) {
 			result.add(c);
 		}
 		return result;
@@ -636,6 +638,10 @@ public class Industry implements Serializable {
 	 * @return the industrythat produces {@code name}, or null if this does not exist
 	 */
 	public static Industry single(int projectID, int timeStampID, String industryName) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.industry(industryName);
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, industryName);
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("industryName", industryName);
 		try {
 			return primaryQuery.getSingleResult();
@@ -679,6 +685,8 @@ public class Industry implements Serializable {
 	 */
 
 	public static List<Industry> all(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolved(projectID, timeStampID);
 		allWithProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		return allWithProjectAndTimeStampQuery.getResultList();
 	}
@@ -697,11 +705,116 @@ public class Industry implements Serializable {
 	 */
 
 	public static List<Industry> withCommodityNamed(int projectID, int timeStampID, String commodityName) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.industriesProducing(commodityName);
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			List<Industry> result = new ArrayList<Industry>();
+			for (Industry i : resolved(projectID, timeStampID)) {
+				if (commodityName.equals(i.commodityName))
+					result.add(i);
+			}
+			return result;
+		}
 		withProjectTimeStampAndCommodityNameQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID)
 				.setParameter("commodityName", commodityName);
 		return withProjectTimeStampAndCommodityNameQuery.getResultList();
 	}
 
+	/**
+	 * the industries as they stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * Each industry is taken from the nearest timeStamp, no later than the given one, at which it was stored.
+	 * 
+	 * @param projectID
+	 *            the given projectID
+	 * @param timeStampID
+	 *            the given timeStamp
+	 * @return a list of industries for the given projectID, as they stood at the given timeStamp
+	 */
+	private static List<Industry> resolved(int projectID, int timeStampID) {
+		upToTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
+		List<Industry> result = Snapshots.latest(upToTimeStampQuery.getResultList(), Industry::snapshotKey, Industry::getTimeStampID);
+		for (int i = 0; i < result.size(); i++) {
+			result.set(i, atTimeStamp(result.get(i), timeStampID));
+		}
+		return result;
+	}
+
+	/**
+	 * the named industry as it stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param timeStampID
+	 *            the timeStamp
+	 * @param industryName
+	 *            the name of the industry
+	 * @return the industry, taken from the nearest timeStamp no later than the given one, or null if it does not exist
+	 */
+	private static Industry resolvedSingle(int projectID, int timeStampID, String industryName) {
+		upToTimeStampWithNameQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("industryName", industryName);
+		List<Industry> found = Snapshots.latest(upToTimeStampWithNameQuery.getResultList(), Industry::snapshotKey, Industry::getTimeStampID);
+		return found.isEmpty() ? null : atTimeStamp(found.get(0), timeStampID);
+	}
+
+	/**
+	 * present a stored industry as it stood at a later timeStamp, during which it did not change.
+	 * If it was stored at that timeStamp, it is returned as it is. Otherwise an unmanaged copy is returned, so that
+	 * methods which look up related entities (stocks, commodities) look them up at the requested timeStamp.
+	 * 
+	 * <p>
+	 * The comparators of the copy are those it would have been given when the requested timeStamp was current (see
+	 * {@link #setComparators(int, int)}), not those of the stored industry, which compare it with the predecessors of the timeStamp at which
+	 * it was stored. Since it did not change, its state at the timeStamp before the requested one is the stored state.
+	 * 
+	 * @param stored
+	 *            the industry as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return an industry whose timeStampID is the requested timeStamp
+	 */
+	private static Industry atTimeStamp(Industry stored, int timeStampID) {
+		if (stored.pk.timeStampID == timeStampID)
+			return stored;
+		Industry view = copyAt(stored, timeStampID);
+		view.previousComparator = stored.pk.timeStampID == timeStampID - 1 ? stored : copyAt(stored, timeStampID - 1);
+		view.startComparator = single(stored.pk.projectID, 1, stored.pk.name);
+		view.customComparator = view;
+		view.endComparator = view;
+		return view;
+	}
+
+	/**
+	 * an unmanaged copy of a stored industry, as it stood at a later timeStamp during which it did not change, without comparators
+	 * 
+	 * @param stored
+	 *            the industry as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a copy of the industry whose timeStampID is the requested timeStamp
+	 */
+	private static Industry copyAt(Industry stored, int timeStampID) {
+		Industry view = new Industry(stored);
+		view.pk.timeStampID = timeStampID;
+		return view;
+	}
+
+	/**
+	 * @return the key which identifies this industry independently of its timeStamp
+	 */
+	public String snapshotKey() {
+		return pk.name;
+	}
+
+	/**
+	 * Tell {@link Snapshots} that this industry has been written to the database, so that it is kept in the history when the simulation
+	 * moves on
+	 */
+	@PostPersist
+	@PostUpdate
+	private void written() {
+		Snapshots.written(this);
+	}
+
 	/**
 	 * set the comparators for the industries records in the current project for the named timeStampID
 	 * 
@@ -839,6 +952,16 @@ public class Industry implements Serializable {
 		return entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the Industry entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	public Integer getProjectID() {
 		return pk.projectID;
 	}
@@ -958,14 +1081,18 @@ public class Industry implements Serializable {
 	/**
 	 * The current capital of this circult.
 	 * this is the sum of all outlays (including mone), that is to say, it is everything that has to be engaged in the business to keep it going
-	 * it is always calculated using the price expression of these outlays
+	 * it is always calculated using the price expression of these outlays, whatever the display is showing
 	 * 
 	 * @return the current capital of this industry
 	 * 
 	 * 
 	 */
 	public double currentCapital() {
-		return moneyPrice() + salesPrice() + productiveStocksAttribute(VALUE_EXPRESSION.PRICE);
+		double productivePrice = 0;
+		for (Stock s : Stock.allProductiveInIndustry(pk.projectID, pk.timeStampID, pk.name)) {
+			productivePrice += s.getPrice();
+		}
+		return moneyPrice() + salesPrice() + productivePrice;
 	}
 
 	/**
@@ -973,7 +1100,10 @@ public class Industry implements Serializable {
 	 * after revenue has been transferred to the capitalist class
 	 */
 	public void persistProfit() {
-		persistedProfit = currentCapital() - initialCapital;
+		double profit = currentCapital() - initialCapital;
+		Aggregates.beforeChange(this);
+		persistedProfit = profit;
+		Aggregates.afterChange(this);
 	}
 
 	/**
@@ -994,6 +1124,16 @@ public class Industry implements Serializable {
 		return persistedProfit;
 	}
 
+	/**
+	 * @param persistedProfit
+	 *            the persistedProfit to set
+	 */
+	public void setPersistedProfit(double persistedProfit) {
+		Aggregates.beforeChange(this);
+		this.persistedProfit = persistedProfit;
+		Aggregates.afterChange(this);
+	}
+
 	/**
 	 * @return the profitRate
 	 */
@@ -1073,16 +1213,6 @@ public class Industry implements Serializable {
 		donor.setRevenue(donor.getRevenue() - costOfExpansion);
 	}
 	
-	/**
-	 * Delete all industries with the given projectID except those with timeStamp 1
-	 * 
-	 * @param projectID
-	 *            the projectID whose industries will be deleted
-	 */
-	public static void deleteFromProject(int projectID) {
-		deleteQuery.setParameter("project", projectID);
-		deleteQuery.executeUpdate();
-	}
 
 
 
@@ -1172,7 +1302,9 @@ public class Industry implements Serializable {
 	 *            the productiveCapital to set
 	 */
 	public void setProductiveCapital(double productiveCapital) {
+		Aggregates.beforeChange(this);
 		this.productiveCapital = productiveCapital;
+		Aggregates.afterChange(this);
 	}
 
 	/**
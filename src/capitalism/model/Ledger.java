@@ -0,0 +1,661 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+
+/**
+ * An append-only journal, one for each project that is simulated, of every change to the quantity, value and price of a stock.
+ *
+ * The database keeps the state of the stocks at each recorded timeStamp, but not how it got there, and nothing at all of the steps that
+ * the recording policy of the project (see {@link Project#records(String, int)}) does not record. The ledger keeps the movements instead.
+ * Each step that {@link Simulation#advanceOneStep(String, String)} takes begins a new step of the ledger; within it, every change made to
+ * a working stock by {@link Stock#modifyBy(double)}, {@link Stock#modifyTo(double)}, the setters or a revaluation is written as the new
+ * quantity, value and price of the stock, and every {@link Stock#transferStock(Stock, double)} is also written as a transfer from one
+ * stock to another of a quantity, its value and its price. Every {@link #CHECKPOINT_INTERVAL} steps, and when the ledger is opened, the
+ * state of all the stocks is written as a checkpoint.
+ *
+ * The state of the stocks after any step, recorded or not, can therefore be rebuilt by {@link #replay(int, int)}, which reads the
+ * nearest checkpoint at or before the step and applies the changes that follow it. This lets a project record only some of its steps
+ * (for example, one in each period) without losing the others, and lets the flows of a step be audited by {@link #transfers(int, int)}
+ * without comparing snapshots.
+ *
+ * The ledger follows the transactions of the shared persistence session ({@link Session}). What has been written since the last commit
+ * is kept only until the next one: if the transaction is rolled back instead, the changes it would have written are thrown away by the
+ * database, and so the steps and changes written since the last commit are cut off the end of the journal too. A replay therefore never
+ * rebuilds a state that the database did not keep.
+ *
+ * The journal is a binary file. Each record is a one-byte kind followed by its fields; whole numbers are written as variable-length
+ * integers and stocks are written as the index of their key ({@link Stock#snapshotKey()}), which is defined by a KEY record the first time
+ * the stock appears. The files are temporary and are deleted when the program exits, because the database itself is reloaded from the
+ * user data when the program next starts. They are kept in the directory named by the system property capsim.ledger.directory, or in the
+ * temporary directory; the system property capsim.ledger=false switches the ledger off.
+ */
+public class Ledger {
+	private static final Logger logger = LogManager.getLogger("Ledger");
+
+	/** the number of steps between checkpoints */
+	public static final int CHECKPOINT_INTERVAL = Integer.getInteger("capsim.ledger.checkpointInterval", 64);
+
+	// the kinds of record
+	private static final int STEP = 1; // step, timeStamp, period, description, superState, recorded
+	private static final int KEY = 2; // the key of the next stock to be given an index
+	private static final int CHECKPOINT = 3; // the number of stocks, then for each its index, quantity, value and price
+	private static final int CHANGE = 4; // stock, quantity, value and price after the change
+	private static final int TRANSFER = 5; // source, target, quantity, value and price
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static boolean enabled = !"false".equalsIgnoreCase(System.getProperty("capsim.ledger"));
+	private static String directory = System.getProperty("capsim.ledger.directory");
+
+	private static Map<Integer, Ledger> ledgers = new HashMap<Integer, Ledger>();
+
+	// the ledger of the project that is being simulated, or null if no step has yet been taken in it
+	private static Ledger active = null;
+
+	private final int projectID;
+	private final File file;
+	private final FileOutputStream stream;
+	private final Counter counter;
+	private final DataOutputStream out;
+
+	private final Map<String, Integer> keys = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+
+	// for each step, where it starts in the journal and which timeStamp it works on
+	private final List<Long> stepOffsets = new ArrayList<Long>();
+	private final List<Integer> stepTimeStamps = new ArrayList<Integer>();
+	private final List<String> stepDescriptions = new ArrayList<String>();
+	// the steps at whose start a checkpoint was written, in increasing order
+	private final List<Integer> checkpoints = new ArrayList<Integer>();
+
+	// how much of the journal, and of each of the lists above, had been written when the shared session last committed
+	private long committedOffset = 0;
+	private int committedSteps = 0;
+	private int committedCheckpoints = 0;
+	private int committedNames = 0;
+
+	/**
+	 * A movement of stock from one owner to another, as written by {@link Stock#transferStock(Stock, double)}
+	 */
+	public static class Transfer {
+		private final int step;
+		private final String source;
+		private final String target;
+		private final double quantity;
+		private final double value;
+		private final double price;
+
+		private Transfer(int step, String source, String target, double quantity, double value, double price) {
+			this.step = step;
+			this.source = source;
+			this.target = target;
+			this.quantity = quantity;
+			this.value = value;
+			this.price = price;
+		}
+
+		/**
+		 * @return the step in which the transfer was made
+		 */
+		public int getStep() {
+			return step;
+		}
+
+		/**
+		 * @return the key of the stock that the transfer came from
+		 */
+		public String getSource() {
+			return source;
+		}
+
+		/**
+		 * @return the key of the stock that the transfer went to
+		 */
+		public String getTarget() {
+			return target;
+		}
+
+		/**
+		 * @return the quantity transferred
+		 */
+		public double getQuantity() {
+			return quantity;
+		}
+
+		/**
+		 * @return the value transferred
+		 */
+		public double getValue() {
+			return value;
+		}
+
+		/**
+		 * @return the price transferred
+		 */
+		public double getPrice() {
+			return price;
+		}
+
+		@Override public String toString() {
+			return String.format("step %d: %.2f of [%s] to [%s], value %.2f, price %.2f", step, quantity, source, target, value, price);
+		}
+	}
+
+	/**
+	 * Counts the bytes written to the journal, so that the position of each step is known without asking the file
+	 */
+	private static class Counter extends FilterOutputStream {
+		private long count = 0;
+
+		Counter(OutputStream out) {
+			super(out);
+		}
+
+		@Override public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+	private Ledger(int projectID) throws IOException {
+		this.projectID = projectID;
+		File dir = directory == null ? null : new File(directory);
+		if (dir != null)
+			dir.mkdirs();
+		file = File.createTempFile("capsim-ledger-" + projectID + "-", ".journal", dir);
+		file.deleteOnExit();
+		stream = new FileOutputStream(file);
+		counter = new Counter(new BufferedOutputStream(stream, BUFFER_SIZE));
+		out = new DataOutputStream(counter);
+		logger.debug("Keeping the ledger of project {} in {}", projectID, file.getPath());
+	}
+
+	/**
+	 * @return true if the ledger is kept
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Switch the ledger on or off. Switching it off discards the ledgers already kept
+	 * 
+	 * @param enabled
+	 *            true if the ledger is to be kept
+	 */
+	public static synchronized void setEnabled(boolean enabled) {
+		Ledger.enabled = enabled;
+		if (!enabled) {
+			for (Ledger ledger : ledgers.values())
+				ledger.close();
+			ledgers.clear();
+			active = null;
+		}
+	}
+
+	/**
+	 * Begin a new step of the ledger of the current project, opening the ledger if this is the first step taken in the project. Called by
+	 * {@link Simulation#advanceOneStep(String, String)} once the timeStamp that the step works on is current, and before the step has made
+	 * any changes, so that a checkpoint written now holds the state at the start of the step.
+	 * 
+	 * @param description
+	 *            the description of the step
+	 * @param superState
+	 *            the superState of the step
+	 * @param recorded
+	 *            true if the step has its own timeStamp, false if it works on the timeStamp of an earlier step
+	 */
+	public static synchronized void step(String description, String superState, boolean recorded) {
+		if (!enabled)
+			return;
+		int projectID = Simulation.projectIDCurrent();
+		int timeStampID = Simulation.timeStampIDCurrent();
+		Ledger ledger = ledgers.get(projectID);
+		try {
+			if (ledger == null) {
+				ledger = new Ledger(projectID);
+				ledgers.put(projectID, ledger);
+			}
+			active = ledger;
+			ledger.writeStep(timeStampID, Simulation.getPeriodCurrent(), description, superState, recorded);
+		} catch (IOException e) {
+			abandon(ledger, e);
+		}
+	}
+
+	/**
+	 * Write the state of a stock after a change. Only the working stocks of the current project are written; copies, comparators and the
+	 * stocks of other timeStamps are ignored.
+	 * 
+	 * @param stock
+	 *            the stock that has changed
+	 */
+	static synchronized void changed(Stock stock) {
+		Ledger ledger = active;
+		if (ledger == null || !ledger.follows(stock))
+			return;
+		try {
+			ledger.writeChange(stock);
+		} catch (IOException e) {
+			abandon(ledger, e);
+		}
+	}
+
+	/**
+	 * Write the state of every working stock after a change made to all of them at once, by {@link Stock#reCalculateAll(int, int, boolean)}
+	 * 
+	 * @param projectID
+	 *            the project whose stocks changed
+	 * @param timeStampID
+	 *            the timeStamp of the stocks
+	 */
+	static synchronized void changedAll(int projectID, int timeStampID) {
+		Ledger ledger = active;
+		if (ledger == null || ledger.projectID != projectID || timeStampID != Simulation.timeStampIDCurrent())
+			return;
+		try {
+			for (Stock s : Stock.all(projectID, timeStampID))
+				ledger.writeChange(s);
+		} catch (IOException e) {
+			abandon(ledger, e);
+		}
+	}
+
+	/**
+	 * Write a transfer between two working stocks. The changes to the stocks themselves have already been written by {@link #changed(Stock)}
+	 * 
+	 * @param from
+	 *            the stock that the transfer came from
+	 * @param to
+	 *            the stock that the transfer went to
+	 * @param quantity
+	 *            the quantity transferred
+	 * @param value
+	 *            the value transferred
+	 * @param price
+	 *            the price transferred
+	 */
+	static synchronized void transferred(Stock from, Stock to, double quantity, double value, double price) {
+		Ledger ledger = active;
+		if (ledger == null || !ledger.follows(from))
+			return;
+		try {
+			ledger.writeTransfer(from, to, quantity, value, price);
+		} catch (IOException e) {
+			abandon(ledger, e);
+		}
+	}
+
+	/**
+	 * Keep what every ledger holds. Called by {@link Session#commit()} once the changes it records are in the database
+	 */
+	static synchronized void committed() {
+		for (Ledger ledger : ledgers.values()) {
+			ledger.committedOffset = ledger.counter.count;
+			ledger.committedSteps = ledger.stepOffsets.size();
+			ledger.committedCheckpoints = ledger.checkpoints.size();
+			ledger.committedNames = ledger.names.size();
+		}
+	}
+
+	/**
+	 * Cut off every ledger where it stood at the last commit. Called by {@link Session#rollback()}, which discards the changes written
+	 * since then
+	 */
+	static synchronized void rolledBack() {
+		for (Ledger ledger : new ArrayList<Ledger>(ledgers.values())) {
+			try {
+				ledger.truncate();
+			} catch (IOException e) {
+				abandon(ledger, e);
+			}
+		}
+	}
+
+	/**
+	 * Throw away the ledger of a project, whose history has been deleted. A new one is begun by the next step taken in the project
+	 * 
+	 * @param projectID
+	 *            the project
+	 */
+	public static synchronized void discard(int projectID) {
+		Ledger ledger = ledgers.remove(projectID);
+		if (ledger == null)
+			return;
+		if (ledger == active)
+			active = null;
+		ledger.close();
+	}
+
+	/**
+	 * @param projectID
+	 *            a project
+	 * @return the number of steps in the ledger of the project, or 0 if it has none
+	 */
+	public static synchronized int steps(int projectID) {
+		Ledger ledger = ledgers.get(projectID);
+		return ledger == null ? 0 : ledger.stepOffsets.size();
+	}
+
+	/**
+	 * @param projectID
+	 *            a project
+	 * @param step
+	 *            a step of its ledger, counting from 0
+	 * @return the description of the step, or null if there is no such step
+	 */
+	public static synchronized String description(int projectID, int step) {
+		Ledger ledger = ledgers.get(projectID);
+		if (ledger == null || step < 0 || step >= ledger.stepOffsets.size())
+			return null;
+		return ledger.stepDescriptions.get(step);
+	}
+
+	/**
+	 * The last step that worked on a timeStamp. Its state, as rebuilt by {@link #replay(int, int)}, is the state that the database holds
+	 * for the timeStamp; the steps before it that worked on the same timeStamp were not recorded.
+	 * 
+	 * @param projectID
+	 *            a project
+	 * @param timeStampID
+	 *            a timeStamp of the project
+	 * @return the last step in the ledger that worked on this timeStamp, or -1 if there is none
+	 */
+	public static synchronized int lastStepAt(int projectID, int timeStampID) {
+		Ledger ledger = ledgers.get(projectID);
+		if (ledger == null)
+			return -1;
+		for (int step = ledger.stepTimeStamps.size() - 1; step >= 0; step--) {
+			if (ledger.stepTimeStamps.get(step) == timeStampID)
+				return step;
+		}
+		return -1;
+	}
+
+	/**
+	 * Rebuild the state of the stocks of a project at the end of a step, from the nearest checkpoint at or before it
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param step
+	 *            a step of its ledger, counting from 0
+	 * @return the quantity, value and price of each stock, in that order, indexed by the key of the stock; or null if the ledger has no such step
+	 */
+	public static synchronized Map<String, double[]> replay(int projectID, int step) {
+		Ledger ledger = ledgers.get(projectID);
+		if (ledger == null || step < 0 || step >= ledger.stepOffsets.size())
+			return null;
+		try {
+			return ledger.replay(step);
+		} catch (IOException e) {
+			logger.error("Could not read the ledger of project {} because {}", projectID, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * @param projectID
+	 *            the project
+	 * @param step
+	 *            a step of its ledger, counting from 0
+	 * @return the transfers made in the step, in the order they were made; or an empty list if the ledger has no such step
+	 */
+	public static synchronized List<Transfer> transfers(int projectID, int step) {
+		List<Transfer> transfers = new ArrayList<Transfer>();
+		Ledger ledger = ledgers.get(projectID);
+		if (ledger == null || step < 0 || step >= ledger.stepOffsets.size())
+			return transfers;
+		try {
+			ledger.read(step, step, null, transfers);
+		} catch (IOException e) {
+			logger.error("Could not read the ledger of project {} because {}", projectID, e.getMessage());
+		}
+		return transfers;
+	}
+
+	private static void abandon(Ledger ledger, IOException e) {
+		logger.error("Could not write the ledger because {}; it will no longer be kept for this project", e.getMessage());
+		if (ledger != null)
+			discard(ledger.projectID);
+	}
+
+	private boolean follows(Stock stock) {
+		return stock.getProjectID() == projectID && stock.getTimeStampID() == Simulation.timeStampIDCurrent()
+				&& Simulation.projectIDCurrent() == projectID;
+	}
+
+	private void truncate() throws IOException {
+		out.flush();
+		stream.getChannel().truncate(committedOffset);
+		counter.count = committedOffset;
+		truncate(stepOffsets, committedSteps);
+		truncate(stepTimeStamps, committedSteps);
+		truncate(stepDescriptions, committedSteps);
+		truncate(checkpoints, committedCheckpoints);
+		while (names.size() > committedNames)
+			keys.remove(names.remove(names.size() - 1));
+		logger.debug("Cut the ledger of project {} back to {} steps", projectID, committedSteps);
+	}
+
+	private static void truncate(List<?> list, int size) {
+		while (list.size() > size)
+			list.remove(list.size() - 1);
+	}
+
+	private void writeStep(int timeStampID, int period, String description, String superState, boolean recorded) throws IOException {
+		int step = stepOffsets.size();
+		stepOffsets.add(counter.count);
+		stepTimeStamps.add(timeStampID);
+		stepDescriptions.add(description);
+		out.writeByte(STEP);
+		writeVarInt(step);
+		writeVarInt(timeStampID);
+		writeVarInt(period);
+		out.writeUTF(description);
+		out.writeUTF(superState == null ? "" : superState);
+		out.writeBoolean(recorded);
+		if (step % CHECKPOINT_INTERVAL == 0)
+			writeCheckpoint(step);
+	}
+
+	private void writeCheckpoint(int step) throws IOException {
+		List<Stock> stocks = Stock.all(projectID, Simulation.timeStampIDCurrent());
+		int[] indices = new int[stocks.size()];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = indexOf(stocks.get(i));
+		out.writeByte(CHECKPOINT);
+		writeVarInt(indices.length);
+		for (int i = 0; i < indices.length; i++) {
+			Stock s = stocks.get(i);
+			writeVarInt(indices[i]);
+			writeDoubles(s.getQuantity(), s.getValue(), s.getPrice());
+		}
+		checkpoints.add(step);
+	}
+
+	private void writeChange(Stock stock) throws IOException {
+		int index = indexOf(stock);
+		out.writeByte(CHANGE);
+		writeVarInt(index);
+		writeDoubles(stock.getQuantity(), stock.getValue(), stock.getPrice());
+	}
+
+	private void writeTransfer(Stock from, Stock to, double quantity, double value, double price) throws IOException {
+		int source = indexOf(from);
+		int target = indexOf(to);
+		out.writeByte(TRANSFER);
+		writeVarInt(source);
+		writeVarInt(target);
+		writeDoubles(quantity, value, price);
+	}
+
+	private int indexOf(Stock stock) throws IOException {
+		String key = stock.snapshotKey();
+		Integer index = keys.get(key);
+		if (index == null) {
+			index = names.size();
+			keys.put(key, index);
+			names.add(key);
+			out.writeByte(KEY);
+			out.writeUTF(key);
+		}
+		return index;
+	}
+
+	private Map<String, double[]> replay(int step) throws IOException {
+		int checkpoint = 0;
+		for (int c : checkpoints) {
+			if (c > step)
+				break;
+			checkpoint = c;
+		}
+		Map<String, double[]> state = new LinkedHashMap<String, double[]>();
+		read(checkpoint, step, state, null);
+		logger.debug("Replayed the ledger of project {} from step {} to step {}", projectID, checkpoint, step);
+		return state;
+	}
+
+	/**
+	 * Read the records of the steps from first to last. The state of the stocks is applied to state, and the transfers are added to transfers;
+	 * either may be null. The checkpoint of the first step, if it has one, is read; the checkpoints of later steps are skipped.
+	 */
+	private void read(int first, int last, Map<String, double[]> state, List<Transfer> transfers) throws IOException {
+		out.flush();
+		FileInputStream file = new FileInputStream(this.file);
+		try {
+			file.getChannel().position(stepOffsets.get(first));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+			int step = first - 1;
+			while (true) {
+				int kind;
+				try {
+					kind = in.readUnsignedByte();
+				} catch (EOFException e) {
+					return;
+				}
+				switch (kind) {
+				case STEP:
+					step = readVarInt(in);
+					if (step > last)
+						return;
+					readVarInt(in);
+					readVarInt(in);
+					in.readUTF();
+					in.readUTF();
+					in.readBoolean();
+					break;
+				case KEY:
+					in.readUTF();
+					break;
+				case CHECKPOINT:
+					int count = readVarInt(in);
+					for (int i = 0; i < count; i++) {
+						String key = names.get(readVarInt(in));
+						double[] stock = { in.readDouble(), in.readDouble(), in.readDouble() };
+						if (state != null && step == first)
+							state.put(key, stock);
+					}
+					break;
+				case CHANGE:
+					String key = names.get(readVarInt(in));
+					double[] stock = { in.readDouble(), in.readDouble(), in.readDouble() };
+					if (state != null)
+						state.put(key, stock);
+					break;
+				case TRANSFER:
+					String source = names.get(readVarInt(in));
+					String target = names.get(readVarInt(in));
+					double quantity = in.readDouble();
+					double value = in.readDouble();
+					double price = in.readDouble();
+					if (transfers != null && step >= first)
+						transfers.add(new Transfer(step, source, target, quantity, value, price));
+					break;
+				default:
+					throw new IOException("unknown record " + kind);
+				}
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private void close() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			logger.debug("Could not close the ledger of project {} because {}", projectID, e.getMessage());
+		}
+		if (!file.delete())
+			logger.debug("Could not delete {}", file.getPath());
+	}
+
+	private void writeDoubles(double quantity, double value, double price) throws IOException {
+		out.writeDouble(quantity);
+		out.writeDouble(value);
+		out.writeDouble(price);
+	}
+
+	private void writeVarInt(int i) throws IOException {
+		while ((i & ~0x7F) != 0) {
+			out.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		out.writeByte(i);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int i = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			i |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return i;
+		}
+		throw new IOException("malformed number");
+	}
+}
@@ -67,30 +67,36 @@ public class OneProject {
 	}
 
 	/**
-	 * Create a new project in the database from whatever has been loaded into this oneProject entity.
+	 * Create a new project in the database from whatever has been loaded into this oneProject entity,
+	 * and offer it to the user in the project combo box.
 	 */
 	public void importFromEditorToDatabase() {
+		if (importToDatabase() < 0)
+			return;
+		DisplayControlsBox.rePopulateProjectCombo();
+	}
+
+	/**
+	 * Create a new project in the database from whatever has been loaded into this oneProject entity.
+	 * Does not touch the display, so it can also be used when running without one.
+	 * 
+	 * @return the projectID of the new project, or -1 if its data did not validate
+	 */
+	public int importToDatabase() {
 		// find the largest project so far. We will add the new project with a project numeber one greater than this
 		int maxProjectID = Project.maxProjectID();
 		Reporter.report(logger, 1, "Importing a new project with project number %d", maxProjectID + 1);
-		Project.getEntityManager().getTransaction().begin();
+		Session.begin();
 		project.setProjectID(maxProjectID+1);
 		project.setButtonState(ActionStates.lastState().text());
 		Project.getEntityManager().persist(project);
-		Project.getEntityManager().getTransaction().commit();
 
-		TimeStamp.getEntityManager().getTransaction().begin();
 		for (TimeStamp ts:timeStamps) {
 			ts.setProjectID(maxProjectID+1);
 			TimeStamp.getEntityManager().persist(ts);
 			logger.debug("Importing timeStamp with project ID {} and timeStampID {}", ts.getProjectID(), ts.getTimeStampID());
 		}
-		TimeStamp.getEntityManager().getTransaction().commit();
 
-		Commodity.getEntityManager().getTransaction().begin();
-		Industry.getEntityManager().getTransaction().begin();
-		SocialClass.getEntityManager().getTransaction().begin();
-		Stock.getEntityManager().getTransaction().begin();
 		for (Commodity c : commodities) {
 			logger.debug("Importing commodity called {}", c.name());
 			c.setProjectID(maxProjectID+1);
@@ -111,20 +117,26 @@ public class OneProject {
 			s.setProjectID(maxProjectID+1);
 			Stock.getEntityManager().persist(s);
 		}
-		Commodity.getEntityManager().getTransaction().commit();
-		Industry.getEntityManager().getTransaction().commit();
-		SocialClass.getEntityManager().getTransaction().commit();
-		Stock.getEntityManager().getTransaction().commit();
+		Session.commit();
+		return initialiseImported(maxProjectID + 1);
+	}
 
+	/**
+	 * Check a project that has just been imported into the database, and initialise its derived fields
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @return the projectID, or -1 if its data did not validate
+	 */
+	public static int initialiseImported(int projectID) {
 		// we loaded the persistent fields, but now we must initialise all the derived fields
 		
-		if (!Validate.validate(maxProjectID+1)) {
+		if (!Validate.validate(projectID)) {
 			Dialogues.alert(logger,"There is a data problem with this project. You can run other projects, but not this one");
-			return;
+			return -1;
 		};
-		project.initialise();
-		
-		DisplayControlsBox.rePopulateProjectCombo();
+		Project.get(projectID).initialise();
+		return projectID;
 	}
 	
 	/**
@@ -74,13 +74,23 @@ public class Project implements Serializable {
 
 	@XmlElement @Column(name = "buttonState") private String buttonState;
 
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_PROJECT");
+	/**
+	 * Which steps of the simulation are recorded as timeStamps. A step that is not recorded works on the current timeStamp, in memory,
+	 * which then stands for the state after that step. See {@link #records(String, int)}
+	 */
+	@XmlElement @Enumerated(EnumType.STRING) @Column(name = "recordingPolicy") private RECORDING recordingPolicy;
+
+	/**
+	 * If the recordingPolicy is INTERVAL, the number of periods between recorded timeStamps
+	 */
+	@XmlElement @Column(name = "recordingInterval") private int recordingInterval;
+
 	private static EntityManager entityManager;
 	private static TypedQuery<Project> primaryQuery;
 	private static TypedQuery<Project> allQuery;
 
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
 		allQuery = entityManager.createQuery("SELECT p FROM Project p", Project.class);
 		primaryQuery = entityManager.createQuery("SELECT p from Project p where p.projectID= :project", Project.class);
 	}
@@ -101,6 +111,58 @@ public class Project implements Serializable {
 		}
 	}
 
+	public static enum RECORDING {
+		ALL("All steps"), SUPERSTATES("Superstates"), PERIODS("Periods"), INTERVAL("Every few periods");
+		String text;
+
+		private RECORDING(String text) {
+			this.text = text;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * Whether a step of the simulation should create a new timeStamp, according to the recordingPolicy of this project.
+	 * <ul>
+	 * <li>ALL records every step, as the simulation always has</li>
+	 * <li>SUPERSTATES records the first step of each superState, whose timeStamp then accumulates the rest of that superState</li>
+	 * <li>PERIODS records the first step of each period, whose timeStamp then accumulates the rest of that period</li>
+	 * <li>INTERVAL records the first step of every recordingInterval'th period</li>
+	 * </ul>
+	 * The step that leaves timeStamp 1 is always recorded, so the user's data is never overwritten. The stocks at the steps that are not
+	 * recorded can still be rebuilt from the {@link Ledger}.
+	 * 
+	 * @param description
+	 *            the description of the step, which is the text of its {@link ActionStates}
+	 * @param period
+	 *            the period in which the step is taken
+	 * @return true if the step should create a new timeStamp
+	 */
+	public boolean records(String description, int period) {
+		if (timeStampID <= 1)
+			return true;
+		ActionStates step = null;
+		for (ActionStates a : ActionStates.values()) {
+			if (a.text().equals(description))
+				step = a;
+		}
+		if (step == null)
+			return true;
+		switch (getRecordingPolicy()) {
+		case SUPERSTATES:
+			return step.superAction == null || step.superAction.getChildren().get(0) == step;
+		case PERIODS:
+			return step == ActionStates.firstState();
+		case INTERVAL:
+			return step == ActionStates.firstState() && (period - 1) % Math.max(1, recordingInterval) == 0;
+		default:
+			return true;
+		}
+	}
+
 	/**
 	 * To be used in startup: set button state to the end of the non-existent last state of the previous period
 	 * Added because of a completely mysterious fault on 28 January when suddenly, the default project constructor
@@ -154,6 +216,16 @@ public class Project implements Serializable {
 		return entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the Project entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	/**
 	 * set the timeStamp of a given project.
 	 * 
@@ -224,14 +296,14 @@ public class Project implements Serializable {
 		Reporter.report(logger, 1, "Initialising project %d called '%s'", projectID, getDescription());
 
 		// initialise the project record so that its cursors are 1
-		Project.getEntityManager().getTransaction().begin();
+		Session.begin();
 		setTimeStampID(1);
 		setTimeStampDisplayCursor(1);
 		setTimeStampComparatorCursor(1);
 
 		// set the project buttonState initially to the end of the non-existent previous period
 		setButtonState(ActionStates.lastState().text());
-		getEntityManager().getTransaction().commit();
+		Session.commit();
 
 		// Set the initial comparators for every timeStamp, project, industry, class, use value and stock .
 		// Since the comparator cursor and the cursor are already 1, this amounts to setting it to 1
@@ -326,6 +398,36 @@ public class Project implements Serializable {
 
 	}
 
+	/**
+	 * @return the recordingPolicy. A project that does not specify one records every step
+	 */
+	public RECORDING getRecordingPolicy() {
+		return recordingPolicy == null ? RECORDING.ALL : recordingPolicy;
+	}
+
+	/**
+	 * @param recordingPolicy
+	 *            the recordingPolicy to set
+	 */
+	public void setRecordingPolicy(RECORDING recordingPolicy) {
+		this.recordingPolicy = recordingPolicy;
+	}
+
+	/**
+	 * @return the number of periods between recorded timeStamps, if the recordingPolicy is INTERVAL
+	 */
+	public int getRecordingInterval() {
+		return recordingInterval;
+	}
+
+	/**
+	 * @param recordingInterval
+	 *            the recordingInterval to set
+	 */
+	public void setRecordingInterval(int recordingInterval) {
+		this.recordingInterval = recordingInterval;
+	}
+
 	public String toString() {
 		return description;
 	}
@@ -0,0 +1,52 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+
+import capitalism.utils.Metrics;
+
+/**
+ * Counts, for {@link Metrics}, every query that the persistence provider executes. {@link Session} installs it in the
+ * entityManagerFactory, so it sees the queries of every entityManager, including those the provider issues itself to load related
+ * entities or to write out changes.
+ *
+ * A query is counted under the simple name of the entity class it concerns, followed by its own name if it is a named query, or else by
+ * its kind (ReadAllQuery, UpdateObjectQuery and so on). Native SQL concerns no entity class and is counted under SQL. A query that writes
+ * adds the rows it changed to the rows written; writing out one entity is one row.
+ */
+public class QueryListener extends SessionEventAdapter {
+
+	@Override public void postExecuteQuery(SessionEvent event) {
+		DatabaseQuery query = event.getQuery();
+		if (query == null)
+			return;
+		Class<?> entityClass = query.getReferenceClass();
+		String queryName = query.getName();
+		String name = (entityClass == null ? "SQL" : entityClass.getSimpleName()) + "."
+				+ (queryName == null || queryName.isEmpty() ? query.getClass().getSimpleName() : queryName);
+		int rows = 0;
+		if (query.isModifyQuery())
+			rows = event.getResult() instanceof Integer ? (Integer) event.getResult() : 1;
+		Metrics.executed(name, rows);
+	}
+}
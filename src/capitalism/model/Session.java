@@ -0,0 +1,144 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.utils.DBHandler;
+import capitalism.utils.Metrics;
+
+/**
+ * The persistence context shared by all the model classes.
+ *
+ * All the entities belong to the one persistence unit DB_CAPITALISM, and the entityManager of every model class (see for example
+ * {@link Commodity#getEntityManager()}) is the single entityManager held here. Everything read or changed by the interactive simulation
+ * therefore lives in one cache, uses one connection, and is written out by one transaction.
+ *
+ * Transactions are begun and committed through {@link #begin()} and {@link #commit()} rather than on the entityManager itself. These may be
+ * nested: only the outermost pair actually begins and commits the transaction, so that a method which needs a transaction can ask for
+ * one whether or not its caller already has one open. A simulation step ({@link capitalism.controller.Simulation#advanceOneStep(String, String)})
+ * is one such outermost transaction, and is therefore written out, or not, as a whole.
+ *
+ * The session connects to {@link DBHandler#databaseURL()}, which is either in memory or in a file, rather than to the URL in persistence.xml.
+ * Unless {@link Metrics} are switched off, every query it executes is counted by a {@link QueryListener}.
+ */
+public class Session {
+	private static final Logger logger = LogManager.getLogger("Session");
+
+	private static EntityManagerFactory entityManagerFactory = createEntityManagerFactory();
+	private static EntityManager entityManager = entityManagerFactory.createEntityManager();
+
+	// the number of calls to begin() that have not yet been matched by a commit()
+	private static int depth = 0;
+
+	private static EntityManagerFactory createEntityManagerFactory() {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("javax.persistence.jdbc.url", DBHandler.databaseURL());
+		if (Metrics.isEnabled())
+			properties.put("eclipselink.session-event-listener", QueryListener.class.getName());
+		logger.debug("Creating the persistence session on {}", DBHandler.databaseURL());
+		return Persistence.createEntityManagerFactory("DB_CAPITALISM", properties);
+	}
+
+	/**
+	 * @return the entityManager shared by all the model classes
+	 */
+	public static EntityManager getEntityManager() {
+		return entityManager;
+	}
+
+	/**
+	 * Create a new persistence session, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return entityManagerFactory.createEntityManager();
+	}
+
+	/**
+	 * Begin a transaction on the shared entityManager, unless one is already open, in which case this call joins it
+	 */
+	public static void begin() {
+		if (depth == 0)
+			entityManager.getTransaction().begin();
+		depth++;
+	}
+
+	/**
+	 * Commit the transaction on the shared entityManager if this call matches the outermost {@link #begin()}; otherwise, leave it open
+	 * for the outer caller to commit
+	 */
+	public static void commit() {
+		if (depth == 0) {
+			logger.error("Commit requested with no transaction open");
+			return;
+		}
+		depth--;
+		if (depth == 0) {
+			entityManager.getTransaction().commit();
+			Ledger.committed();
+		}
+	}
+
+	/**
+	 * Abandon the open transaction, however deeply nested the caller is. The changes made since the outermost {@link #begin()} are
+	 * discarded, and so is the content of the shared cache, whose entities may no longer match the database.
+	 * A rollback does not undo the changes made to the entities in memory, so every entity the shared entityManager holds is detached
+	 * as well: any entity obtained before this call must be looked up again. The {@link Ledger} forgets what it wrote since the last commit,
+	 * and {@link Snapshots} forgets which entities changed.
+	 */
+	public static void rollback() {
+		depth = 0;
+		if (entityManager.getTransaction().isActive())
+			entityManager.getTransaction().rollback();
+		entityManager.clear();
+		EntityCache.invalidate();
+		Ledger.rolledBack();
+		Snapshots.rolledBack();
+	}
+
+	/**
+	 * Write out the changes the shared entityManager is holding and then let go of every entity it holds, so that they can be garbage
+	 * collected. Any entity obtained before this call is detached: changes to it are no longer persisted, and it must be looked up again.
+	 * Must be called inside a transaction.
+	 */
+	public static void release() {
+		entityManager.flush();
+		entityManager.clear();
+		EntityCache.invalidate();
+	}
+
+	/**
+	 * @return true if a transaction is open on the shared entityManager
+	 */
+	public static boolean isActive() {
+		return depth > 0;
+	}
+}
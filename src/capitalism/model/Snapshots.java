@@ -0,0 +1,274 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import javax.persistence.EntityManager;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.controller.Simulation;
+import capitalism.utils.DBHandler;
+import capitalism.utils.Metrics;
+
+/**
+ * Copy-on-write management of the timeStamped entities (Commodity, Stock, Industry and SocialClass).
+ *
+ * The simulation always works on a complete set of entities at the current timeStamp. But once the simulation
+ * has moved on, an entity that did not change during a step is an exact duplicate of its predecessor, and need not be stored again,
+ * so a historical timeStamp only stores the entities that actually changed during that step. An entity that is missing at a historical
+ * timeStamp is resolved from the nearest earlier timeStamp at which it was stored.
+ *
+ * To know which entities changed, each entity tells this class whenever it is written to the database, from its PostPersist and
+ * PostUpdate callbacks, and the entities of the working timeStamp that were written are remembered, by key, until the
+ * simulation moves on. Then, instead of copying the whole working set to the new timeStamp and removing the duplicates that
+ * are left behind, {@link #moveOn(int, int, int)} moves the rows of the working set to the new timeStamp in the database, and writes
+ * back to the old one only the entities that changed. Unchanged entities are neither copied nor compared.
+ *
+ * The only timeStamps that are guaranteed to be complete are timeStamp 1 (the user's data) and the project's current timeStamp.
+ * Every other timeStamp is treated as sparse; lookups at a sparse timeStamp go through the resolution methods of the entity concerned.
+ * Resolution gives the same answer on complete data, so it is always safe (just slower) to treat a complete timeStamp as sparse.
+ */
+public class Snapshots {
+	private static final Logger logger = LogManager.getLogger("Snapshots");
+
+	// The changes to the working timeStamp of each project, indexed by projectID, so that switching between projects does not lose or confuse them
+	private static Map<Integer, Changes> changes = new HashMap<Integer, Changes>();
+
+	/**
+	 * The entities of one project that have been written to the database since its current working timeStamp was created, indexed by
+	 * their snapshot keys. An entity is held as it was last written, which is the state the database holds for it once the session
+	 * has been flushed.
+	 */
+	private static class Changes {
+		private final int timeStampID;
+		private final Map<String, Commodity> commodities = new HashMap<String, Commodity>();
+		private final Map<String, Stock> stocks = new HashMap<String, Stock>();
+		private final Map<String, Industry> industries = new HashMap<String, Industry>();
+		private final Map<String, SocialClass> socialClasses = new HashMap<String, SocialClass>();
+
+		private Changes(int timeStampID) {
+			this.timeStampID = timeStampID;
+		}
+
+		/**
+		 * @return an unmanaged copy of each entity that was written, at the timeStamp at which it was written
+		 */
+		private List<Object> copies() {
+			List<Object> copies = new ArrayList<Object>();
+			for (Commodity c : commodities.values())
+				copies.add(new Commodity(c));
+			for (Stock s : stocks.values())
+				copies.add(new Stock(s));
+			for (Industry i : industries.values())
+				copies.add(new Industry(i));
+			for (SocialClass sc : socialClasses.values()) {
+				SocialClass copy = new SocialClass();
+				copy.copy(sc);
+				copies.add(copy);
+			}
+			return copies;
+		}
+	}
+
+	/**
+	 * Whether the entities at the given project and timeStamp may have been compacted. If so, lookups should resolve
+	 * missing entities from earlier timeStamps.
+	 *
+	 * @param projectID
+	 *            the projectID
+	 * @param timeStampID
+	 *            the timeStampID
+	 * @return true if some entities at this timeStamp may be stored at an earlier timeStamp, false if the timeStamp is known to be complete
+	 */
+	public static boolean isSparse(int projectID, int timeStampID) {
+		if (timeStampID <= 1)
+			return false;
+		Project current = Simulation.getProjectCurrent();
+		if (current != null && current.getProjectID() == projectID)
+			return timeStampID < current.getTimeStampID();
+		Project project = Project.get(projectID);
+		return project != null && timeStampID < project.getTimeStampID();
+	}
+
+	/**
+	 * Reduce a list of rows, drawn from any number of timeStamps, to the latest version of each entity
+	 *
+	 * @param rows
+	 *            the rows to reduce
+	 * @param key
+	 *            yields the snapshot key of a row, which identifies the entity independently of its timeStamp
+	 * @param timeStamp
+	 *            yields the timeStampID of a row
+	 * @param <T>
+	 *            the entity type
+	 * @return a list containing, for each entity, the row with the highest timeStampID
+	 */
+	static <T> List<T> latest(List<T> rows, Function<T, String> key, ToIntFunction<T> timeStamp) {
+		Map<String, T> latest = new LinkedHashMap<String, T>();
+		for (T row : rows) {
+			String rowKey = key.apply(row);
+			T found = latest.get(rowKey);
+			if (found == null || timeStamp.applyAsInt(row) > timeStamp.applyAsInt(found))
+				latest.put(rowKey, row);
+		}
+		return new ArrayList<T>(latest.values());
+	}
+
+	/**
+	 * @param projectID
+	 *            the project of an entity that has been written
+	 * @param timeStampID
+	 *            the timeStamp of the entity
+	 * @return the changes to which the entity belongs, or null if this timeStamp is not the working timeStamp of a project whose
+	 *         changes are being kept
+	 */
+	private static Changes changesTo(int projectID, int timeStampID) {
+		Changes found = changes.get(projectID);
+		return found != null && found.timeStampID == timeStampID ? found : null;
+	}
+
+	/**
+	 * Record that a commodity has been written to the database
+	 * 
+	 * @param commodity
+	 *            the commodity
+	 */
+	static synchronized void written(Commodity commodity) {
+		Changes found = changesTo(commodity.pk.projectID, commodity.pk.timeStampID);
+		if (found != null)
+			found.commodities.put(commodity.snapshotKey(), commodity);
+	}
+
+	/**
+	 * Record that a stock has been written to the database
+	 * 
+	 * @param stock
+	 *            the stock
+	 */
+	static synchronized void written(Stock stock) {
+		Changes found = changesTo(stock.pk.projectID, stock.pk.timeStampID);
+		if (found != null)
+			found.stocks.put(stock.snapshotKey(), stock);
+	}
+
+	/**
+	 * Record that an industry has been written to the database
+	 * 
+	 * @param industry
+	 *            the industry
+	 */
+	static synchronized void written(Industry industry) {
+		Changes found = changesTo(industry.pk.projectID, industry.pk.timeStampID);
+		if (found != null)
+			found.industries.put(industry.snapshotKey(), industry);
+	}
+
+	/**
+	 * Record that a social class has been written to the database
+	 * 
+	 * @param socialClass
+	 *            the social class
+	 */
+	static synchronized void written(SocialClass socialClass) {
+		Changes found = changesTo(socialClass.pk.projectID, socialClass.pk.timeStampID);
+		if (found != null)
+			found.socialClasses.put(socialClass.snapshotKey(), socialClass);
+	}
+
+	/**
+	 * Start to keep the changes to a new working timeStamp, so that only these need be kept in the history when the simulation moves
+	 * on from it. Must be called when nothing has yet been written to the timeStamp that the session has not flushed.
+	 * 
+	 * @param projectID
+	 *            the project of the new working timeStamp
+	 * @param timeStampID
+	 *            the new working timeStamp
+	 */
+	public static synchronized void track(int projectID, int timeStampID) {
+		changes.put(projectID, new Changes(timeStampID));
+	}
+
+	/**
+	 * Make a new working timeStamp out of the old one, keeping in the history at the old timeStamp only those entities that were written
+	 * while it was the working timeStamp. Everything the session holds is flushed, the rows of the old timeStamp are moved to the new one
+	 * in the database (see {@link DBHandler#moveTimeStamp(int, int, int)}), and a copy of each entity that was written is persisted at the
+	 * old timeStamp. The session then lets go of every entity it holds, as {@link Session#release()} does, and the caller must look up
+	 * again any entity it wants to keep using.
+	 * <p>
+	 * This can only be done if the changes to the old timeStamp have been kept since it was created, and it is not timeStamp 1, which must
+	 * stay complete. Otherwise nothing is done, and the caller must copy the old timeStamp as a whole.
+	 * The caller must already have begun a transaction of the shared persistence session ({@link Session#begin()}).
+	 *
+	 * @param projectID
+	 *            the project
+	 * @param oldTimeStampID
+	 *            the working timeStamp, which becomes history
+	 * @param newTimeStampID
+	 *            the new working timeStamp. It must not yet contain any entities
+	 * @return true if the simulation has moved on, false if nothing was done
+	 */
+	public static synchronized boolean moveOn(int projectID, int oldTimeStampID, int newTimeStampID) {
+		if (oldTimeStampID <= 1 || changesTo(projectID, oldTimeStampID) == null) {
+			logger.debug("The changes to timeStamp {} of project {} are not known: it will be copied as a whole", oldTimeStampID, projectID);
+			return false;
+		}
+		EntityManager entityManager = Session.getEntityManager();
+		entityManager.flush(); // the last changes are recorded as they are written out
+		List<Object> copies = changesTo(projectID, oldTimeStampID).copies();
+		if (!DBHandler.moveTimeStamp(projectID, oldTimeStampID, newTimeStampID))
+			return false;
+		changes.remove(projectID);
+		Session.release();
+		for (Object copy : copies)
+			entityManager.persist(copy);
+		Metrics.copied(copies.size());
+		logger.debug("Moved timeStamp {} of project {} to timeStamp {}, keeping {} changed entities", oldTimeStampID, projectID, newTimeStampID,
+				copies.size());
+		return true;
+	}
+
+	/**
+	 * Forget the changes to the working timeStamp of a project, for example because the project has been restarted. Its next step will
+	 * then copy the working timeStamp as a whole.
+	 * 
+	 * @param projectID
+	 *            the project whose changes are to be forgotten
+	 */
+	public static synchronized void forget(int projectID) {
+		changes.remove(projectID);
+	}
+
+	/**
+	 * Forget the changes to every project, because the transaction in which they were written has been rolled back, and the entities
+	 * that were recorded no longer match the database. Called by {@link Session#rollback()}.
+	 */
+	static synchronized void rolledBack() {
+		changes.clear();
+	}
+}
@@ -72,16 +72,16 @@ public class SocialClass implements Serializable {
 	@Transient private SocialClass endComparator;
 
 	// Data Management
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_SOCIALCLASSES");
 	private static EntityManager entityManager;
 	private static TypedQuery<SocialClass> primaryQuery;
 	private static TypedQuery<SocialClass> allInProjectAndTimeStampQuery;
 	private static TypedQuery<SocialClass> allInProjectQuery;
 	private static TypedQuery<SocialClass> allQuery;
-	private static TypedQuery<SocialClass> deleteQuery;
+	private static TypedQuery<SocialClass> upToTimeStampQuery;
+	private static TypedQuery<SocialClass> upToTimeStampWithNameQuery;
 
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
 		primaryQuery = entityManager.createQuery(
 				"SELECT c FROM SocialClass c where c.pk.projectID= :project and c.pk.timeStampID = :timeStamp and c.pk.name=:socialClassName",
 				SocialClass.class);
@@ -91,7 +91,11 @@ public class SocialClass implements Serializable {
 				"SELECT c FROM SocialClass c where c.pk.projectID= :project and c.pk.timeStampID = :timeStamp ", SocialClass.class);
 		allInProjectQuery = entityManager.createQuery(
 				"SELECT c FROM SocialClass c where c.pk.projectID= :project ", SocialClass.class);
-		deleteQuery = entityManager.createQuery("Delete from SocialClass s where s.pk.projectID=:project and s.pk.timeStampID>1", SocialClass.class);
+		upToTimeStampQuery = entityManager.createQuery(
+				"SELECT c FROM SocialClass c where c.pk.projectID= :project and c.pk.timeStampID <= :timeStamp", SocialClass.class);
+		upToTimeStampWithNameQuery = entityManager.createQuery(
+				"SELECT c FROM SocialClass c where c.pk.projectID= :project and c.pk.timeStampID <= :timeStamp and c.pk.name=:socialClassName",
+				SocialClass.class);
 	}
 
 	/**
@@ -188,9 +192,8 @@ public class SocialClass implements Serializable {
 	 * @return an ObservableList of SocialClasses
 	 */
 	public static ObservableList<SocialClass> socialClassesObservable(int projectID, int timeStampID) {
-		SocialClass.allInProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		ObservableList<SocialClass> result = FXCollections.observableArrayList();
-		for (SocialClass s : SocialClass.allInProjectAndTimeStampQuery.getResultList()) {
+		for (SocialClass s : all(projectID, timeStampID)) {
 			result.add(s);
 		}
 		return result;
@@ -540,6 +543,8 @@ public class SocialClass implements Serializable {
 	 */
 
 	public static SocialClass single(int projectID, int timeStampID, String socialClassName) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, socialClassName);
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("socialClassName", socialClassName);
 		try {
 			return primaryQuery.getSingleResult();
@@ -583,6 +588,8 @@ public class SocialClass implements Serializable {
 	 * @return a list of all social classes for the current project and timeStamp
 	 */
 	public static List<SocialClass> all(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolved(projectID, timeStampID);
 		allInProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		return allInProjectAndTimeStampQuery.getResultList();
 	}
@@ -599,6 +606,8 @@ public class SocialClass implements Serializable {
 	 * @return the single social class with the name socialClassName, for the given project and timeStamp
 	 */
 	public static SocialClass withName(int projectID, int timeStampID, String socialClassName) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, socialClassName);
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID)
 				.setParameter("socialClassName", socialClassName);
 		try {
@@ -608,6 +617,103 @@ public class SocialClass implements Serializable {
 		}
 	}
 
+	/**
+	 * the social classes as they stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * Each social class is taken from the nearest timeStamp, no later than the given one, at which it was stored.
+	 * 
+	 * @param projectID
+	 *            the given projectID
+	 * @param timeStampID
+	 *            the given timeStampID
+	 * @return a list of all social classes for the given project, as they stood at the given timeStamp
+	 */
+	private static List<SocialClass> resolved(int projectID, int timeStampID) {
+		upToTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
+		List<SocialClass> result = Snapshots.latest(upToTimeStampQuery.getResultList(), SocialClass::snapshotKey, SocialClass::getTimeStampID);
+		for (int i = 0; i < result.size(); i++) {
+			result.set(i, atTimeStamp(result.get(i), timeStampID));
+		}
+		return result;
+	}
+
+	/**
+	 * the named social class as it stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
+	 * 
+	 * @param projectID
+	 *            the given projectID
+	 * @param timeStampID
+	 *            the given timeStampID
+	 * @param socialClassName
+	 *            the name of the social Class
+	 * @return the social class, taken from the nearest timeStamp no later than the given one, or null if it does not exist
+	 */
+	private static SocialClass resolvedSingle(int projectID, int timeStampID, String socialClassName) {
+		upToTimeStampWithNameQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID)
+				.setParameter("socialClassName", socialClassName);
+		List<SocialClass> found = Snapshots.latest(upToTimeStampWithNameQuery.getResultList(), SocialClass::snapshotKey, SocialClass::getTimeStampID);
+		return found.isEmpty() ? null : atTimeStamp(found.get(0), timeStampID);
+	}
+
+	/**
+	 * present a stored social class as it stood at a later timeStamp, during which it did not change.
+	 * If it was stored at that timeStamp, it is returned as it is. Otherwise an unmanaged copy is returned, so that
+	 * methods which look up related entities (stocks, for example) look them up at the requested timeStamp.
+	 * 
+	 * <p>
+	 * The comparators of the copy are those it would have been given when the requested timeStamp was current (see
+	 * {@link #setComparators(int, int)}), not those of the stored social class, which compare it with the predecessors of the timeStamp at which
+	 * it was stored. Since it did not change, its state at the timeStamp before the requested one is the stored state.
+	 * 
+	 * @param stored
+	 *            the social class as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a social class whose timeStampID is the requested timeStamp
+	 */
+	private static SocialClass atTimeStamp(SocialClass stored, int timeStampID) {
+		if (stored.pk.timeStampID == timeStampID)
+			return stored;
+		SocialClass view = copyAt(stored, timeStampID);
+		view.previousComparator = stored.pk.timeStampID == timeStampID - 1 ? stored : copyAt(stored, timeStampID - 1);
+		view.startComparator = single(stored.pk.projectID, 1, stored.pk.name);
+		view.customComparator = view;
+		view.endComparator = view;
+		return view;
+	}
+
+	/**
+	 * an unmanaged copy of a stored social class, as it stood at a later timeStamp during which it did not change, without comparators
+	 * 
+	 * @param stored
+	 *            the social class as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a copy of the social class whose timeStampID is the requested timeStamp
+	 */
+	private static SocialClass copyAt(SocialClass stored, int timeStampID) {
+		SocialClass view = new SocialClass();
+		view.copy(stored);
+		view.pk.timeStampID = timeStampID;
+		return view;
+	}
+
+	/**
+	 * @return the key which identifies this social class independently of its timeStamp
+	 */
+	public String snapshotKey() {
+		return pk.name;
+	}
+
+	/**
+	 * Tell {@link Snapshots} that this social class has been written to the database, so that it is kept in the history when the simulation
+	 * moves on
+	 */
+	@PostPersist
+	@PostUpdate
+	private void written() {
+		Snapshots.written(this);
+	}
+
 	/**
 	 * @return the entityManager
 	 */
@@ -615,6 +721,16 @@ public class SocialClass implements Serializable {
 		return entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the SocialClass entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	/**
 	 * 
 	 * @return the projectID of this SocialClass entity
@@ -778,16 +894,6 @@ public class SocialClass implements Serializable {
 		this.revenue = revenue;
 	}
 	
-	/**
-	 * Delete all socialClasses with the given projectID except those with timeStamp 1
-	 * 
-	 * @param projectID
-	 *            the projectID whose socialClasses will be deleted
-	 */
-	public static void deleteFromProject(int projectID) {
-		deleteQuery.setParameter("project", projectID);
-		deleteQuery.executeUpdate();
-	}
 
 
 	/**
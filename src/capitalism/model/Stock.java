@@ -21,6 +21,7 @@
 package capitalism.model;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import javax.persistence.*;
 import javax.xml.bind.annotation.XmlAccessType;
@@ -98,7 +99,6 @@ public class Stock implements Serializable {
 	@Transient private Stock endComparator;
 
 	// Data Management
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_STOCKS");
 	private static EntityManager entityManager;
 	private static TypedQuery<Stock> primaryQuery;
 	private static TypedQuery<Stock> allQuery;
@@ -110,10 +110,27 @@ public class Stock implements Serializable {
 	private static TypedQuery<Stock> sourcesOfDemandQuery;
 	private static TypedQuery<Stock> withStockTypeQuery;
 	private static TypedQuery<Stock> productiveQuery;
-	private static TypedQuery<Stock> deleteQuery;
+	private static TypedQuery<Stock> upToTimeStampQuery;
+	private static TypedQuery<Stock> upToTimeStampWithKeyQuery;
+	private static TypedQuery<Stock> refreshQuery;
+	private static Query reCalculateQuery;
+	private static Query reCalculateRoundedQuery;
 
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
+		refreshQuery = entityManager.createQuery(
+				"SELECT s FROM Stock s where s.pk.projectID= :project and s.pk.timeStampID = :timeStamp", Stock.class);
+		refreshQuery.setHint("eclipselink.refresh", "TRUE");
+
+		// the price and value of each stock, recalculated in the database from its quantity and the unit price and value of its commodity
+		String unitPrice = "(SELECT C.UNITPRICE FROM COMMODITIES C WHERE C.PROJECT = S.PROJECT AND C.TIMESTAMP = S.TIMESTAMP AND C.NAME = S.COMMODITY)";
+		String unitValue = "(SELECT C.UNITVALUE FROM COMMODITIES C WHERE C.PROJECT = S.PROJECT AND C.TIMESTAMP = S.TIMESTAMP AND C.NAME = S.COMMODITY)";
+		String precision = Integer.toString(MathStuff.roundingPrecision);
+		reCalculateQuery = entityManager.createNativeQuery("UPDATE STOCKS S SET \"PRICE\" = S.QUANTITY * " + unitPrice
+				+ ", \"VALUE\" = S.QUANTITY * " + unitValue + " WHERE S.PROJECT = ? AND S.TIMESTAMP = ?");
+		reCalculateRoundedQuery = entityManager.createNativeQuery("UPDATE STOCKS S SET QUANTITY = ROUND(S.QUANTITY, " + precision
+				+ "), \"PRICE\" = ROUND(S.QUANTITY * " + unitPrice + ", " + precision + "), \"VALUE\" = ROUND(S.QUANTITY * " + unitValue + ", "
+				+ precision + ") WHERE S.PROJECT = ? AND S.TIMESTAMP = ?");
 		primaryQuery = entityManager.createQuery(
 				"SELECT s FROM Stock s WHERE s.pk.projectID=:project and s.pk.timeStampID =:timeStamp and s.pk.owner =:owner and s.pk.commodity= :commodity and s.pk.stockType=:stockType",
 				Stock.class);
@@ -139,7 +156,11 @@ public class Stock implements Serializable {
 				Stock.class);
 		productiveQuery = entityManager.createQuery(
 				"Select s from Stock s where s.pk.projectID =:project and s.pk.stockType ='PRODUCTIVE'", Stock.class);
-		deleteQuery = entityManager.createQuery("Delete from Stock s where s.pk.projectID=:project and s.pk.timeStampID>1", Stock.class);
+		upToTimeStampQuery = entityManager.createQuery(
+				"SELECT s FROM Stock s where s.pk.projectID= :project and s.pk.timeStampID <= :timeStamp", Stock.class);
+		upToTimeStampWithKeyQuery = entityManager.createQuery(
+				"SELECT s FROM Stock s WHERE s.pk.projectID=:project and s.pk.timeStampID <=:timeStamp and s.pk.owner =:owner and s.pk.commodity= :commodity and s.pk.stockType=:stockType",
+				Stock.class);
 	}
 
 	/**
@@ -477,8 +498,12 @@ public class Stock implements Serializable {
 	 * @return an observableList of stocks
 	 */
 	public static ObservableList<Stock> ofStockTypeObservable(int projectID, int timeStampID, String stockType) {
-		Stock.withStockTypeQuery.setParameter("project", projectID).setParameter("stockType", stockType).setParameter("timeStamp", timeStampID);
 		ObservableList<Stock> result = FXCollections.observableArrayList();
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			result.addAll(resolvedWhere(projectID, timeStampID, null, null, stockType));
+			return result;
+		}
+		Stock.withStockTypeQuery.setParameter("project", projectID).setParameter("stockType", stockType).setParameter("timeStamp", timeStampID);
 		for (Stock s : Stock.withStockTypeQuery.getResultList()) {
 			result.add(s);
 		}
@@ -491,8 +516,46 @@ public class Stock implements Serializable {
 	 */
 
 	public void reCalculateStockTotalValuesAndPrices() {
-		price = quantity * unitPrice();
-		value = quantity * unitValue();
+		double newPrice = quantity * unitPrice();
+		double newValue = quantity * unitValue();
+		Aggregates.beforeChange(this);
+		price = newPrice;
+		value = newValue;
+		Aggregates.afterChange(this);
+		Ledger.changed(this);
+	}
+
+	/**
+	 * Recalculate the price and value of every stock at the given project and timeStamp, as {@link #reCalculateStockTotalValuesAndPrices()}
+	 * does for one stock.
+	 * <p>
+	 * The recalculation is done with a single UPDATE statement in the database instead of a change to each stock in turn, and so must be
+	 * called inside a transaction of the shared persistence session ({@link Session#begin()}), which it joins but does not commit. The
+	 * statement works on what is in the database, so the changes held in memory are written out first; the stocks are then read back in one
+	 * query, which refreshes the stocks already in memory in place, so that anyone holding one of them sees its new price and value.
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param timeStampID
+	 *            the timeStamp
+	 * @param rounded
+	 *            if true, the quantity, price and value are rounded as {@link #modifyTo(double)} rounds them
+	 * @throws IllegalStateException
+	 *             if no transaction is open
+	 */
+	public static void reCalculateAll(int projectID, int timeStampID, boolean rounded) {
+		if (!Session.isActive())
+			throw new IllegalStateException("The stocks of project " + projectID + " can only be recalculated inside a transaction");
+		entityManager.flush();
+		Query update = rounded ? reCalculateRoundedQuery : reCalculateQuery;
+		int updated = update.setParameter(1, projectID).setParameter(2, timeStampID).executeUpdate();
+		// the statement bypasses the entities, so tell Snapshots that every stock it reaches has been written
+		for (Stock s : refreshQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList())
+			Snapshots.written(s);
+		Aggregates.invalidate();
+		Totals.invalidate();
+		Ledger.changedAll(projectID, timeStampID);
+		logger.debug("Recalculated the price and value of {} stocks in project {} at timeStamp {}", updated, projectID, timeStampID);
 	}
 
 	/**
@@ -511,12 +574,16 @@ public class Stock implements Serializable {
 		double newValue = value + extraValue;
 		double newPrice = price + extraPrice;
 		double newQuantity = quantity + extraQuantity;
+		Aggregates.beforeChange(this);
 		quantity = MathStuff.round(newQuantity);
 		value = MathStuff.round(newValue);
 		price = MathStuff.round(newPrice);
-		Reporter.report(logger, 3,
-				"Commodity [%s], of type [%s], owned by [%s]: is now %.0f. Its value is now $%.0f (intrinsic %.0f), and its price is %.0f (intrinsic %.0f)",
-				pk.commodity, pk.stockType, pk.owner, quantity, value, value / melt, price, price / melt);
+		Aggregates.afterChange(this);
+		Ledger.changed(this);
+		if (Reporter.reports(3))
+			Reporter.report(logger, 3,
+					"Commodity [%s], of type [%s], owned by [%s]: is now %.0f. Its value is now $%.0f (intrinsic %.0f), and its price is %.0f (intrinsic %.0f)",
+					pk.commodity, pk.stockType, pk.owner, quantity, value, value / melt, price, price / melt);
 	}
 
 	/**
@@ -546,12 +613,16 @@ public class Stock implements Serializable {
 			double unitPrice = unitPrice();
 			double newValue = newQuantity * unitValue;
 			double newPrice = newQuantity * unitPrice;
+			Aggregates.beforeChange(this);
 			quantity = MathStuff.round(newQuantity);
 			value = MathStuff.round(newValue);
 			price = MathStuff.round(newPrice);
-			Reporter.report(logger, 3,
-					"Size of commodity [%s], of type [%s], owned by [%s]: is %.0f. Value set to $%.0f (intrinsic %.0f), and price to %.0f (intrinsic %.0f)",
-					pk.commodity, pk.stockType, pk.owner, quantity, value, value / melt, price, price / melt);
+			Aggregates.afterChange(this);
+			Ledger.changed(this);
+			if (Reporter.reports(3))
+				Reporter.report(logger, 3,
+						"Size of commodity [%s], of type [%s], owned by [%s]: is %.0f. Value set to $%.0f (intrinsic %.0f), and price to %.0f (intrinsic %.0f)",
+						pk.commodity, pk.stockType, pk.owner, quantity, value, value / melt, price, price / melt);
 		} catch (Exception e) {
 			Dialogues.alert(logger, "Something went wrong pre-processing the stock called %s. Please check your data.", pk.commodity);
 		}
@@ -610,16 +681,22 @@ public class Stock implements Serializable {
 						pk.commodity, fromPrice / fromQuantity, unitPrice);
 			}
 		}
-		logger.debug(String.format("   Transfer %.2f from [%s] in [%s] to [%s] in [%s]",
-				quantityTransferred, pk.commodity, pk.owner, to.name(), to.getOwner()));
-		logger.debug(String.format("   Recipient [%s] size is: %.2f", to.name(), to.getQuantity()));
-		logger.debug(String.format("   Donor [%s] size is: %.2f ", pk.commodity, quantity));
+		boolean debug = logger.isDebugEnabled();
+		if (debug) {
+			logger.debug(String.format("   Transfer %.2f from [%s] in [%s] to [%s] in [%s]",
+					quantityTransferred, pk.commodity, pk.owner, to.name(), to.getOwner()));
+			logger.debug(String.format("   Recipient [%s] size is: %.2f", to.name(), to.getQuantity()));
+			logger.debug(String.format("   Donor [%s] size is: %.2f ", pk.commodity, quantity));
+		}
 
 		to.modifyBy(quantityTransferred);
 		modifyBy(-quantityTransferred);
+		Ledger.transferred(this, to, quantityTransferred, quantityTransferred * unitValue, quantityTransferred * unitPrice);
 
-		logger.debug(String.format("   Recipient [%s] size is now: %.2f ", to.name(), to.getQuantity()));
-		logger.debug(String.format("   Donor [%s] size is now: %.2f ", pk.commodity, quantity));
+		if (debug) {
+			logger.debug(String.format("   Recipient [%s] size is now: %.2f ", to.name(), to.getQuantity()));
+			logger.debug(String.format("   Donor [%s] size is now: %.2f ", pk.commodity, quantity));
+		}
 	}
 
 	/**
@@ -657,6 +734,10 @@ public class Stock implements Serializable {
 	 * @return the single stock defined by this primary key, null if it does not exist
 	 */
 	public static Stock single(int projectID, int timeStampID, String industry, String commodity, String stockType) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.stock(industry, commodity, stockType);
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, industry, commodity, stockType);
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("owner", industry)
 				.setParameter("commodity", commodity).setParameter("stockType", stockType);
 		try {
@@ -679,6 +760,10 @@ public class Stock implements Serializable {
 	 * @return the single stock of money owned by the industry
 	 */
 	public static Stock moneyByOwner(int projectID, int timeStampID, String industry) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.stock(industry, "Money", Stock.STOCKTYPE.MONEY.text());
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, industry, "Money", Stock.STOCKTYPE.MONEY.text());
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("owner", industry)
 				.setParameter("stockType", Stock.STOCKTYPE.MONEY.text()).setParameter("commodity", "Money");
 		try {
@@ -710,6 +795,8 @@ public class Stock implements Serializable {
 	 * @return a list of stocks at the given projectID and timeStampID
 	 */
 	public static List<Stock> all(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedWhere(projectID, timeStampID, null, null, null);
 		allInProjectAndTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		return allInProjectAndTimeStampQuery.getResultList();
 	}
@@ -739,6 +826,8 @@ public class Stock implements Serializable {
 	 * @return a list of stocks for the given commodity at the currently selected time and for the currently selected project
 	 */
 	public static List<Stock> stocksOfCommodity(int projectID, int timeStampID, String commodityName) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedWhere(projectID, timeStampID, null, commodityName, null);
 		ofCommodityQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("commodity",
 				commodityName);
 		return ofCommodityQuery.getResultList();
@@ -754,6 +843,11 @@ public class Stock implements Serializable {
 	 * @return a list of all stocks that constitute sources of demand
 	 */
 	public static List<Stock> sourcesOfDemand(int projectID, int timeStampID) {
+		if (Snapshots.isSparse(projectID, timeStampID)) {
+			List<Stock> result = resolvedWhere(projectID, timeStampID, null, null, Stock.STOCKTYPE.PRODUCTIVE.text());
+			result.addAll(resolvedWhere(projectID, timeStampID, null, null, Stock.STOCKTYPE.CONSUMPTION.text()));
+			return result;
+		}
 		sourcesOfDemandQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		sourcesOfDemandQuery.setParameter("stockType1", Stock.STOCKTYPE.PRODUCTIVE.text()).setParameter("stockType2",
 				Stock.STOCKTYPE.CONSUMPTION.text());
@@ -772,6 +866,8 @@ public class Stock implements Serializable {
 	 * @return a list of the productive stocks managed by this industry
 	 */
 	public static List<Stock> allProductiveInIndustry(int projectID, int timeStampID, String industry) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedWhere(projectID, timeStampID, industry, null, Stock.STOCKTYPE.PRODUCTIVE.text());
 		withOwnerAndTypeQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		withOwnerAndTypeQuery.setParameter("owner", industry).setParameter("stockType", Stock.STOCKTYPE.PRODUCTIVE.text());
 		return withOwnerAndTypeQuery.getResultList();
@@ -791,6 +887,10 @@ public class Stock implements Serializable {
 	 * @return the single productive stock, with the given commodity, of the named industry
 	 */
 	public static Stock singleProductive(int projectID, int timeStampID, String industry, String commodity) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.stock(industry, commodity, Stock.STOCKTYPE.PRODUCTIVE.text());
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, industry, commodity, Stock.STOCKTYPE.PRODUCTIVE.text());
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID)
 				.setParameter("owner", industry).setParameter("stockType", Stock.STOCKTYPE.PRODUCTIVE.text()).setParameter("commodity", commodity);
 		try {
@@ -824,6 +924,8 @@ public class Stock implements Serializable {
 	 * @return a list of the consumption stocks owned by this social class
 	 */
 	public static List<Stock> consumedByClass(int projectID, int timeStampID, String socialClass) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedWhere(projectID, timeStampID, socialClass, null, Stock.STOCKTYPE.CONSUMPTION.text());
 		withOwnerAndTypeQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		withOwnerAndTypeQuery.setParameter("owner", socialClass).setParameter("stockType", Stock.STOCKTYPE.CONSUMPTION.text());
 		return withOwnerAndTypeQuery.getResultList();
@@ -843,6 +945,10 @@ public class Stock implements Serializable {
 	 * @return the single consumption stocks of the given commodity that is owned by this social class
 	 */
 	public static Stock consumptionByCommodityAndClassSingle(int projectID, int timeStampID, String socialClass, String commodity) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return EntityCache.stock(socialClass, commodity, Stock.STOCKTYPE.CONSUMPTION.text());
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedSingle(projectID, timeStampID, socialClass, commodity, Stock.STOCKTYPE.CONSUMPTION.text());
 		primaryQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
 		primaryQuery.setParameter("owner", socialClass).setParameter("stockType", Stock.STOCKTYPE.CONSUMPTION.text()).setParameter("commodity",
 				commodity);
@@ -869,6 +975,8 @@ public class Stock implements Serializable {
 	 *         Note: there can be more than one seller of the same use value
 	 */
 	public static List<Stock> salesByCommodity(int projectID, int timeStampID, String commodity) {
+		if (Snapshots.isSparse(projectID, timeStampID))
+			return resolvedWhere(projectID, timeStampID, null, commodity, Stock.STOCKTYPE.SALES.text());
 		ofCommodityAndTypeQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("commodity",
 				commodity);
 		ofCommodityAndTypeQuery.setParameter("stockType", Stock.STOCKTYPE.SALES.text());
@@ -876,16 +984,114 @@ public class Stock implements Serializable {
 	}
 	
 	/**
-	 * Delete all stocks with the given projectID except those with timeStamp 1
+	 * the stocks as they stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}), selected by
+	 * owner, commodity and stock type. Each stock is taken from the nearest timeStamp, no later than the given one, at which it was stored.
+	 * 
+	 * @param projectID
+	 *            the given projectID
+	 * @param timeStampID
+	 *            the given timeStampID
+	 * @param owner
+	 *            the owner of the stocks, or null for any owner
+	 * @param commodity
+	 *            the commodity of the stocks, or null for any commodity
+	 * @param stockType
+	 *            the stockType of the stocks, or null for any stockType
+	 * @return a list of the selected stocks, as they stood at the given timeStamp
+	 */
+	private static List<Stock> resolvedWhere(int projectID, int timeStampID, String owner, String commodity, String stockType) {
+		upToTimeStampQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID);
+		List<Stock> result = new ArrayList<Stock>();
+		for (Stock s : Snapshots.latest(upToTimeStampQuery.getResultList(), Stock::snapshotKey, Stock::getTimeStampID)) {
+			if ((owner == null || owner.equals(s.pk.owner)) && (commodity == null || commodity.equals(s.pk.commodity))
+					&& (stockType == null || stockType.equals(s.pk.stockType)))
+				result.add(atTimeStamp(s, timeStampID));
+		}
+		return result;
+	}
+
+	/**
+	 * the single stock with the given key as it stood at a timeStamp whose entities may have been compacted (see {@link Snapshots}).
 	 * 
 	 * @param projectID
-	 *            the projectID whose stocks will be deleted
+	 *            the given project
+	 * @param timeStampID
+	 *            the given timeStamp
+	 * @param owner
+	 *            the name of the owner of the stock
+	 * @param commodity
+	 *            the name of the commodity of the stock
+	 * @param stockType
+	 *            the type of the stock
+	 * @return the stock, taken from the nearest timeStamp no later than the given one, or null if it does not exist
+	 */
+	private static Stock resolvedSingle(int projectID, int timeStampID, String owner, String commodity, String stockType) {
+		upToTimeStampWithKeyQuery.setParameter("project", projectID).setParameter("timeStamp", timeStampID).setParameter("owner", owner)
+				.setParameter("commodity", commodity).setParameter("stockType", stockType);
+		List<Stock> found = Snapshots.latest(upToTimeStampWithKeyQuery.getResultList(), Stock::snapshotKey, Stock::getTimeStampID);
+		return found.isEmpty() ? null : atTimeStamp(found.get(0), timeStampID);
+	}
+
+	/**
+	 * present a stored stock as it stood at a later timeStamp, during which it did not change.
+	 * If it was stored at that timeStamp, it is returned as it is. Otherwise an unmanaged copy is returned, so that
+	 * the commodity of the stock is looked up at the requested timeStamp.
+	 * 
+	 * <p>
+	 * The comparators of the copy are those it would have been given when the requested timeStamp was current (see
+	 * {@link #setComparators(int, int)}), not those of the stored stock, which compare it with the predecessors of the timeStamp at which
+	 * it was stored. Since it did not change, its state at the timeStamp before the requested one is the stored state.
+	 * 
+	 * @param stored
+	 *            the stock as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a stock whose timeStampID is the requested timeStamp
 	 */
-	public static void deleteFromProject(int projectID) {
-		deleteQuery.setParameter("project", projectID);
-		deleteQuery.executeUpdate();
+	private static Stock atTimeStamp(Stock stored, int timeStampID) {
+		if (stored.pk.timeStampID == timeStampID)
+			return stored;
+		Stock view = copyAt(stored, timeStampID);
+		view.previousComparator = stored.pk.timeStampID == timeStampID - 1 ? stored : copyAt(stored, timeStampID - 1);
+		view.startComparator = single(stored.pk.projectID, 1, stored.pk.owner, stored.pk.commodity, stored.pk.stockType);
+		view.customComparator = view;
+		view.endComparator = view;
+		return view;
 	}
 
+	/**
+	 * an unmanaged copy of a stored stock, as it stood at a later timeStamp during which it did not change, without comparators
+	 * 
+	 * @param stored
+	 *            the stock as stored in the database
+	 * @param timeStampID
+	 *            the timeStamp at which it is being viewed
+	 * @return a copy of the stock whose timeStampID is the requested timeStamp
+	 */
+	private static Stock copyAt(Stock stored, int timeStampID) {
+		Stock view = new Stock(stored);
+		view.pk.timeStampID = timeStampID;
+		return view;
+	}
+
+	/**
+	 * @return the key which identifies this stock independently of its timeStamp
+	 */
+	public String snapshotKey() {
+		return pk.owner + "|" + pk.commodity + "|" + pk.stockType;
+	}
+
+	/**
+	 * Tell {@link Snapshots} that this stock has been written to the database, so that it is kept in the history when the simulation
+	 * moves on
+	 */
+	@PostPersist
+	@PostUpdate
+	private void written() {
+		Snapshots.written(this);
+	}
+
+
 
 	/**
 	 * @return the entityManager
@@ -894,6 +1100,16 @@ public class Stock implements Serializable {
 		return entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the Stock entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	/**
 	 * Part of primitive typology of use values
 	 * 
@@ -990,7 +1206,10 @@ public class Stock implements Serializable {
 	 *            the quantity to set
 	 */
 	public void setQuantity(double quantity) {
+		Aggregates.beforeChange(this);
 		this.quantity = quantity;
+		Aggregates.afterChange(this);
+		Ledger.changed(this);
 	}
 
 	/**
@@ -1009,7 +1228,9 @@ public class Stock implements Serializable {
 	 *            the quantity demanded for production to continue at the same level
 	 */
 	public void setReplenishmentDemand(double quantityDemanded) {
+		Aggregates.beforeChange(this);
 		this.replenishmentDemand = MathStuff.round(quantityDemanded);
+		Aggregates.afterChange(this);
 	}
 
 	/**
@@ -1084,7 +1305,10 @@ public class Stock implements Serializable {
 	 *            the value to set
 	 */
 	public void setValue(double value) {
+		Aggregates.beforeChange(this);
 		this.value = value;
+		Aggregates.afterChange(this);
+		Ledger.changed(this);
 	}
 
 	/**
@@ -1099,7 +1323,10 @@ public class Stock implements Serializable {
 	 *            the price to set
 	 */
 	public void setPrice(double price) {
+		Aggregates.beforeChange(this);
 		this.price = price;
+		Aggregates.afterChange(this);
+		Ledger.changed(this);
 	}
 
 	/**
@@ -1201,7 +1428,9 @@ public class Stock implements Serializable {
 	 *            the expansionDemand to set
 	 */
 	public void setExpansionDemand(double expansionDemand) {
+		Aggregates.beforeChange(this);
 		this.expansionDemand = expansionDemand;
+		Aggregates.afterChange(this);
 	}
 
 	/**
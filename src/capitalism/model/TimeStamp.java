@@ -52,24 +52,21 @@ public class TimeStamp implements Serializable {
 	@Transient private TimeStamp customComparator;
 	@Transient private TimeStamp endComparator;
 
-	private static EntityManagerFactory entityManagerFactory = Persistence.createEntityManagerFactory("DB_TIMESTAMP");
 	private static EntityManager entityManager;
 	private static TypedQuery<TimeStamp> primaryQuery;
 	private static TypedQuery<TimeStamp> superStateQuery;
 	private static TypedQuery<TimeStamp> allInProjectQuery;
 	private static TypedQuery<TimeStamp> allQuery;
-	private static TypedQuery<TimeStamp> deleteQuery;
 
 	// create the typed queries statically but not as named queries. This makes them easier to find and modify
 	static {
-		entityManager = entityManagerFactory.createEntityManager();
+		entityManager = Session.getEntityManager();
 		primaryQuery = entityManager.createQuery(
 				"SELECT t FROM TimeStamp t where t.pk.projectID = :project and t.pk.timeStampID = :timeStamp", TimeStamp.class);
 		allQuery = entityManager.createQuery("SELECT t from TimeStamp t", TimeStamp.class);
 		allInProjectQuery = entityManager.createQuery("Select t from TimeStamp t where t.pk.projectID =:project", TimeStamp.class);
 		superStateQuery = entityManager.createQuery(
 				"Select t from TimeStamp t where t.pk.projectID=:project and t.period= :period and t.superState=:superState", TimeStamp.class);
-		deleteQuery=entityManager.createQuery("Delete from TimeStamp t where t.pk.projectID=:project and t.pk.timeStampID>1", TimeStamp.class);
 	}
 
 	/**
@@ -320,14 +317,9 @@ public class TimeStamp implements Serializable {
 	 * 
 	 */
 	public double initialCapital() {
-		double initialCapital = 0;
-		for (Industry c : Industry.all(pk.projectID, pk.timeStampID)) {
-			initialCapital += c.productiveCapital();
-		}
-		// TODO get this aggregate query working
-		// double checkInitialCapital;
-		// checkInitialCapital=DataManager.industriesInitialCapital(pk.timeStamp);
-		return initialCapital;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.productiveCapital();
+		return Totals.of(pk.projectID, pk.timeStampID).productiveCapital();
 	}
 
 	/**
@@ -346,11 +338,9 @@ public class TimeStamp implements Serializable {
 	 * @return the total profit in the economy for this timeStamp and its project
 	 */
 	public double profit() {
-		double profit = 0.0;
-		for (Commodity commodity : Commodity.all(pk.projectID, pk.timeStampID)) {
-			profit += commodity.profit();
-		}
-		return profit;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.profit();
+		return Totals.of(pk.projectID, pk.timeStampID).profit();
 	}
 
 	/**
@@ -369,28 +359,18 @@ public class TimeStamp implements Serializable {
 	 * @return the total value in the economy
 	 */
 	public double totalValue() {
-		// TODO replace by a sum query
-		double totalValue = 0;
-		for (Stock s : Stock.all(pk.projectID, pk.timeStampID)) {
-			if ((!s.getStockType().equals("Money")) || (Parameters.isFullPricing())) {
-				totalValue += s.getValue();
-			}
-		}
-		return totalValue;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.totalValue(Parameters.isFullPricing());
+		return Totals.of(pk.projectID, pk.timeStampID).totalValue(Parameters.isFullPricing());
 	}
 
 	/**
 	 * @return the total price in the economy
 	 */
 	public double totalPrice() {
-		// TODO replace by a sum query
-		double totalPrice = 0;
-		for (Stock s : Stock.all(pk.projectID, pk.timeStampID)) {
-			if ((!s.getStockType().equals("Money")) || (Parameters.isFullPricing())) {
-				totalPrice += s.getPrice();
-			}
-		}
-		return totalPrice;
+		if (EntityCache.covers(pk.projectID, pk.timeStampID))
+			return Aggregates.totalPrice(Parameters.isFullPricing());
+		return Totals.of(pk.projectID, pk.timeStampID).totalPrice(Parameters.isFullPricing());
 	}
 
 	/**
@@ -466,21 +446,21 @@ public class TimeStamp implements Serializable {
 		return superStateQuery.getResultList();
 	}
 
-	/**
-	 * Delete all timeStamps with the given projectID except those with timeStampID 1
-	 * 
-	 * @param projectID
-	 *            the projectID whose timeStamps will be deleted
-	 */
-	public static void deleteFromProject(int projectID) {
-		deleteQuery.setParameter("project", projectID);
-		deleteQuery.executeUpdate();
-	}
 	
 	public static EntityManager getEntityManager() {
 		return entityManager;
 	}
 
+	/**
+	 * Create a new persistence session for the TimeStamp entities, independent of the shared one returned by {@link #getEntityManager()}.
+	 * Unlike the shared session, it may be used by a thread other than the one running the interactive simulation; the caller must close it.
+	 * 
+	 * @return a new entityManager
+	 */
+	public static EntityManager createEntityManager() {
+		return Session.createEntityManager();
+	}
+
 	/**
 	 * Get the timeStampID of this timeStamp
 	 * 
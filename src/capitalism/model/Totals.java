@@ -0,0 +1,336 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.model;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The totals of one timeStamp of a project: for each commodity, the quantity, value and price of its stocks, the quantity offered for sale,
+ * the replenishment and expansion demand, and the capital and profit of the industries that produce it; and for the timeStamp as a whole,
+ * the same totals together with the stock used up and produced and the size and revenue of the social classes.
+ *
+ * The totals are computed by one grouped SUM query per table, so no entity is read to compute them. At a sparse timeStamp (see
+ * {@link Snapshots}), each query sums the latest row of each entity at or before the timeStamp, which is what resolution would give.
+ * The totals of a historical timeStamp never change, so they are kept until the {@link EntityCache} is next invalidated.
+ *
+ * The working timeStamp of the current project is the exception. Its entities are changed in memory, and these changes are not in the
+ * database until the simulation moves on, so its totals are taken instead from the {@link Aggregates} and the entities in the
+ * {@link EntityCache}, and they are computed afresh on every call.
+ */
+public class Totals {
+	private static final Logger logger = LogManager.getLogger("Totals");
+
+	// the columns of the per-commodity totals
+	public static final int QUANTITY = 0;
+	public static final int VALUE = 1;
+	public static final int PRICE = 2;
+	public static final int SUPPLY = 3;
+	public static final int REPLENISHMENT_DEMAND = 4;
+	public static final int EXPANSION_DEMAND = 5;
+	public static final int PRODUCTIVE_CAPITAL = 6;
+	public static final int INITIAL_CAPITAL = 7;
+	public static final int PROFIT = 8;
+	private static final int COLUMNS = 9;
+
+	// the totals of historical timeStamps, by "project|timeStamp"
+	private static Map<String, Totals> computed = new HashMap<String, Totals>();
+
+	private static TypedQuery<Object[]> stockQuery;
+	private static TypedQuery<Object[]> industryQuery;
+	private static TypedQuery<Object[]> commodityQuery;
+	private static TypedQuery<Object[]> socialClassQuery;
+	private static TypedQuery<Object[]> sparseStockQuery;
+	private static TypedQuery<Object[]> sparseIndustryQuery;
+	private static TypedQuery<Object[]> sparseCommodityQuery;
+	private static TypedQuery<Object[]> sparseSocialClassQuery;
+
+	static {
+		EntityManager entityManager = Session.getEntityManager();
+		String stocks = "SELECT s.pk.commodity, s.pk.stockType, SUM(s.quantity), SUM(s.value), SUM(s.price), SUM(s.replenishmentDemand), "
+				+ "SUM(s.expansionDemand) FROM Stock s WHERE s.pk.projectID = :project AND ";
+		String industries = "SELECT c.commodityName, SUM(c.productiveCapital), SUM(c.initialCapital), SUM(c.persistedProfit) "
+				+ "FROM Industry c WHERE c.pk.projectID = :project AND ";
+		String commodities = "SELECT SUM(u.stockUsedUp), SUM(u.stockProduced) FROM Commodity u WHERE u.pk.projectID = :project AND ";
+		String socialClasses = "SELECT SUM(c.size), SUM(c.revenue) FROM SocialClass c WHERE c.pk.projectID = :project AND ";
+
+		stockQuery = entityManager.createQuery(stocks + "s.pk.timeStampID = :timeStamp GROUP BY s.pk.commodity, s.pk.stockType", Object[].class);
+		industryQuery = entityManager.createQuery(industries + "c.pk.timeStampID = :timeStamp GROUP BY c.commodityName", Object[].class);
+		commodityQuery = entityManager.createQuery(commodities + "u.pk.timeStampID = :timeStamp", Object[].class);
+		socialClassQuery = entityManager.createQuery(socialClasses + "c.pk.timeStampID = :timeStamp", Object[].class);
+
+		// at a sparse timeStamp, the row of each entity is the one with the highest timeStampID at or before the timeStamp
+		sparseStockQuery = entityManager.createQuery(stocks + "s.pk.timeStampID = (SELECT MAX(r.pk.timeStampID) FROM Stock r "
+				+ "WHERE r.pk.projectID = s.pk.projectID AND r.pk.owner = s.pk.owner AND r.pk.commodity = s.pk.commodity "
+				+ "AND r.pk.stockType = s.pk.stockType AND r.pk.timeStampID <= :timeStamp) GROUP BY s.pk.commodity, s.pk.stockType", Object[].class);
+		sparseIndustryQuery = entityManager.createQuery(industries + "c.pk.timeStampID = (SELECT MAX(r.pk.timeStampID) FROM Industry r "
+				+ "WHERE r.pk.projectID = c.pk.projectID AND r.pk.name = c.pk.name AND r.pk.timeStampID <= :timeStamp) GROUP BY c.commodityName",
+				Object[].class);
+		sparseCommodityQuery = entityManager.createQuery(commodities + "u.pk.timeStampID = (SELECT MAX(r.pk.timeStampID) FROM Commodity r "
+				+ "WHERE r.pk.projectID = u.pk.projectID AND r.pk.name = u.pk.name AND r.pk.timeStampID <= :timeStamp)", Object[].class);
+		sparseSocialClassQuery = entityManager.createQuery(socialClasses + "c.pk.timeStampID = (SELECT MAX(r.pk.timeStampID) FROM SocialClass r "
+				+ "WHERE r.pk.projectID = c.pk.projectID AND r.pk.name = c.pk.name AND r.pk.timeStampID <= :timeStamp)", Object[].class);
+	}
+
+	private final int projectID;
+	private final int timeStampID;
+	private Map<String, double[]> commodityTotals = new HashMap<String, double[]>();
+	private double nonMoneyValue;
+	private double nonMoneyPrice;
+	private double moneyValue;
+	private double moneyPrice;
+	private double productiveCapital;
+	private double initialCapital;
+	private double profit;
+	private double stockUsedUp;
+	private double stockProduced;
+	private double population;
+	private double revenue;
+
+	private Totals(int projectID, int timeStampID) {
+		this.projectID = projectID;
+		this.timeStampID = timeStampID;
+	}
+
+	/**
+	 * The totals of the given timeStamp of the given project
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param timeStampID
+	 *            the timeStamp
+	 * @return the totals. A timeStamp with no entities has totals of zero
+	 */
+	public static Totals of(int projectID, int timeStampID) {
+		if (EntityCache.covers(projectID, timeStampID))
+			return fromMemory(projectID, timeStampID);
+		String key = projectID + "|" + timeStampID;
+		Totals totals = computed.get(key);
+		if (totals == null) {
+			totals = fromDatabase(projectID, timeStampID);
+			computed.put(key, totals);
+		}
+		return totals;
+	}
+
+	/**
+	 * Forget the totals of historical timeStamps. Called by {@link EntityCache#invalidate()}
+	 */
+	static void invalidate() {
+		computed.clear();
+	}
+
+	private static Totals fromDatabase(int projectID, int timeStampID) {
+		boolean sparse = Snapshots.isSparse(projectID, timeStampID);
+		Totals totals = new Totals(projectID, timeStampID);
+		for (Object[] row : run(sparse ? sparseStockQuery : stockQuery, projectID, timeStampID)) {
+			double[] columns = totals.columns((String) row[0]);
+			double quantity = number(row[2]);
+			double value = number(row[3]);
+			double price = number(row[4]);
+			columns[QUANTITY] += quantity;
+			columns[VALUE] += value;
+			columns[PRICE] += price;
+			columns[REPLENISHMENT_DEMAND] += number(row[5]);
+			columns[EXPANSION_DEMAND] += number(row[6]);
+			if (Stock.STOCKTYPE.SALES.text().equals(row[1]))
+				columns[SUPPLY] += quantity;
+			totals.addStockValue(Stock.STOCKTYPE.MONEY.text().equals(row[1]), value, price);
+		}
+		for (Object[] row : run(sparse ? sparseIndustryQuery : industryQuery, projectID, timeStampID))
+			totals.addIndustries((String) row[0], number(row[1]), number(row[2]), number(row[3]));
+		for (Object[] row : run(sparse ? sparseCommodityQuery : commodityQuery, projectID, timeStampID)) {
+			totals.stockUsedUp += number(row[0]);
+			totals.stockProduced += number(row[1]);
+		}
+		for (Object[] row : run(sparse ? sparseSocialClassQuery : socialClassQuery, projectID, timeStampID)) {
+			totals.population += number(row[0]);
+			totals.revenue += number(row[1]);
+		}
+		logger.debug("Computed the totals of project {} at timeStamp {}", projectID, timeStampID);
+		return totals;
+	}
+
+	private static Totals fromMemory(int projectID, int timeStampID) {
+		Totals totals = new Totals(projectID, timeStampID);
+		for (Commodity c : EntityCache.commodities()) {
+			double[] columns = totals.columns(c.name());
+			columns[QUANTITY] = Aggregates.commodityTotal(c.name(), Aggregates.QUANTITY);
+			columns[VALUE] = Aggregates.commodityTotal(c.name(), Aggregates.VALUE);
+			columns[PRICE] = Aggregates.commodityTotal(c.name(), Aggregates.PRICE);
+			columns[SUPPLY] = Aggregates.commodityTotal(c.name(), Aggregates.SUPPLY);
+			columns[REPLENISHMENT_DEMAND] = Aggregates.commodityTotal(c.name(), Aggregates.REPLENISHMENT_DEMAND);
+			columns[EXPANSION_DEMAND] = Aggregates.commodityTotal(c.name(), Aggregates.EXPANSION_DEMAND);
+			totals.stockUsedUp += c.getStockUsedUp();
+			totals.stockProduced += c.getStockProduced();
+		}
+		totals.nonMoneyValue = Aggregates.totalValue(false);
+		totals.nonMoneyPrice = Aggregates.totalPrice(false);
+		totals.moneyValue = Aggregates.totalValue(true) - totals.nonMoneyValue;
+		totals.moneyPrice = Aggregates.totalPrice(true) - totals.nonMoneyPrice;
+		for (Industry i : EntityCache.industries())
+			totals.addIndustries(i.getCommodityName(), i.productiveCapital(), i.initialCapital(), i.profit());
+		for (SocialClass sc : SocialClass.all(projectID, timeStampID)) {
+			totals.population += sc.getSize();
+			totals.revenue += sc.getRevenue();
+		}
+		return totals;
+	}
+
+	private static List<Object[]> run(TypedQuery<Object[]> query, int projectID, int timeStampID) {
+		return query.setParameter("project", projectID).setParameter("timeStamp", timeStampID).getResultList();
+	}
+
+	private static double number(Object sum) {
+		return sum == null ? 0 : ((Number) sum).doubleValue();
+	}
+
+	private double[] columns(String commodityName) {
+		double[] columns = commodityTotals.get(commodityName);
+		if (columns == null) {
+			columns = new double[COLUMNS];
+			commodityTotals.put(commodityName, columns);
+		}
+		return columns;
+	}
+
+	private void addStockValue(boolean isMoney, double value, double price) {
+		if (isMoney) {
+			moneyValue += value;
+			moneyPrice += price;
+		} else {
+			nonMoneyValue += value;
+			nonMoneyPrice += price;
+		}
+	}
+
+	private void addIndustries(String commodityName, double productiveCapital, double initialCapital, double profit) {
+		double[] columns = columns(commodityName);
+		columns[PRODUCTIVE_CAPITAL] += productiveCapital;
+		columns[INITIAL_CAPITAL] += initialCapital;
+		columns[PROFIT] += profit;
+		this.productiveCapital += productiveCapital;
+		this.initialCapital += initialCapital;
+		this.profit += profit;
+	}
+
+	/**
+	 * One total of one commodity
+	 * 
+	 * @param commodityName
+	 *            the commodity
+	 * @param column
+	 *            one of {@link #QUANTITY}, {@link #VALUE}, {@link #PRICE}, {@link #SUPPLY}, {@link #REPLENISHMENT_DEMAND},
+	 *            {@link #EXPANSION_DEMAND}, {@link #PRODUCTIVE_CAPITAL}, {@link #INITIAL_CAPITAL} or {@link #PROFIT}
+	 * @return the total, which is zero if there is nothing to add up
+	 */
+	public double commodity(String commodityName, int column) {
+		double[] columns = commodityTotals.get(commodityName);
+		return columns == null ? 0 : columns[column];
+	}
+
+	/**
+	 * @param includeMoney
+	 *            true if money stocks are included
+	 * @return the total value of the stocks
+	 */
+	public double totalValue(boolean includeMoney) {
+		return includeMoney ? nonMoneyValue + moneyValue : nonMoneyValue;
+	}
+
+	/**
+	 * @param includeMoney
+	 *            true if money stocks are included
+	 * @return the total price of the stocks
+	 */
+	public double totalPrice(boolean includeMoney) {
+		return includeMoney ? nonMoneyPrice + moneyPrice : nonMoneyPrice;
+	}
+
+	/**
+	 * @return the total productive capital of the industries
+	 */
+	public double productiveCapital() {
+		return productiveCapital;
+	}
+
+	/**
+	 * @return the total initial capital of the industries
+	 */
+	public double initialCapital() {
+		return initialCapital;
+	}
+
+	/**
+	 * @return the total profit of the industries
+	 */
+	public double profit() {
+		return profit;
+	}
+
+	/**
+	 * @return the total stock used up, over all commodities
+	 */
+	public double stockUsedUp() {
+		return stockUsedUp;
+	}
+
+	/**
+	 * @return the total stock produced, over all commodities
+	 */
+	public double stockProduced() {
+		return stockProduced;
+	}
+
+	/**
+	 * @return the total size of the social classes
+	 */
+	public double population() {
+		return population;
+	}
+
+	/**
+	 * @return the total revenue of the social classes
+	 */
+	public double revenue() {
+		return revenue;
+	}
+
+	/**
+	 * @return the project whose totals these are
+	 */
+	public int getProjectID() {
+		return projectID;
+	}
+
+	/**
+	 * @return the timeStamp whose totals these are
+	 */
+	public int getTimeStampID() {
+		return timeStampID;
+	}
+}
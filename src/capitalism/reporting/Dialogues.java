@@ -25,6 +25,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import capitalism.Capitalism;
+import capitalism.utils.BinaryStuff;
 import capitalism.view.ViewManager;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
@@ -55,7 +56,8 @@ public class Dialogues {
 	}
 
 	/**
-	 * record the alert in the specified log file and display it in an alert window for the user to see
+	 * record the alert in the specified log file and display it in an alert window for the user to see.
+	 * If there is no display, the alert is only recorded in the log file, as a warning.
 	 * 
 	 * @param logger
 	 *            the logger to use
@@ -76,6 +78,10 @@ public class Dialogues {
 			String logMessage = a[i].toString();
 			logger.debug("++++++++ at " + logMessage);
 		}
+		if (!Reporter.hasDisplay()) {
+			logger.warn(String.format(formatString, args));
+			return;
+		}
 
 		Alert alert = new Alert(AlertType.WARNING);
 		alert.setTitle("Warning");
@@ -86,6 +92,10 @@ public class Dialogues {
 	}
 
 	public static void info(String header, String message) {
+		if (!Reporter.hasDisplay()) {
+			logger.info("{}: {}", header, message);
+			return;
+		}
 		Alert alert = new Alert(AlertType.INFORMATION);
 		alert.setTitle("Information");
 		alert.setHeaderText(header);
@@ -109,9 +119,9 @@ public class Dialogues {
 			File defaultDirectory = new File(Capitalism.getUserBasePath());
 			logger.debug("Saving to the directory {}", defaultDirectory);
 			chooser.setInitialDirectory(defaultDirectory);
-			chooser.setInitialFileName("New Project.xml");
-			ExtensionFilter ef = new ExtensionFilter("xml file (*.xml)", "*.xml");
-			chooser.getExtensionFilters().add(ef);
+			chooser.setInitialFileName("New Project" + BinaryStuff.EXTENSION);
+			chooser.getExtensionFilters().add(new ExtensionFilter("saved project (*" + BinaryStuff.EXTENSION + ")", "*" + BinaryStuff.EXTENSION));
+			chooser.getExtensionFilters().add(new ExtensionFilter("xml file (*.xml, *.xml.gz)", "*.xml", "*.xml.gz"));
 			File selectedFile = chooser.showSaveDialog(ViewManager.getPrimaryStage());
 			return selectedFile;
 		} catch (Exception e) {
@@ -127,9 +137,9 @@ public class Dialogues {
 			File defaultDirectory = new File(Capitalism.getUserBasePath());
 			logger.debug("Loading from the directory {}", defaultDirectory);
 			chooser.setInitialDirectory(defaultDirectory);
-			chooser.setInitialFileName("New Project.xml");
-			ExtensionFilter ef = new ExtensionFilter("xml file (*.xml)", "*.xml");
-			chooser.getExtensionFilters().add(ef);
+			chooser.setInitialFileName("New Project" + BinaryStuff.EXTENSION);
+			chooser.getExtensionFilters().add(new ExtensionFilter("saved project (*" + BinaryStuff.EXTENSION + ", *.xml, *.xml.gz)", "*" + BinaryStuff.EXTENSION, "*.xml",
+					"*.xml.gz"));
 			File selectedFile = chooser.showOpenDialog(ViewManager.getPrimaryStage());
 			return selectedFile;
 		} catch (Exception e) {
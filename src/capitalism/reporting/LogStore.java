@@ -0,0 +1,326 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *  
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.reporting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The messages shown in the {@link LogWindow}, kept on disk rather than on the heap.
+ *
+ * The text of the messages is appended to a data file. Each message also has a fixed-size entry in an index file, which is
+ * memory-mapped a segment at a time, and which records where its text is, its level, the time it was reported, and its place
+ * in the tree of messages: its parent, its first and last child, its next sibling and the number of its children. The tree can
+ * therefore be walked, and any message read, without holding the messages themselves in memory; the operating system pages the
+ * index in and out as it is used. The heap holds only a small cache of recently read texts and a buffer of text not yet written.
+ *
+ * A message at level 0 is a child of the root, which has the index {@link #ROOT}; a message at level 1, 2 or 3 is a child of the last
+ * message at the level above, or of the root if there is none. Both files are temporary, and are deleted when the program exits.
+ * The store is used only by the display thread.
+ */
+class LogStore {
+	private static final Logger logger = LogManager.getLogger(LogStore.class);
+
+	/** the index of the root of the tree, which is not itself a message */
+	static final int ROOT = -1;
+
+	// the layout of an entry of the index
+	private static final int ENTRY_SIZE = 48;
+	private static final int OFFSET = 0; // long: where the text starts in the data file
+	private static final int TIME = 8; // long: when the message was reported
+	private static final int LENGTH = 16; // int: the length of the text in bytes
+	private static final int LEVEL = 20;
+	private static final int PARENT = 24;
+	private static final int FIRST_CHILD = 28;
+	private static final int LAST_CHILD = 32;
+	private static final int NEXT_SIBLING = 36;
+	private static final int CHILD_COUNT = 40;
+
+	private static final int ENTRIES_PER_SEGMENT = 1 << 16;
+	private static final int WRITE_BUFFER_SIZE = 1 << 16;
+	private static final int SEARCH_BUFFER_SIZE = 1 << 20;
+	private static final int CACHE_SIZE = 1024;
+
+	private final RandomAccessFile indexFile;
+	private final RandomAccessFile dataFile;
+	private final FileChannel data;
+	private final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	private int size = 0;
+	private long dataLength = 0; // including the text still in the write buffer
+	private long writtenLength = 0; // excluding it
+
+	// the root is not in the index
+	private int rootFirstChild = -1;
+	private int rootLastChild = -1;
+	private int rootChildCount = 0;
+
+	// the last message at each level, to which the next message at the level below is added
+	private final int[] lastAtLevel = { -1, -1, -1, -1 };
+
+	@SuppressWarnings("serial") private final Map<Integer, String> cache = new LinkedHashMap<Integer, String>(CACHE_SIZE, 0.75f, true) {
+		@Override protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	LogStore() throws IOException {
+		File index = File.createTempFile("capsim-log", ".idx");
+		File text = File.createTempFile("capsim-log", ".dat");
+		index.deleteOnExit();
+		text.deleteOnExit();
+		indexFile = new RandomAccessFile(index, "rw");
+		dataFile = new RandomAccessFile(text, "rw");
+		data = dataFile.getChannel();
+		logger.debug("Keeping the log in {} and {}", index.getPath(), text.getPath());
+	}
+
+	/**
+	 * Add a message
+	 * 
+	 * @param message
+	 *            the text of the message
+	 * @param level
+	 *            its level, from 0 to 3. Any other level is treated as 0
+	 * @return the index of the new message
+	 * @throws IOException
+	 *             if the message cannot be written
+	 */
+	int append(String message, int level) throws IOException {
+		if (level < 0 || level > 3)
+			level = 0;
+		byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+		int i = size;
+		ByteBuffer entry = entry(i);
+		int base = position(i);
+		int parent = level == 0 ? ROOT : lastAtLevel[level - 1];
+		entry.putLong(base + OFFSET, dataLength);
+		entry.putLong(base + TIME, System.currentTimeMillis());
+		entry.putInt(base + LENGTH, bytes.length);
+		entry.putInt(base + LEVEL, level);
+		entry.putInt(base + PARENT, parent);
+		entry.putInt(base + FIRST_CHILD, -1);
+		entry.putInt(base + LAST_CHILD, -1);
+		entry.putInt(base + NEXT_SIBLING, -1);
+		entry.putInt(base + CHILD_COUNT, 0);
+		size++;
+		int previous = lastChild(parent);
+		if (previous < 0)
+			setInt(parent, FIRST_CHILD, i);
+		else
+			setInt(previous, NEXT_SIBLING, i);
+		setInt(parent, LAST_CHILD, i);
+		setInt(parent, CHILD_COUNT, childCount(parent) + 1);
+		lastAtLevel[level] = i;
+
+		if (bytes.length > writeBuffer.remaining())
+			flush();
+		if (bytes.length > writeBuffer.capacity()) {
+			write(ByteBuffer.wrap(bytes));
+		} else {
+			writeBuffer.put(bytes);
+		}
+		dataLength += bytes.length;
+		return i;
+	}
+
+	/**
+	 * @return the number of messages
+	 */
+	int size() {
+		return size;
+	}
+
+	int level(int i) {
+		return getInt(i, LEVEL);
+	}
+
+	int parent(int i) {
+		return getInt(i, PARENT);
+	}
+
+	int firstChild(int i) {
+		return i == ROOT ? rootFirstChild : getInt(i, FIRST_CHILD);
+	}
+
+	int lastChild(int i) {
+		return i == ROOT ? rootLastChild : getInt(i, LAST_CHILD);
+	}
+
+	int nextSibling(int i) {
+		return getInt(i, NEXT_SIBLING);
+	}
+
+	int childCount(int i) {
+		return i == ROOT ? rootChildCount : getInt(i, CHILD_COUNT);
+	}
+
+	long time(int i) {
+		return entry(i).getLong(position(i) + TIME);
+	}
+
+	/**
+	 * @param time
+	 *            a time, in milliseconds since the epoch
+	 * @return the first message reported at or after this time, or -1 if there is none
+	 */
+	int firstAtOrAfter(long time) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (time(middle) < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low < size ? low : -1;
+	}
+
+	/**
+	 * @param i
+	 *            the index of a message
+	 * @return its text
+	 */
+	String text(int i) {
+		String text = cache.get(i);
+		if (text != null)
+			return text;
+		try {
+			long offset = entry(i).getLong(position(i) + OFFSET);
+			int length = getInt(i, LENGTH);
+			if (offset + length > writtenLength)
+				flush();
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			while (buffer.hasRemaining()) {
+				if (data.read(buffer, offset + buffer.position()) < 0)
+					break;
+			}
+			text = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			logger.error("Could not read message {} of the log because {}", i, e.getMessage());
+			text = "";
+		}
+		cache.put(i, text);
+		return text;
+	}
+
+	/**
+	 * Search the texts of the messages, in order, for the first that contains the given text, ignoring case. The data file is read
+	 * in large blocks, so that a search of the whole log takes one pass over the file
+	 * 
+	 * @param wanted
+	 *            the text to find
+	 * @param from
+	 *            the index of the first message to look at
+	 * @return the index of the first message from {@code from} that contains the text, or -1 if there is none
+	 */
+	int search(String wanted, int from) {
+		String lowerCaseWanted = wanted.toLowerCase();
+		try {
+			flush();
+			ByteBuffer block = ByteBuffer.allocate(SEARCH_BUFFER_SIZE);
+			long blockStart = 0;
+			int blockLength = 0;
+			for (int i = Math.max(from, 0); i < size; i++) {
+				long offset = entry(i).getLong(position(i) + OFFSET);
+				int length = getInt(i, LENGTH);
+				if (offset < blockStart || offset + length > blockStart + blockLength) {
+					if (length > block.capacity())
+						block = ByteBuffer.allocate(length);
+					block.clear();
+					blockStart = offset;
+					while (block.hasRemaining()) {
+						if (data.read(block, blockStart + block.position()) <= 0)
+							break;
+					}
+					blockLength = block.position();
+				}
+				String text = new String(block.array(), (int) (offset - blockStart), length, StandardCharsets.UTF_8);
+				if (text.toLowerCase().contains(lowerCaseWanted))
+					return i;
+			}
+		} catch (IOException e) {
+			logger.error("Could not search the log because {}", e.getMessage());
+		}
+		return -1;
+	}
+
+	private void flush() throws IOException {
+		writeBuffer.flip();
+		write(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			writtenLength += data.write(buffer, writtenLength);
+	}
+
+	private int getInt(int i, int field) {
+		return entry(i).getInt(position(i) + field);
+	}
+
+	private void setInt(int i, int field, int value) {
+		if (i == ROOT) {
+			if (field == FIRST_CHILD)
+				rootFirstChild = value;
+			else if (field == LAST_CHILD)
+				rootLastChild = value;
+			else if (field == CHILD_COUNT)
+				rootChildCount = value;
+			return;
+		}
+		entry(i).putInt(position(i) + field, value);
+	}
+
+	private static int position(int i) {
+		return (i % ENTRIES_PER_SEGMENT) * ENTRY_SIZE;
+	}
+
+	/**
+	 * @return the segment of the index that holds the entry of message i, which is mapped when it is first needed
+	 */
+	private MappedByteBuffer entry(int i) {
+		int segment = i / ENTRIES_PER_SEGMENT;
+		while (segment >= segments.size()) {
+			long start = (long) segments.size() * ENTRIES_PER_SEGMENT * ENTRY_SIZE;
+			try {
+				segments.add(indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, start, (long) ENTRIES_PER_SEGMENT * ENTRY_SIZE));
+			} catch (IOException e) {
+				throw new IllegalStateException("Could not extend the index of the log", e);
+			}
+		}
+		return segments.get(segment);
+	}
+}
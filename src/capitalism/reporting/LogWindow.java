@@ -17,23 +17,34 @@
 *   You should have received a copy of the GNU General Public License
 *   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
 */
-
 package capitalism.reporting;
 
+import java.io.IOException;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import capitalism.view.ViewManager;
+import capitalism.view.custom.ActionStates;
+import javafx.collections.ObservableList;
+import javafx.event.Event;
 import javafx.scene.Scene;
-import javafx.scene.control.Label;
+import javafx.scene.control.Button;
+import javafx.scene.control.ComboBox;
+import javafx.scene.control.TextField;
+import javafx.scene.control.TreeCell;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.Region;
+import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
@@ -42,6 +53,12 @@ import javafx.stage.Stage;
  * quantity in a manner that is accessible to the user, and complements the other reporting mechanisms
  * such as the timeStampView and the tables. Also see {@link Reporter#createLogWindow()} and related code
  *
+ * The messages are kept on disk, in a {@link LogStore}, and not in the tree. The tree holds an item only for each message whose parent
+ * is expanded (the messages at level 0, whose parent is the root, are therefore always there); the children of a message are created
+ * when it is expanded and thrown away when it is collapsed, and the text of an item is read from the store only when its row is drawn.
+ * The memory used by the window thus depends on what the user has opened, not on how long the simulation has run.
+ * The search box finds the next message containing the given text, searching the whole log, and opens the tree to show it.
+ * The two choices beside it set how much is reported, for all phases or for one of them (see {@link Reporter#setVerbosity(String, int)}).
  */
 
 public class LogWindow {
@@ -51,45 +68,180 @@ public class LogWindow {
 	private static Scene logScene;
 	private Stage loggingStage=null;
 	private HBox hBox=null;
-	private TreeView<Label> treeView= null;
+	private TreeView<Integer> treeView= null;
+
+	// the choices of how much to report, from the most (verbosity 3) to the least (verbosity 0)
+	private static final String[] DETAIL = { "Everything", "Transactions", "Steps", "Period summaries only" };
+	private static final String ALL_PHASES = "All phases";
 	private double logWindowWidth = ViewManager.windowWidth* 0.6;
 	private double logWindowHeight = ViewManager.windowHeight;
-	private TreeItem<Label> lastLevel1;
-	private TreeItem<Label> lastLevel2;
-	private TreeItem<Label> lastLevel3;
+	private LogStore store = null;
+	private int lastFound = -1;
+
+	// the items in the tree, by the index of their message. Only the children of expanded items are here
+	private Map<Integer, LogItem> items = new HashMap<Integer, LogItem>();
+
+	/**
+	 * An item of the tree, which stands for one message in the store and creates the items of its children only when they are asked for
+	 */
+	private class LogItem extends TreeItem<Integer> {
+		private boolean loaded = false;
+
+		private LogItem(int index) {
+			super(index);
+			items.put(index, this);
+			expandedProperty().addListener((observable, wasExpanded, isExpanded) -> {
+				if (!isExpanded && index != LogStore.ROOT)
+					unload();
+			});
+		}
+
+		@Override public boolean isLeaf() {
+			return store.childCount(getValue()) == 0;
+		}
+
+		@Override public ObservableList<TreeItem<Integer>> getChildren() {
+			if (!loaded) {
+				loaded = true;
+				List<TreeItem<Integer>> children = new ArrayList<TreeItem<Integer>>();
+				for (int child = store.firstChild(getValue()); child >= 0; child = store.nextSibling(child))
+					children.add(new LogItem(child));
+				super.getChildren().setAll(children);
+			}
+			return super.getChildren();
+		}
+
+		/**
+		 * Throw away the items of the children, and of their children, so they can be garbage collected
+		 */
+		private void unload() {
+			if (!loaded)
+				return;
+			for (TreeItem<Integer> child : super.getChildren()) {
+				((LogItem) child).unload();
+				items.remove(child.getValue());
+			}
+			super.getChildren().clear();
+			loaded = false;
+		}
+
+		/**
+		 * A message has been added as the last child of this item's message
+		 */
+		private void childAdded(int child) {
+			if (loaded) {
+				super.getChildren().add(new LogItem(child));
+			} else if (store.childCount(getValue()) == 1) {
+				// the item was a leaf and is not any more: have it redrawn, with the arrow that opens it
+				Event.fireEvent(this, new TreeModificationEvent<Integer>(valueChangedEvent(), this, getValue()));
+			}
+		}
+	}
 
 	public LogWindow() {
 		loggingStage=new Stage();
 		hBox=new HBox();
-		TreeItem<Label> rootItem = new TreeItem<Label>(new Label("Log"));
-		TreeItem<Label> firstLevel1Item=new TreeItem<Label>(new Label("STARTUP"));
-		TreeItem<Label> secondLevelItem=new TreeItem<Label>(new Label("Log Window Startup"));
+		try {
+			store = new LogStore();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not create the files that hold the log", e);
+		}
+		LogItem rootItem = new LogItem(LogStore.ROOT);
+		rootItem.setExpanded(true);
+
+		treeView = new TreeView<Integer>(rootItem);
+		treeView.setCellFactory(view -> new LogCell());
+
+		addItem("STARTUP", 0);
+		addItem("Log Window Startup", 1);
 		ZoneId zonedId = ZoneId.systemDefault();
 		ZonedDateTime zdt = ZonedDateTime.now( zonedId );
-		TreeItem<Label> thirdLevelItem=new TreeItem<Label>(new Label(zdt.toString()));
-		rootItem.setExpanded(true);
+		addItem(zdt.toString(), 2);
 
-		treeView = new TreeView<Label>(rootItem);
-		
-		rootItem.getChildren().add(firstLevel1Item);
-		lastLevel1=firstLevel1Item;
-		firstLevel1Item.getChildren().add(secondLevelItem);
-		lastLevel2=secondLevelItem;
-		secondLevelItem.getChildren().add(thirdLevelItem);
-		lastLevel3=thirdLevelItem;
-		
+		TextField searchField = new TextField();
+		searchField.setPromptText("Search the log");
+		Button findButton = new Button("Find next");
+		searchField.setOnAction(e -> find(searchField.getText()));
+		findButton.setOnAction(e -> find(searchField.getText()));
+		ComboBox<String> phaseChoice = new ComboBox<String>();
+		ComboBox<String> detailChoice = new ComboBox<String>();
+		phaseChoice.getItems().add(ALL_PHASES);
+		phaseChoice.setValue(ALL_PHASES);
+		// the phases are listed when first needed, so that opening the log does not set up the commands
+		phaseChoice.setOnShowing(e -> {
+			if (phaseChoice.getItems().size() == 1)
+				for (ActionStates a : ActionStates.values())
+					phaseChoice.getItems().add(a.text());
+		});
+		detailChoice.getItems().addAll(DETAIL);
+		detailChoice.setValue(DETAIL[DETAIL.length - 1 - Math.max(0, Math.min(DETAIL.length - 1, Reporter.getVerbosity()))]);
+		phaseChoice.setOnAction(e -> {
+			int verbosity = ALL_PHASES.equals(phaseChoice.getValue()) ? Reporter.getVerbosity() : Reporter.getVerbosity(phaseChoice.getValue());
+			detailChoice.setValue(DETAIL[DETAIL.length - 1 - Math.max(0, Math.min(DETAIL.length - 1, verbosity))]);
+		});
+		detailChoice.setOnAction(e -> {
+			int verbosity = DETAIL.length - 1 - detailChoice.getItems().indexOf(detailChoice.getValue());
+			if (ALL_PHASES.equals(phaseChoice.getValue()))
+				Reporter.setVerbosity(verbosity);
+			else
+				Reporter.setVerbosity(phaseChoice.getValue(), verbosity);
+		});
+		HBox searchBox = new HBox(searchField, findButton, phaseChoice, detailChoice);
+		HBox.setHgrow(searchField, Priority.ALWAYS);
+		VBox vBox = new VBox(searchBox, treeView);
+		VBox.setVgrow(treeView, Priority.ALWAYS);
 
 		treeView.setPrefHeight(logWindowHeight);
 		treeView.setMaxHeight(Region.USE_PREF_SIZE);
 		treeView.setPrefWidth(logWindowWidth);
 		logScene = new Scene(hBox, logWindowWidth, logWindowHeight);
-		hBox.getChildren().add(treeView);
-		HBox.setHgrow(treeView, Priority.ALWAYS);
+		hBox.getChildren().add(vBox);
+		HBox.setHgrow(vBox, Priority.ALWAYS);
 		loggingStage.setScene(logScene);
 		loggingStage.setX(0);
 		loggingStage.setY(0);
 	}
 
+	/**
+	 * Draws one row of the tree, reading the text of its message from the store
+	 */
+	private class LogCell extends TreeCell<Integer> {
+		@Override protected void updateItem(Integer index, boolean empty) {
+			super.updateItem(index, empty);
+			if (empty || index == null) {
+				setText(null);
+				return;
+			}
+			if (index == LogStore.ROOT) {
+				setText("Log");
+				setTextFill(Color.BLACK);
+				return;
+			}
+			String text = store.text(index);
+			switch (store.level(index)) {
+			case 0:
+				setText(text);
+				setTextFill(Color.BLUE);
+				setWrapText(true);
+				break;
+			case 1:
+				setText(" " + text);
+				setTextFill(Color.RED);
+				setWrapText(true);
+				break;
+			case 2:
+				setText("  " + text);
+				setTextFill(Color.DARKGREEN);
+				setWrapText(false);
+				break;
+			default:
+				setText("   " + text);
+				setTextFill(Color.BLACK);
+				setWrapText(false);
+			}
+		}
+	}
+
 	/**
 	 * display the window.
 	 * TODO the window should be shut down when the app closes.
@@ -107,48 +259,52 @@ public class LogWindow {
 	 *            at which level in the hierarchy to add the message. The message is always added to the last root at the immediately higher level
 	 */
 	public void addItem(String message, int treeLevel) {
-		TreeItem<Label> childItem = new TreeItem<Label>(new Label(message));
-		Label label=(Label)childItem.getValue();
-		switch (treeLevel) {
-		case 0: //root
-			treeView.getRoot().getChildren().add(childItem);
-			label.setTextFill(Color.BLUE);
-			label.setWrapText(true);
-			lastLevel1=childItem;
-			break;
-		case 1:
-			if(lastLevel1==null) {
-				Dialogues.alert(logger, "Something went wrong with the logging. Please contact the developer");
-			}
-			lastLevel1.getChildren().add(childItem);
-			label.setText(" "+label.getText());
-			label.setTextFill(Color.RED);
-			label.setWrapText(true);
-			lastLevel2=childItem;
-			break;
-		case 2:
-			if(lastLevel2==null) {
-				Dialogues.alert(logger, "Something went wrong with the logging. Please contact the developer");
-			}
-			lastLevel2.getChildren().add(childItem);
-			label.setWrapText(false);
-			label.setText("  "+label.getText());
-			label.setTextFill(Color.DARKGREEN);
-			lastLevel3=childItem;
-			break;
-		case 3:
-			if(lastLevel3==null) {
-				Dialogues.alert(logger, "Something went wrong with the logging. Please contact the developer");
+		int index;
+		try {
+			index = store.append(message, treeLevel);
+		} catch (IOException e) {
+			logger.error("Could not add a message to the log because {}", e.getMessage());
+			return;
+		}
+		LogItem parent = items.get(store.parent(index));
+		if (parent != null)
+			parent.childAdded(index);
+	}
+
+	/**
+	 * Find the next message that contains the given text, after the one last found, and open the tree to show it. If there is none,
+	 * search again from the start
+	 * 
+	 * @param text
+	 *            the text to find
+	 */
+	private void find(String text) {
+		if (text == null || text.isEmpty())
+			return;
+		int found = store.search(text, lastFound + 1);
+		if (found < 0 && lastFound >= 0)
+			found = store.search(text, 0);
+		lastFound = found;
+		if (found < 0)
+			return;
+		List<Integer> path = new ArrayList<Integer>();
+		for (int i = found; i != LogStore.ROOT; i = store.parent(i))
+			path.add(0, i);
+		TreeItem<Integer> item = treeView.getRoot();
+		for (int i : path) {
+			item.setExpanded(true);
+			TreeItem<Integer> next = null;
+			for (TreeItem<Integer> child : item.getChildren()) {
+				if (child.getValue() == i) {
+					next = child;
+					break;
+				}
 			}
-			lastLevel3.getChildren().add(childItem);
-			label.setText("   "+label.getText());
-			label.setWrapText(false);
-			label.setTextFill(Color.BLACK);
-			break;
-			
-		default:
-			treeView.getRoot().getChildren().add(childItem);
-			lastLevel1=childItem;
+			if (next == null)
+				return;
+			item = next;
 		}
+		treeView.getSelectionModel().select(item);
+		treeView.scrollTo(treeView.getRow(item));
 	}
-}
\ No newline at end of file
+}
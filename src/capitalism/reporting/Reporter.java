@@ -31,6 +31,15 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javafx.application.Platform;
 
 /**
  * The full functionality of the logging API is not really needed in this project. 
@@ -38,6 +47,21 @@ import java.time.format.DateTimeFormatter;
  * however this class allows us to send the same message to both of them, so we don't 
  * have to write every logging call twice. Also see {@link LogWindow}
  *
+ * Reporting is asynchronous. {@link #report(Logger, int, String, Object...)} does no more than claim the next slot of a ring of preallocated
+ * slots, copy the logger, the level, the format string and the arguments into it, and publish it; a background thread takes the reports
+ * out of the ring in order, formats them, writes them to the log files and passes them, a batch at a time, to the display thread to be
+ * added to the logWindow. The thread that reports therefore never pays for formatting, logging or the display, and a report whose level is
+ * above the {@link #setVerbosity(int) verbosity} costs nothing at all. Reporting takes no lock: a slot is claimed by incrementing a counter,
+ * and the background thread is woken only if it has run out of reports and gone to sleep. If the ring is full, the reporting thread waits
+ * until there is room.
+ *
+ * The verbosity can be set for the simulation as a whole and, separately, for each phase (the text of an {@link capitalism.view.custom.ActionStates}),
+ * and the phase that is running is given by {@link #setPhase(String, String)}. A phase without a verbosity of its own uses that of its
+ * superState, if it has one, and otherwise that of the simulation. In a loop where the arguments of a report would themselves cost
+ * something to compute or to box, the report should be guarded by {@link #reports(int)}, which costs no more than one read.
+ *
+ * Because the messages are formatted later, on the background thread, the arguments should be values (strings, numbers, enums); any
+ * other argument must not change until the report has been written, which {@link #flush()} waits for.
  */
 public class Reporter {
 	private static final Logger logger = LogManager.getLogger(Reporter.class);
@@ -45,7 +69,39 @@ public class Reporter {
 	private static double startUpTime;
 	private static LocalDateTime logTime;
 	
+	// the reports waiting to be written, as a ring of slots. A report's sequence number is claimed from head, and its slot is the sequence
+	// number modulo the capacity, which is a power of two. Once the slot is filled in, the sequence number plus one is published in it,
+	// which tells the consumer that it can be read. tail is the sequence number of the next report that the consumer will read
+	private static final int CAPACITY = 8192;
+	private static final int ARGUMENTS = 8;
+	private static final Logger[] ringLoggers = new Logger[CAPACITY];
+	private static final int[] ringLevels = new int[CAPACITY];
+	private static final String[] ringFormats = new String[CAPACITY];
+	private static final Object[][] ringArgs = new Object[CAPACITY][ARGUMENTS];
+	private static final int[] ringArgCounts = new int[CAPACITY];
+	private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+	private static final AtomicLong head = new AtomicLong();
+	private static volatile long tail = 0;
+	private static volatile Thread consumer = null;
+	// true while the consumer is asleep, or about to go to sleep, because it has nothing to read
+	private static volatile boolean idle = false;
+	// the number of threads waiting in flush(), which the consumer must wake when it has written a batch
+	private static final AtomicInteger flushing = new AtomicInteger();
+	private static final Object flushed = new Object();
+
+	// reports at a level above this are discarded, in phases that have no verbosity of their own. 3, the deepest level, lets everything through
+	private static volatile int verbosity = Integer.getInteger("capsim.verbosity", 3);
+	// the verbosity of each phase that has its own, by the text of the phase
+	private static final Map<String, Integer> phaseVerbosity = new ConcurrentHashMap<String, Integer>();
+	// the phase that is running, or null if none is
+	private static volatile String phase = null;
+	// the superState of the running phase, or null if it has none
+	private static volatile String superState = null;
+	// the verbosity that applies now, which is that of the running phase
+	private static volatile int limit = verbosity;
+
 	// used by ViewManager and Reporter to tell the user what's going on.
+	// null when the simulation runs without a display (see {@link capitalism.batch.BatchRunner})
 	public static LogWindow logWindow;
 
 	/**
@@ -58,6 +114,9 @@ public class Reporter {
 	/**
 	 * Report a message at the INFO level. This is both a helper function to simplify the logging code, and a wrapper to allow us to display what is going
 	 * on to the user in a structured way without the tortuous business of writing funky logging appenders.
+	 * If there is no logWindow, because the simulation is running without a display, the message only goes to the log files.
+	 * The message is only queued here; it is formatted and written out later, by the reporting thread, unless its level is above the verbosity,
+	 * in which case it is discarded.
 	 * 
 	 * @param logger
 	 *            the logger of the calling class
@@ -70,12 +129,227 @@ public class Reporter {
 	 *            the arguments, if any
 	 */
 	public static void report(Logger logger, int level, String formatString, Object... args) {
-		String message = String.format(formatString, args);
-		if (level == 0) {
-			logger.log(Level.INFO, "");
+		if (level > limit)
+			return;
+		if (consumer == null)
+			startConsumer();
+		long sequence = head.getAndIncrement();
+		while (sequence - tail >= CAPACITY) {
+			// the ring is full: wait for the consumer to make room
+			LockSupport.unpark(consumer);
+			Thread.yield();
+		}
+		int slot = (int) (sequence & (CAPACITY - 1));
+		ringLoggers[slot] = logger;
+		ringLevels[slot] = level;
+		ringFormats[slot] = formatString;
+		if (ringArgs[slot].length < args.length)
+			ringArgs[slot] = new Object[args.length];
+		System.arraycopy(args, 0, ringArgs[slot], 0, args.length);
+		ringArgCounts[slot] = args.length;
+		published.set(slot, sequence + 1);
+		if (idle)
+			LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Wait until every report made so far has been formatted and written to the log files, and has been passed to the display thread
+	 */
+	public static void flush() {
+		long target = head.get();
+		flushing.incrementAndGet();
+		try {
+			synchronized (flushed) {
+				while (tail < target && consumer != null && consumer.isAlive()) {
+					try {
+						flushed.wait(100);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		} finally {
+			flushing.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @param level
+	 *            the level of a report
+	 * @return true if a report at this level would be written in the phase that is running now
+	 */
+	public static boolean reports(int level) {
+		return level <= limit;
+	}
+
+	/**
+	 * Say which phase is running, so that its verbosity applies to the reports that follow
+	 * 
+	 * @param phase
+	 *            the text of the phase, or null if none is running
+	 * @param superState
+	 *            the text of the superState of the phase, whose verbosity applies if the phase has none of its own, or null if it has none
+	 */
+	public static void setPhase(String phase, String superState) {
+		Reporter.phase = phase;
+		Reporter.superState = superState;
+		updateLimit();
+	}
+
+	/**
+	 * @return the deepest level of report that is written in phases without a verbosity of their own. Reports at deeper levels are discarded
+	 */
+	public static int getVerbosity() {
+		return verbosity;
+	}
+
+	/**
+	 * @param verbosity
+	 *            the deepest level of report to write in phases without a verbosity of their own, from 0 (only the headings of each phase,
+	 *            which gives a summary of each period) to 3 (everything)
+	 */
+	public static void setVerbosity(int verbosity) {
+		Reporter.verbosity = verbosity;
+		updateLimit();
+	}
+
+	/**
+	 * @param phase
+	 *            the text of a phase
+	 * @return the deepest level of report that is written in this phase
+	 */
+	public static int getVerbosity(String phase) {
+		Integer own = phaseVerbosity.get(phase);
+		return own == null ? verbosity : own;
+	}
+
+	/**
+	 * @param phase
+	 *            the text of a phase
+	 * @param verbosity
+	 *            the deepest level of report to write in this phase, or -1 for the phase to use the verbosity of the whole simulation
+	 */
+	public static void setVerbosity(String phase, int verbosity) {
+		if (verbosity < 0)
+			phaseVerbosity.remove(phase);
+		else
+			phaseVerbosity.put(phase, verbosity);
+		updateLimit();
+	}
+
+	/**
+	 * Set the verbosity from a specification such as {@code 1} or {@code Trade=3,Produce=2,0}: a number on its own sets the verbosity of the
+	 * whole simulation and {@code phase=number} sets that of one phase
+	 * 
+	 * @param specification
+	 *            the specification
+	 * @throws IllegalArgumentException
+	 *             if the specification cannot be read
+	 */
+	public static void setVerbosity(String specification) {
+		for (String part : specification.split(",")) {
+			int equals = part.indexOf('=');
+			if (equals < 0)
+				setVerbosity(Integer.parseInt(part.trim()));
+			else
+				setVerbosity(part.substring(0, equals).trim(), Integer.parseInt(part.substring(equals + 1).trim()));
+		}
+	}
+
+	private static void updateLimit() {
+		String running = phase;
+		String parent = superState;
+		Integer own = running == null ? null : phaseVerbosity.get(running);
+		if (own == null && parent != null)
+			own = phaseVerbosity.get(parent);
+		limit = own == null ? verbosity : own;
+	}
+
+	private static synchronized void startConsumer() {
+		if (consumer != null)
+			return;
+		Thread thread = new Thread(Reporter::consume, "Reporter");
+		thread.setDaemon(true);
+		consumer = thread;
+		thread.start();
+		// write out whatever is still in the ring when the program exits
+		Runtime.getRuntime().addShutdownHook(new Thread(Reporter::flush, "Reporter shutdown"));
+	}
+
+	/**
+	 * @param sequence
+	 *            the sequence number of a report
+	 * @return true if the report has been published, and can therefore be read
+	 */
+	private static boolean isPublished(long sequence) {
+		return published.get((int) (sequence & (CAPACITY - 1))) == sequence + 1;
+	}
+
+	/**
+	 * Take the reports out of the ring, a batch at a time, format them and write them out. Runs on the consumer thread
+	 */
+	private static void consume() {
+		long from = tail;
+		while (true) {
+			if (!isPublished(from)) {
+				// say that this thread is going to sleep before looking again, so that a report published in between either is seen
+				// here or wakes this thread up
+				idle = true;
+				if (!isPublished(from))
+					LockSupport.park();
+				idle = false;
+				if (Thread.interrupted()) {
+					logger.debug("The reporting thread was interrupted");
+					return;
+				}
+				continue;
+			}
+			long to = from;
+			while (to - from < CAPACITY && isPublished(to))
+				to++;
+			// the slots from tail to head are not written again until tail moves past them
+			int count = (int) (to - from);
+			String[] messages = logWindow == null ? null : new String[count];
+			int[] levels = logWindow == null ? null : new int[count];
+			for (long r = from; r < to; r++) {
+				int slot = (int) (r & (CAPACITY - 1));
+				int level = ringLevels[slot];
+				Logger reportLogger = ringLoggers[slot];
+				Object[] args = Arrays.copyOf(ringArgs[slot], ringArgCounts[slot]);
+				String message;
+				try {
+					message = String.format(ringFormats[slot], args);
+				} catch (RuntimeException e) {
+					message = ringFormats[slot] + " (could not be formatted: " + e.getMessage() + ")";
+				}
+				if (level == 0) {
+					reportLogger.log(Level.INFO, "");
+				}
+				reportLogger.log(Level.INFO, String.format("%d %s", level, message));
+				if (messages != null) {
+					messages[(int) (r - from)] = message;
+					levels[(int) (r - from)] = level;
+				}
+				ringLoggers[slot] = null;
+				ringFormats[slot] = null;
+				Arrays.fill(ringArgs[slot], 0, ringArgCounts[slot], null);
+			}
+			if (messages != null) {
+				LogWindow window = logWindow;
+				Platform.runLater(() -> {
+					for (int i = 0; i < messages.length; i++)
+						window.addItem(messages[i], levels[i]);
+				});
+			}
+			tail = to;
+			from = to;
+			if (flushing.get() > 0) {
+				synchronized (flushed) {
+					flushed.notifyAll();
+				}
+			}
 		}
-		logger.log(Level.INFO, String.format("%d %s", level, message));
-		logWindow.addItem(message, level);
 	}
 
 	/**
@@ -121,4 +395,11 @@ public class Reporter {
 	public static void createLogWindow() {
 		logWindow = new LogWindow();
 	}
+
+	/**
+	 * @return true if there is a display to report to, false if the simulation is running without one
+	 */
+	public static boolean hasDisplay() {
+		return logWindow != null;
+	}
 }
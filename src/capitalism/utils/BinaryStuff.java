@@ -0,0 +1,520 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *  
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Id;
+import javax.persistence.Transient;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.OneProject;
+import capitalism.model.Project;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
+import capitalism.model.TimeStamp;
+import capitalism.reporting.Dialogues;
+
+/**
+ * Saves a project ({@link OneProject}) in a compact binary snapshot, and reads it back. This is the default format in which projects are
+ * saved; the XML format written by {@link XMLStuff} remains available, for interchange, and is chosen by giving the file the extension .xml
+ * (or .xml.gz).
+ * 
+ * A snapshot holds the persistent fields of the entities, column by column rather than entity by entity: for each kind of entity, every
+ * column holds one field of all the entities of that kind. Numbers are written as primitives (doubles as eight bytes, ints in as few bytes
+ * as they need) and every string, including the names of enums, is written once in a dictionary at the start of the snapshot and is
+ * thereafter referred to by its position in the dictionary. Each column is headed by the name of its field, so that a snapshot can be read
+ * by a version of the program whose entities have gained or lost fields: a column with no matching field is skipped and a field with no
+ * matching column keeps its default.
+ * 
+ * The layout is: the magic number {@link #MAGIC}, the format {@link #VERSION} and a byte of flags, uncompressed; then, compressed with
+ * deflate if the flag {@link #COMPRESSED} is set, the dictionary followed by the tables of projects, timeStamps, commodities, industries,
+ * social classes and stocks, in that order.
+ */
+public class BinaryStuff {
+	private static final Logger logger = LogManager.getLogger("Binary handler");
+
+	/** the first four bytes of every snapshot, which distinguish it from an XML file */
+	public static final int MAGIC = 0x43415053;
+	/** the version of the format written by this class, and the latest version it can read */
+	public static final short VERSION = 1;
+	/** the extension given to snapshot files */
+	public static final String EXTENSION = ".capsim";
+
+	private static final int COMPRESSED = 1;
+
+	// the type of a column, as recorded in its header
+	private static final byte DOUBLE = 'D';
+	private static final byte INT = 'I';
+	private static final byte LONG = 'J';
+	private static final byte BOOLEAN = 'Z';
+	private static final byte STRING = 'S';
+	private static final byte ENUM = 'E';
+
+	/**
+	 * One persistent field of an entity, or of the primary key embedded in it, which is written as one column of the snapshot
+	 */
+	private static class Attribute {
+		private final Field key; // the embedded primary key that holds the field, or null if the entity holds it directly
+		private final Field field;
+		private final String name;
+		private final byte type;
+
+		private Attribute(Field key, Field field) {
+			this.key = key;
+			this.field = field;
+			this.name = key == null ? field.getName() : key.getName() + "." + field.getName();
+			Class<?> c = field.getType();
+			if (c == double.class)
+				type = DOUBLE;
+			else if (c == int.class)
+				type = INT;
+			else if (c == long.class)
+				type = LONG;
+			else if (c == boolean.class)
+				type = BOOLEAN;
+			else if (c.isEnum())
+				type = ENUM;
+			else
+				type = STRING;
+		}
+
+		private Object holder(Object entity) throws IllegalAccessException {
+			return key == null ? entity : key.get(entity);
+		}
+	}
+
+	// the columns of each kind of entity, found once by looking at the persistence annotations of its fields
+	private static Map<Class<?>, List<Attribute>> attributes = new HashMap<Class<?>, List<Attribute>>();
+
+	/**
+	 * Save a project in the format chosen by the extension of the file: XML if the file ends in .xml or .xml.gz, and a binary snapshot otherwise
+	 * 
+	 * @param oneProject
+	 *            the project to save
+	 * @param file
+	 *            the file to save it in
+	 */
+	public static void exportProject(OneProject oneProject, File file) {
+		if (XMLStuff.isXML(file))
+			XMLStuff.exportToXML(oneProject, file);
+		else
+			exportToBinary(oneProject, file, true);
+	}
+
+	/**
+	 * Save a project from the database in the format chosen by the extension of the file, as {@link #exportProject(OneProject, File)} does.
+	 * XML is streamed from the database a chunk at a time; a binary snapshot is made from the whole project.
+	 * 
+	 * @param projectID
+	 *            the project to save
+	 * @param file
+	 *            the file to save it in
+	 */
+	public static void exportProject(int projectID, File file) {
+		if (XMLStuff.isXML(file)) {
+			XMLStuff.streamToXML(projectID, file);
+		} else {
+			OneProject oneProject = new OneProject();
+			oneProject.wrap(projectID);
+			exportToBinary(oneProject, file, true);
+		}
+	}
+
+	/**
+	 * Save a project as a binary snapshot
+	 * 
+	 * @param oneProject
+	 *            the project to save
+	 * @param file
+	 *            the file to save it in
+	 * @param compress
+	 *            if true, the body of the snapshot is compressed
+	 */
+	public static void exportToBinary(OneProject oneProject, File file, boolean compress) {
+		long start = System.currentTimeMillis();
+		OutputStream fileStream = null;
+		Deflater deflater = null;
+		try {
+			fileStream = new FileOutputStream(file);
+			DataOutputStream header = new DataOutputStream(fileStream);
+			header.writeInt(MAGIC);
+			header.writeShort(VERSION);
+			header.writeByte(compress ? COMPRESSED : 0);
+			OutputStream body = fileStream;
+			if (compress) {
+				deflater = new Deflater(Deflater.BEST_SPEED);
+				body = new DeflaterOutputStream(body, deflater, 65536);
+			}
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body, 65536));
+			writeBody(oneProject, out);
+			out.close();
+			fileStream = null;
+			logger.debug("Saved the project to {} in {} milliseconds", file.getPath(), System.currentTimeMillis() - start);
+		} catch (IOException | IllegalAccessException e) {
+			Dialogues.alert(logger, "Could not save the project because %s", e.getMessage());
+		} finally {
+			if (deflater != null)
+				deflater.end();
+			closeQuietly(fileStream);
+		}
+	}
+
+	/**
+	 * @param file
+	 *            a file
+	 * @return true if the file begins with the magic number of a binary snapshot
+	 */
+	public static boolean isBinary(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			return in.readInt() == MAGIC;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			closeQuietly(in);
+		}
+	}
+
+	/**
+	 * Read a project from a binary snapshot
+	 * 
+	 * @param file
+	 *            the snapshot
+	 * @return the project, or null if the file could not be read
+	 */
+	public static OneProject readFromBinary(File file) {
+		long start = System.currentTimeMillis();
+		InputStream fileStream = null;
+		Inflater inflater = null;
+		try {
+			fileStream = new FileInputStream(file);
+			DataInputStream header = new DataInputStream(fileStream);
+			if (header.readInt() != MAGIC) {
+				Dialogues.alert(logger, "The file %s is not a saved project", file.getName());
+				return null;
+			}
+			short version = header.readShort();
+			if (version > VERSION) {
+				Dialogues.alert(logger, "The file %s was saved by a later version of the program (format %d), which this version cannot read",
+						file.getName(), version);
+				return null;
+			}
+			int flags = header.readByte();
+			InputStream body = fileStream;
+			if ((flags & COMPRESSED) != 0) {
+				inflater = new Inflater();
+				body = new InflaterInputStream(body, inflater, 65536);
+			}
+			DataInputStream in = new DataInputStream(new BufferedInputStream(body, 65536));
+			OneProject oneProject = readBody(in);
+			logger.debug("Read the project from {} in {} milliseconds", file.getPath(), System.currentTimeMillis() - start);
+			return oneProject;
+		} catch (IOException | ReflectiveOperationException e) {
+			Dialogues.alert(logger, "Could not decode this file because %s", e.getMessage());
+			return null;
+		} finally {
+			if (inflater != null)
+				inflater.end();
+			closeQuietly(fileStream);
+		}
+	}
+
+	/**
+	 * Read a project from a binary snapshot and add it to the database, without using the display
+	 * 
+	 * @param file
+	 *            the snapshot
+	 * @return the projectID of the new project, or -1 if the file could not be read or its data did not validate
+	 */
+	public static int importFromBinary(File file) {
+		OneProject oneProject = readFromBinary(file);
+		if (oneProject == null)
+			return -1;
+		return oneProject.importToDatabase();
+	}
+
+	private static void writeBody(OneProject oneProject, DataOutputStream out) throws IOException, IllegalAccessException {
+		List<Project> projects = new ArrayList<Project>();
+		projects.add(oneProject.getProject());
+		Object[][] tables = {
+				projects.toArray(),
+				oneProject.getTimeStamps().toArray(),
+				oneProject.getCommodities().toArray(),
+				oneProject.getIndustries().toArray(),
+				oneProject.getSocialClasses().toArray(),
+				oneProject.getStocks().toArray() };
+		Class<?>[] classes = { Project.class, TimeStamp.class, Commodity.class, Industry.class, SocialClass.class, Stock.class };
+
+		// the dictionary: every distinct string, numbered from 1 in order of first appearance. Null is 0
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		List<String> words = new ArrayList<String>();
+		for (int t = 0; t < tables.length; t++) {
+			for (Attribute a : attributesOf(classes[t])) {
+				if (a.type != STRING && a.type != ENUM)
+					continue;
+				for (Object entity : tables[t]) {
+					String word = text(a, entity);
+					if (word != null && !dictionary.containsKey(word)) {
+						words.add(word);
+						dictionary.put(word, words.size());
+					}
+				}
+			}
+		}
+		writeVarInt(out, words.size());
+		for (String word : words)
+			out.writeUTF(word);
+
+		for (int t = 0; t < tables.length; t++) {
+			Object[] entities = tables[t];
+			List<Attribute> columns = attributesOf(classes[t]);
+			out.writeUTF(classes[t].getSimpleName());
+			writeVarInt(out, entities.length);
+			writeVarInt(out, columns.size());
+			for (Attribute a : columns) {
+				out.writeUTF(a.name);
+				out.writeByte(a.type);
+				for (Object entity : entities) {
+					Object holder = a.holder(entity);
+					switch (a.type) {
+					case DOUBLE:
+						out.writeDouble(a.field.getDouble(holder));
+						break;
+					case INT:
+						writeVarInt(out, zigZag(a.field.getInt(holder)));
+						break;
+					case LONG:
+						out.writeLong(a.field.getLong(holder));
+						break;
+					case BOOLEAN:
+						out.writeBoolean(a.field.getBoolean(holder));
+						break;
+					default:
+						String word = text(a, entity);
+						writeVarInt(out, word == null ? 0 : dictionary.get(word));
+					}
+				}
+			}
+		}
+	}
+
+	private static OneProject readBody(DataInputStream in) throws IOException, ReflectiveOperationException {
+		int size = readVarInt(in);
+		String[] words = new String[size + 1];
+		for (int i = 1; i <= size; i++)
+			words[i] = in.readUTF();
+
+		OneProject oneProject = new OneProject();
+		List<Project> projects = readTable(in, Project.class, words);
+		if (projects.size() != 1)
+			throw new IOException("the snapshot holds " + projects.size() + " projects instead of one");
+		oneProject.setProject(projects.get(0));
+		oneProject.setTimeStamps(readTable(in, TimeStamp.class, words));
+		oneProject.setCommodities(readTable(in, Commodity.class, words));
+		oneProject.setIndustries(readTable(in, Industry.class, words));
+		oneProject.setSocialClasses(readTable(in, SocialClass.class, words));
+		oneProject.setStocks(readTable(in, Stock.class, words));
+		return oneProject;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> List<T> readTable(DataInputStream in, Class<T> entityClass, String[] words) throws IOException, ReflectiveOperationException {
+		String tableName = in.readUTF();
+		if (!tableName.equals(entityClass.getSimpleName()))
+			throw new IOException("expected the table " + entityClass.getSimpleName() + " but found " + tableName);
+		int rows = readVarInt(in);
+		int columns = readVarInt(in);
+		Constructor<T> constructor = entityClass.getDeclaredConstructor();
+		constructor.setAccessible(true);
+		List<T> entities = new ArrayList<T>(rows);
+		for (int r = 0; r < rows; r++)
+			entities.add(constructor.newInstance());
+
+		Map<String, Attribute> byName = new HashMap<String, Attribute>();
+		for (Attribute a : attributesOf(entityClass))
+			byName.put(a.name, a);
+		for (int c = 0; c < columns; c++) {
+			String name = in.readUTF();
+			byte type = in.readByte();
+			Attribute a = byName.get(name);
+			if (a != null && a.type != type) {
+				logger.warn("Ignoring the column {} of {} because its type has changed", name, tableName);
+				a = null;
+			} else if (a == null) {
+				logger.debug("Ignoring the column {} of {}, which has no field", name, tableName);
+			}
+			for (T entity : entities) {
+				Object holder = null;
+				if (a != null) {
+					holder = a.holder(entity);
+					if (holder == null) {
+						Constructor<?> keyConstructor = a.key.getType().getDeclaredConstructor();
+						keyConstructor.setAccessible(true);
+						holder = keyConstructor.newInstance();
+						a.key.set(entity, holder);
+					}
+				}
+				switch (type) {
+				case DOUBLE:
+					double d = in.readDouble();
+					if (a != null)
+						a.field.setDouble(holder, d);
+					break;
+				case INT:
+					int i = unZigZag(readVarInt(in));
+					if (a != null)
+						a.field.setInt(holder, i);
+					break;
+				case LONG:
+					long l = in.readLong();
+					if (a != null)
+						a.field.setLong(holder, l);
+					break;
+				case BOOLEAN:
+					boolean z = in.readBoolean();
+					if (a != null)
+						a.field.setBoolean(holder, z);
+					break;
+				case STRING:
+				case ENUM:
+					int index = readVarInt(in);
+					if (index < 0 || index >= words.length)
+						throw new IOException("the column " + name + " of " + tableName + " refers to a word that is not in the dictionary");
+					if (a != null) {
+						String word = words[index];
+						if (type == STRING)
+							a.field.set(holder, word);
+						else
+							a.field.set(holder, word == null ? null : Enum.valueOf((Class<? extends Enum>) a.field.getType(), word));
+					}
+					break;
+				default:
+					throw new IOException("the column " + name + " of " + tableName + " has an unknown type");
+				}
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * The persistent fields of an entity, as they are found by the persistence annotations: every field annotated with {@link Column} or
+	 * {@link Id}, and every field of the primary key annotated with {@link EmbeddedId}, but not the transient fields
+	 * 
+	 * @param entityClass
+	 *            the class of the entity
+	 * @return its persistent fields
+	 */
+	private static List<Attribute> attributesOf(Class<?> entityClass) {
+		List<Attribute> found = attributes.get(entityClass);
+		if (found != null)
+			return found;
+		found = new ArrayList<Attribute>();
+		for (Field field : entityClass.getDeclaredFields()) {
+			if (Modifier.isStatic(field.getModifiers()) || field.isAnnotationPresent(Transient.class))
+				continue;
+			field.setAccessible(true);
+			if (field.isAnnotationPresent(EmbeddedId.class) && !field.getType().isPrimitive()) {
+				for (Field keyField : field.getType().getDeclaredFields()) {
+					if (Modifier.isStatic(keyField.getModifiers()))
+						continue;
+					keyField.setAccessible(true);
+					found.add(new Attribute(field, keyField));
+				}
+			} else if (field.isAnnotationPresent(Column.class) || field.isAnnotationPresent(Id.class)) {
+				found.add(new Attribute(null, field));
+			}
+		}
+		attributes.put(entityClass, found);
+		return found;
+	}
+
+	private static String text(Attribute a, Object entity) throws IllegalAccessException {
+		Object value = a.field.get(a.holder(entity));
+		if (value == null)
+			return null;
+		return a.type == ENUM ? ((Enum<?>) value).name() : (String) value;
+	}
+
+	private static int zigZag(int i) {
+		return (i << 1) ^ (i >> 31);
+	}
+
+	private static int unZigZag(int i) {
+		return (i >>> 1) ^ -(i & 1);
+	}
+
+	private static void writeVarInt(DataOutputStream out, int i) throws IOException {
+		while ((i & ~0x7F) != 0) {
+			out.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		out.writeByte(i);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int i = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			i |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return i;
+		}
+		throw new IOException("malformed number");
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null)
+			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.debug("Could not close a file because {}", e.getMessage());
+		}
+	}
+}
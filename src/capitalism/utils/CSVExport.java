@@ -0,0 +1,294 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *  
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Saves the tables of the database to a directory as CSV files, in the background.
+ * 
+ * The tables are written one after the other, by one task, on one connection to the database and inside one transaction, so that they
+ * all come from the same state of the database even if the simulation writes to it in the meantime; the caller, typically the display
+ * thread, does not wait for them. The export can be confined to one project, and further to a range of timeStamps, in which case only the
+ * rows of that project (and those timeStamps) are written. It reports its progress to a {@link Listener} as each table is finished, and
+ * can be cancelled, which abandons the tables not yet written and interrupts the one being written.
+ * 
+ * The listener is called on the thread that writes the tables, not on the display thread.
+ */
+public class CSVExport {
+	private static final Logger logger = LogManager.getLogger("CSVExport");
+
+	/**
+	 * the tables that are saved, with the names of their project and timeStamp columns. The projects table has no timeStamp column
+	 */
+	private static final String tables[][] = {
+			{ "timeStamps", "PROJECTFK", "TIMESTAMPID" },
+			{ "projects", "PROJECTID", null },
+			{ "commodities", "PROJECT", "TIMESTAMP" },
+			{ "stocks", "PROJECT", "TIMESTAMP" },
+			{ "socialClasses", "PROJECT", "TIMESTAMP" },
+			{ "industries", "PROJECT", "TIMESTAMP" }
+	};
+
+	/**
+	 * Receives the progress of an export
+	 */
+	public interface Listener {
+		/**
+		 * Called when a table has been written, or has failed to be written
+		 * 
+		 * @param table
+		 *            the table
+		 * @param succeeded
+		 *            true if the table was written
+		 * @param finished
+		 *            the number of tables finished so far, including this one
+		 * @param total
+		 *            the number of tables to be written
+		 */
+		void tableFinished(String table, boolean succeeded, int finished, int total);
+
+		/**
+		 * Called once, when every table has been written or abandoned
+		 * 
+		 * @param completed
+		 *            true if every table was written and the export was not cancelled
+		 */
+		void exportFinished(boolean completed);
+	}
+
+	private final String directory;
+	private int projectID = -1;
+	private int firstTimeStampID = -1;
+	private int lastTimeStampID = -1;
+	private Listener listener = null;
+
+	private volatile boolean cancelled = false;
+	private volatile int finished = 0;
+	private volatile Statement running = null;
+	private CompletableFuture<Boolean> result = null;
+
+	/**
+	 * An export of the whole database to the given directory. Call {@link #start(Executor)} to begin it
+	 * 
+	 * @param saveDirectory
+	 *            the directory in which to save the files
+	 * @throws IOException
+	 *             if the directory has no meaningful name
+	 */
+	public CSVExport(File saveDirectory) throws IOException {
+		directory = saveDirectory.getCanonicalPath().replace('\\', '/');
+	}
+
+	/**
+	 * Save only the rows of one project
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @return this export
+	 */
+	public CSVExport forProject(int projectID) {
+		this.projectID = projectID;
+		return this;
+	}
+
+	/**
+	 * Save only the rows of a range of timeStamps. These are the rows stored at those timeStamps, which, where the history is sparse, need not
+	 * include every entity
+	 * 
+	 * @param firstTimeStampID
+	 *            the first timeStamp to save
+	 * @param lastTimeStampID
+	 *            the last timeStamp to save
+	 * @return this export
+	 */
+	public CSVExport forTimeStamps(int firstTimeStampID, int lastTimeStampID) {
+		this.firstTimeStampID = firstTimeStampID;
+		this.lastTimeStampID = lastTimeStampID;
+		return this;
+	}
+
+	/**
+	 * @param listener
+	 *            the listener to tell of the progress of the export
+	 * @return this export
+	 */
+	public CSVExport withListener(Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Begin writing the tables and return at once
+	 * 
+	 * @param executor
+	 *            the executor that runs the task that writes the tables, for example {@link java.util.concurrent.ForkJoinPool#commonPool()}
+	 * @return this export
+	 */
+	public CSVExport start(Executor executor) {
+		logger.debug("Saving {} tables to {}", tables.length, directory);
+		result = CompletableFuture.supplyAsync(this::saveTables, executor).handle((saved, e) -> {
+			if (e != null)
+				logger.error("Could not save to {} because {}", directory, e.getMessage());
+			boolean completed = e == null && saved && !cancelled;
+			if (completed)
+				DBHandler.copyFileToUserDirectory(directory, "/", "CreateRawTables.sql");
+			logger.debug("Saving to {} {}", directory, completed ? "completed" : "did not complete");
+			if (listener != null)
+				listener.exportFinished(completed);
+			return completed;
+		});
+		return this;
+	}
+
+	/**
+	 * Stop the export. The tables not yet begun are not written, and the writing of the one already begun is interrupted
+	 */
+	public void cancel() {
+		cancelled = true;
+		Statement statement = running;
+		if (statement != null) {
+			try {
+				statement.cancel();
+			} catch (SQLException e) {
+				logger.debug("Could not cancel the saving of a table because {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return true if {@link #cancel()} has been called
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the fraction of the tables that have been finished, from 0 to 1
+	 */
+	public double progress() {
+		return (double) finished / tables.length;
+	}
+
+	/**
+	 * @return true if every table has been written or abandoned
+	 */
+	public boolean isDone() {
+		return result != null && result.isDone();
+	}
+
+	/**
+	 * Wait for the export to finish. Must not be called on the display thread
+	 * 
+	 * @return true if every table was written and the export was not cancelled
+	 */
+	public boolean await() {
+		return result != null && result.join();
+	}
+
+	/**
+	 * Write every table, inside one transaction whose isolation stops the simulation's changes from showing part of the way through
+	 * 
+	 * @return true if every table was written
+	 */
+	private boolean saveTables() {
+		boolean succeeded = true;
+		Connection connection = null;
+		try {
+			connection = DriverManager.getConnection(DBHandler.databaseURL(), "sa", "");
+			connection.setAutoCommit(false);
+			connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+			connection.setReadOnly(true);
+			for (String[] table : tables)
+				succeeded &= saveTable(connection, table);
+			connection.commit();
+		} catch (SQLException e) {
+			if (!cancelled)
+				logger.error("Could not save the database to {} because {}", directory, e.getMessage());
+			succeeded = false;
+		} finally {
+			try {
+				if (connection != null)
+					connection.close();
+			} catch (SQLException e) {
+				logger.debug("Could not close the connection that saved to {}", directory);
+			}
+		}
+		return succeeded;
+	}
+
+	private boolean saveTable(Connection connection, String[] table) {
+		String tableName = table[0];
+		boolean succeeded = false;
+		if (!cancelled) {
+			String query = "SELECT * FROM " + tableName + filter(table[1], table[2]);
+			String call = "CALL CSVWRITE('" + directory.replace("'", "''") + "/" + tableName + ".csv', '" + query + "')";
+			logger.debug("Saving with {}", call);
+			Statement statement = null;
+			try {
+				statement = connection.createStatement();
+				running = statement;
+				if (!cancelled) {
+					statement.execute(call);
+					succeeded = true;
+				}
+			} catch (SQLException e) {
+				if (!cancelled)
+					logger.error("Could not save the file called {} because {}", tableName, e.getMessage());
+			} finally {
+				running = null;
+				try {
+					if (statement != null)
+						statement.close();
+				} catch (SQLException e) {
+					logger.debug("Could not close the statement that saved {}", tableName);
+				}
+			}
+		}
+		int done = ++finished;
+		if (listener != null)
+			listener.tableFinished(tableName, succeeded, done, tables.length);
+		return succeeded;
+	}
+
+	/**
+	 * @return the WHERE clause that confines a table to the project and timeStamps of this export, or an empty string if there is none
+	 */
+	private String filter(String projectColumn, String timeStampColumn) {
+		List<String> conditions = new ArrayList<String>();
+		if (projectID >= 0)
+			conditions.add(projectColumn + " = " + projectID);
+		if (timeStampColumn != null && firstTimeStampID >= 0)
+			conditions.add(timeStampColumn + " BETWEEN " + firstTimeStampID + " AND " + lastTimeStampID);
+		return conditions.isEmpty() ? "" : " WHERE " + String.join(" AND ", conditions);
+	}
+}
@@ -24,11 +24,23 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import capitalism.Capitalism;
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
+import capitalism.model.Session;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
 import capitalism.reporting.Dialogues;
 import capitalism.reporting.Reporter;
 
@@ -43,6 +55,21 @@ public class DBHandler {
 	private static final Logger logger = LogManager.getLogger(DBHandler.class);
 	private static Connection conn;
 
+	/**
+	 * where the database is kept. In MEMORY (the default), everything, including the whole history of every project, is held on the heap;
+	 * this is fastest, but a long enough run of a large enough model will run out of memory. In FILE storage, H2 keeps the tables in a file
+	 * and only a page cache of fixed size in memory, so the length of a run is limited by the disk instead.
+	 */
+	public enum STORAGE {
+		MEMORY, FILE
+	};
+
+	// The storage can be chosen with the system properties capsim.storage (memory or file), capsim.storage.directory and
+	// capsim.storage.cacheSize (in kilobytes), or by calling useFileStorage before the database is first opened
+	private static STORAGE storage = "file".equalsIgnoreCase(System.getProperty("capsim.storage")) ? STORAGE.FILE : STORAGE.MEMORY;
+	private static String storageDirectory = System.getProperty("capsim.storage.directory", Capitalism.getUserBasePath() + "database/");
+	private static int cacheSize = Integer.getInteger("capsim.storage.cacheSize", 65536);
+
 	/**
 	 * a list of all the help files to be exported to the user help directory
 	 */
@@ -70,9 +97,86 @@ public class DBHandler {
 			"CreateRawTables.sql"
 	};
 
+	/**
+	 * the tables whose rows belong to a timeStamp
+	 */
+	private static String timeStampedTables[] = { "COMMODITIES", "STOCKS", "INDUSTRIES", "SOCIALCLASSES" };
+
+	/**
+	 * the tables that hold the history of a project, each with the name of its project column and of its timeStamp column
+	 */
+	private static String historyTables[][] = {
+			{ "COMMODITIES", "PROJECT", "TIMESTAMP" },
+			{ "STOCKS", "PROJECT", "TIMESTAMP" },
+			{ "INDUSTRIES", "PROJECT", "TIMESTAMP" },
+			{ "SOCIALCLASSES", "PROJECT", "TIMESTAMP" },
+			{ "TIMESTAMPS", "PROJECTFK", "TIMESTAMPID" }
+	};
+
+	/**
+	 * the statements that copy a timeStamp, by table, made from the columns of each table when first needed
+	 */
+	private static Map<String, String> copyStatements = new HashMap<String, String>();
+
+	/**
+	 * the secondary indexes of the schema, for the queries of the model classes; the primary keys already serve lookups by (project, timeStamp)
+	 * and by the full key. They are defined here and nowhere else: CreateRawTables.sql does not create them. They are created, if they are
+	 * missing, whenever a database is opened or loaded, which is after the data is in and so quicker than maintaining them during the load,
+	 * and which indexes data loaded by the script of any version alike
+	 */
+	private static String schemaIndexes[] = {
+			"CREATE INDEX IF NOT EXISTS IDX_STOCKS_COMMODITY ON STOCKS(PROJECT, TIMESTAMP, COMMODITY, STOCKTYPE)",
+			"CREATE INDEX IF NOT EXISTS IDX_STOCKS_TYPE ON STOCKS(PROJECT, TIMESTAMP, STOCKTYPE, OWNER)",
+			"CREATE INDEX IF NOT EXISTS IDX_STOCKS_HISTORY ON STOCKS(PROJECT, OWNER, COMMODITY, STOCKTYPE, TIMESTAMP)",
+			"CREATE INDEX IF NOT EXISTS IDX_COMMODITIES_FUNCTION ON COMMODITIES(PROJECT, TIMESTAMP, FUNCTIONTYPE, DISPLAYORDER)",
+			"CREATE INDEX IF NOT EXISTS IDX_COMMODITIES_ORIGIN ON COMMODITIES(PROJECT, TIMESTAMP, ORIGINTYPE)",
+			"CREATE INDEX IF NOT EXISTS IDX_COMMODITIES_HISTORY ON COMMODITIES(PROJECT, NAME, TIMESTAMP)",
+			"CREATE INDEX IF NOT EXISTS IDX_INDUSTRIES_COMMODITY ON INDUSTRIES(PROJECT, TIMESTAMP, COMMODITYNAME)",
+			"CREATE INDEX IF NOT EXISTS IDX_INDUSTRIES_HISTORY ON INDUSTRIES(PROJECT, INDUSTRYNAME, TIMESTAMP)",
+			"CREATE INDEX IF NOT EXISTS IDX_SOCIALCLASSES_HISTORY ON SOCIALCLASSES(PROJECT, SOCIALCLASSNAME, TIMESTAMP)",
+			"CREATE INDEX IF NOT EXISTS IDX_TIMESTAMPS_PROJECT ON TIMESTAMPS(PROJECTFK, TIMESTAMPID)",
+			"CREATE INDEX IF NOT EXISTS IDX_TIMESTAMPS_SUPERSTATE ON TIMESTAMPS(PROJECTFK, PERIOD, SUPERSTATE)"
+	};
+
 	public DBHandler() {
 	}
 
+	/**
+	 * Keep the database in a file instead of in memory. This must be called before the database is opened and before any entity is used,
+	 * because the persistence session reads {@link #databaseURL()} once only, when it is created.
+	 * 
+	 * @param directory
+	 *            the directory in which to keep the database file. Whatever it contains from an earlier run is replaced when the data is loaded
+	 * @param cacheSizeKB
+	 *            the size of the page cache, in kilobytes. This, not the length of the run, determines how much memory the database uses
+	 */
+	public static void useFileStorage(String directory, int cacheSizeKB) {
+		storage = STORAGE.FILE;
+		storageDirectory = directory.replace('\\', '/');
+		if (!storageDirectory.endsWith("/"))
+			storageDirectory += "/";
+		cacheSize = cacheSizeKB;
+	}
+
+	/**
+	 * @return true if the database is kept in a file, false if it is kept in memory
+	 */
+	public static boolean isFileBacked() {
+		return storage == STORAGE.FILE;
+	}
+
+	/**
+	 * The URL of the database, without any initialisation script. This is the URL that the persistence session connects to; the connection
+	 * that loads the data adds the script to it.
+	 * 
+	 * @return the URL of the database
+	 */
+	public static String databaseURL() {
+		if (storage == STORAGE.MEMORY)
+			return "jdbc:h2:mem:capitalism";
+		return "jdbc:h2:file:" + storageDirectory + "capitalism;CACHE_SIZE=" + cacheSize;
+	}
+
 	/**
 	 * reinitialise the whole database with the opening SQL queries and the user data
 	 * assumes the connection is already open
@@ -90,34 +194,64 @@ public class DBHandler {
 	}
 
 	/**
-	 * load a new database in csv format from a specified location
+	 * load a new database in csv format from a specified location.
+	 * The initialisation script in this location reads the csv files from the standard user data directory. If the location is somewhere else,
+	 * a copy of the script is made that reads the csv files from the location instead, and the database is initialised from that copy.
 	 * 
 	 * @param dataFileDirectory
 	 *            the full path to the directory in which the data files are located. If in NIX format (with '\' instead of '/') this is converted to Windows
 	 *            format.
+	 * @return true if the data was loaded, false otherwise
 	 */
-	public static void loadCSVDatabase(String dataFileDirectory) {
+	public static boolean loadCSVDatabase(String dataFileDirectory) {
 		dataFileDirectory = dataFileDirectory.replace('\\', '/');
 		try {
-			conn.close();
+			if (conn != null)
+				conn.close();
 		} catch (SQLException s) {
 			Dialogues.alert(logger, "Sorry, we could not re-start because we were\n"
 					+ "unable to close the database that is already open.");
-			return;
+			return false;
 		}
 		try {
 			Class.forName("org.h2.Driver");// is this necessary?
-			String queryFirstPart = "jdbc:h2:mem:capitalism;INIT=RUNSCRIPT FROM '";
-			String queryLastPart = "/CreateRawTables.sql'";
-			String queryWhole = queryFirstPart + dataFileDirectory + queryLastPart;
+			String queryFirstPart = databaseURL() + ";INIT=RUNSCRIPT FROM '";
+			String queryWhole = queryFirstPart + initialisationScript(dataFileDirectory) + "'";
 			logger.debug("Attempting to connect to the database using URL {} ", queryWhole);
 			conn = DriverManager.getConnection(queryWhole, "sa", "");
+			copyStatements.clear();
+			upgradeSchema();
 			Reporter.report(logger, 0, "Successfully loaded the data located at %s", dataFileDirectory);
+			return true;
 		} catch (Exception e) {
 			Dialogues.alert(logger, "Could not load the data because:\n" + e.getMessage());
+			return false;
 		}
 	}
 
+	/**
+	 * Locate the script that will initialise the database from the csv files in a given directory
+	 * 
+	 * @param dataFileDirectory
+	 *            the directory containing the csv files and CreateRawTables.sql, with '/' as separator
+	 * @return the path of CreateRawTables.sql itself if it already reads from this directory, otherwise the path of a temporary copy that does
+	 * @throws IOException
+	 *             if the script cannot be read or the copy cannot be written
+	 */
+	private static String initialisationScript(String dataFileDirectory) throws IOException {
+		String standardDirectory = "~/Documents/Capsim/data/";
+		File script = new File(dataFileDirectory, "CreateRawTables.sql");
+		String contents = FileUtils.readFileToString(script, "UTF-8");
+		String directory = dataFileDirectory.endsWith("/") ? dataFileDirectory : dataFileDirectory + "/";
+		if (!contents.contains(standardDirectory) || directory.equals(standardDirectory))
+			return script.getPath().replace('\\', '/');
+		File copy = File.createTempFile("CreateRawTables", ".sql");
+		copy.deleteOnExit();
+		FileUtils.writeStringToFile(copy, contents.replace(standardDirectory, directory), "UTF-8");
+		logger.debug("Initialising from a copy of {} that reads from {}", script.getPath(), directory);
+		return copy.getPath().replace('\\', '/');
+	}
+
 	/**
 	 * create the connection and execute the initialization file
 	 * 
@@ -126,9 +260,11 @@ public class DBHandler {
 	private static boolean openDatabase() {
 		try {
 			Class.forName("org.h2.Driver");
-			String urlPath = "jdbc:h2:mem:capitalism";
+			String urlPath = databaseURL();
 			logger.debug("Attempting to connect to the database using URL {} ", urlPath);
-			conn = DriverManager.getConnection("jdbc:h2:mem:capitalism;INIT=RUNSCRIPT FROM '~/Documents/Capsim/data/CreateRawTables.sql'", "sa", "");
+			conn = DriverManager.getConnection(urlPath + ";INIT=RUNSCRIPT FROM '~/Documents/Capsim/data/CreateRawTables.sql'", "sa", "");
+			copyStatements.clear();
+			upgradeSchema();
 			logger.debug("Successful connection to the H2 database");
 			return true;
 		} catch (SQLException s) {
@@ -143,6 +279,40 @@ public class DBHandler {
 		}
 	}
 
+	/**
+	 * Bring a database that has just been loaded up to the current schema. The scripts of earlier versions declared the timeStamp of
+	 * the commodities, stocks, industries and social classes as a VARCHAR, although it is an int in the entities and in every query;
+	 * if the database was loaded by such a script, the column is converted, with its contents, to an INT. The recording policy columns
+	 * of the projects, and the secondary indexes, are then created if they are missing.
+	 * 
+	 * @throws SQLException
+	 *             if the schema cannot be read or changed
+	 */
+	private static void upgradeSchema() throws SQLException {
+		Statement statement = conn.createStatement();
+		try {
+			for (String table : timeStampedTables) {
+				ResultSet resultSet = conn.getMetaData().getColumns(null, null, table, "TIMESTAMP");
+				boolean isCharacter;
+				try {
+					isCharacter = resultSet.next() && resultSet.getInt("DATA_TYPE") == Types.VARCHAR;
+				} finally {
+					resultSet.close();
+				}
+				if (isCharacter) {
+					logger.debug("Converting the timeStamp column of {} from VARCHAR to INT", table);
+					statement.executeUpdate("ALTER TABLE " + table + " ALTER COLUMN \"TIMESTAMP\" INT DEFAULT 1 NOT NULL");
+				}
+			}
+			statement.executeUpdate("ALTER TABLE PROJECTS ADD COLUMN IF NOT EXISTS RECORDINGPOLICY VARCHAR(20) DEFAULT 'ALL'");
+			statement.executeUpdate("ALTER TABLE PROJECTS ADD COLUMN IF NOT EXISTS RECORDINGINTERVAL INT DEFAULT 1");
+			for (String index : schemaIndexes)
+				statement.executeUpdate(index);
+		} finally {
+			statement.close();
+		}
+	}
+
 	/**
 	 * copy a file from the .jar file into the user file system. The base directory for these files in the user system is 
 	 * {@code Utilities.getUserBasePath()} and is set there statically
@@ -220,60 +390,201 @@ public class DBHandler {
 	}
 
 	/**
-	 * save the database, in its current state, to a directory as a set of CSV files
+	 * Copy every commodity, stock, industry and social class of one timeStamp of a project to another timeStamp of the same project,
+	 * with one INSERT ... SELECT statement per table. The statements are executed by the shared persistence session ({@link Session}),
+	 * inside the transaction that the caller must already have begun there, so the copy is written out, or abandoned, together with the
+	 * rest of that transaction. Every column is copied as it stands in the database, so the changes that the session is holding are
+	 * flushed first.
 	 * 
-	 * @param saveDirectory
-	 *            the directory in which to save the files
+	 * @param projectID
+	 *            the project
+	 * @param fromTimeStampID
+	 *            the timeStamp to copy
+	 * @param toTimeStampID
+	 *            the timeStamp to create. It must not yet contain any entities
+	 * @return true if the copy was made, false if there is no connection from which to build the statements, in which case nothing was
+	 *         copied. If a statement fails once the copy has begun, the exception is passed to the caller, whose transaction can then
+	 *         only be rolled back
 	 */
-	public static void saveCSVDataBase(File saveDirectory) {
-		String[] standardFiles = { "timeStamps", "projects", "commodities", "stocks", "socialClasses", "industries" };
-		String baseDirectoryURL;
+	public static boolean copyTimeStamp(int projectID, int fromTimeStampID, int toTimeStampID) {
+		if (conn == null)
+			return false;
+		String[] statements = new String[timeStampedTables.length];
 		try {
-			if (saveDirectory == null)
-				return;
-			baseDirectoryURL = saveDirectory.getCanonicalPath().replace('\\', '/');
-		} catch (IOException e) {
-			Dialogues.alert(logger, "Failed to create a meaningful name for the save directory");
-			e.printStackTrace();
-			return;
+			for (int i = 0; i < timeStampedTables.length; i++)
+				statements[i] = copyStatement(timeStampedTables[i]);
+		} catch (SQLException e) {
+			logger.error("Could not copy timeStamp {} of project {} because {}", fromTimeStampID, projectID, e.getMessage());
+			return false;
 		}
-		for (int i = 0; i < standardFiles.length; i++) {
-			Reporter.report(logger, 2, "Checking whether the file called '%s' exists", standardFiles[i]);
+		EntityManager entityManager = Session.getEntityManager();
+		entityManager.flush();
+		for (String statement : statements) {
+			int copied = entityManager.createNativeQuery(statement)
+					.setParameter(1, toTimeStampID)
+					.setParameter(2, projectID)
+					.setParameter(3, fromTimeStampID)
+					.executeUpdate();
+			Metrics.copied(copied);
 		}
-		for (int i = 0; i < standardFiles.length; i++) {
-			saveOneTable(baseDirectoryURL, standardFiles[i]);
+		return true;
+	}
+
+	/**
+	 * Move every commodity, stock, industry and social class of one timeStamp of a project to another timeStamp of the same project,
+	 * with one UPDATE statement per table, so that the old timeStamp is left empty. Like {@link #copyTimeStamp(int, int, int)}, the statements
+	 * join the transaction of the shared persistence session, which the caller must already have begun, and which must not be holding
+	 * any changes that it has not flushed. The rows are moved underneath the session, so they are also evicted from the shared cache;
+	 * the entities that the session holds at the old timeStamp no longer exist in the database, and the caller must let go of them
+	 * (see {@link Session#release()}).
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param fromTimeStampID
+	 *            the timeStamp to move
+	 * @param toTimeStampID
+	 *            the timeStamp to move it to. It must not yet contain any entities
+	 * @return true if the rows were moved, false if there is no connection to the database, in which case nothing was moved
+	 */
+	public static boolean moveTimeStamp(int projectID, int fromTimeStampID, int toTimeStampID) {
+		if (conn == null)
+			return false;
+		EntityManager entityManager = Session.getEntityManager();
+		for (String table : timeStampedTables) {
+			int moved = entityManager.createNativeQuery("UPDATE " + table + " SET TIMESTAMP = ? WHERE PROJECT = ? AND TIMESTAMP = ?")
+					.setParameter(1, toTimeStampID)
+					.setParameter(2, projectID)
+					.setParameter(3, fromTimeStampID)
+					.executeUpdate();
+			logger.debug(" Moved {} rows of {} from timeStamp {} to timeStamp {}", moved, table, fromTimeStampID, toTimeStampID);
 		}
-		// Copy the initializer file so it can load the data files
-		copyFileToUserDirectory(baseDirectoryURL, "/", "CreateRawTables.sql");
+		Cache cache = entityManager.getEntityManagerFactory().getCache();
+		cache.evict(Commodity.class);
+		cache.evict(Stock.class);
+		cache.evict(Industry.class);
+		cache.evict(SocialClass.class);
+		return true;
 	}
 
 	/**
-	 * save one table
+	 * Remove the history of a project, that is, every commodity, stock, industry, social class and timeStamp of the project except
+	 * those of timeStamp 1, from which the project starts again.
 	 * 
-	 * @param baseDirectory
-	 *            the folder into which the table will be saved
-	 * @param tableName
-	 *            the name of the table to save, which will also be the name of the .csv file
+	 * @param projectID
+	 *            the project
 	 */
-	public static void saveOneTable(String baseDirectory, String tableName) {
-		Reporter.report(logger, 1, "Saving %s to %s", tableName, baseDirectory);
-		Statement s;
+	public static void deleteHistory(int projectID) {
+		deleteFromProject(projectID, 1);
+	}
+
+	/**
+	 * Remove a project entirely: all its commodities, stocks, industries, social classes and timeStamps, and the project itself.
+	 * 
+	 * @param projectID
+	 *            the project
+	 */
+	public static void deleteProject(int projectID) {
+		deleteFromProject(projectID, 0);
+		Session.getEntityManager().createNativeQuery("DELETE FROM PROJECTS WHERE PROJECTID = ?").setParameter(1, projectID).executeUpdate();
+	}
+
+	/**
+	 * Remove the rows of a project after a given timeStamp from every table that holds its history. Must be called inside a transaction
+	 * of the shared persistence session ({@link Session}), which the deletions join, so that they are undone if the transaction is rolled
+	 * back. The rows are removed underneath the session, so the session then lets go of every entity it holds (see {@link Session#release()});
+	 * the caller must look up again any entity it wants to keep using.
+	 * 
+	 * Each table is cleared with one DELETE, which an index whose leading columns are the project and the timeStamp (the primary key,
+	 * or IDX_TIMESTAMPS_PROJECT for the timeStamps) confines to this project's own rows, whatever the history of the other projects.
+	 * The cost is therefore proportional to the history of this project, not constant. The projects share one table per entity, because
+	 * that is what the entities are mapped to; a table or schema of its own for each project, which could simply be dropped, would need
+	 * every entity and query to be mapped afresh for each project, and truncating a shared table would commit the open transaction.
+	 * 
+	 * @param projectID
+	 *            the project
+	 * @param lastTimeStampID
+	 *            the last timeStamp to keep: 1 to keep the initial state of the project, 0 to keep nothing
+	 */
+	private static void deleteFromProject(int projectID, int lastTimeStampID) {
+		EntityManager entityManager = Session.getEntityManager();
+		entityManager.flush();
+		logger.debug("Deleting project {} after timeStamp {}", projectID, lastTimeStampID);
+		for (String[] table : historyTables) {
+			int deleted = entityManager.createNativeQuery("DELETE FROM " + table[0] + " WHERE " + table[1] + " = ? AND " + table[2] + " > ?")
+					.setParameter(1, projectID)
+					.setParameter(2, lastTimeStampID)
+					.executeUpdate();
+			logger.debug(" Deleted {} rows from {}", deleted, table[0]);
+		}
+		entityManager.getEntityManagerFactory().getCache().evictAll();
+		Session.release();
+	}
+
+	/**
+	 * The statement that copies the rows of one timeStamp of a table to another. It has three parameters: the new timeStamp,
+	 * the project and the old timeStamp.
+	 * 
+	 * @param table
+	 *            the table
+	 * @return the statement
+	 * @throws SQLException
+	 *             if the columns of the table cannot be read
+	 */
+	private static String copyStatement(String table) throws SQLException {
+		String statement = copyStatements.get(table);
+		if (statement != null)
+			return statement;
+		StringBuilder columns = new StringBuilder();
+		StringBuilder values = new StringBuilder();
+		ResultSet resultSet = conn.getMetaData().getColumns(null, null, table, null);
 		try {
-			s = conn.createStatement();
-		} catch (SQLException e1) {
-			Dialogues.alert(logger, "Could not access the database to save it");
-			e1.printStackTrace();
-			return;
+			while (resultSet.next()) {
+				String column = resultSet.getString("COLUMN_NAME");
+				if (columns.length() > 0) {
+					columns.append(", ");
+					values.append(", ");
+				}
+				columns.append('"').append(column).append('"');
+				values.append(column.equalsIgnoreCase("TIMESTAMP") ? "?" : "\"" + column + "\"");
+			}
+		} finally {
+			resultSet.close();
 		}
-		String queryString;
-		queryString = "CALL CSVWRITE('" + baseDirectory + "/" + tableName + ".csv', 'SELECT * FROM " + tableName + "');";
-		Reporter.report(logger, 2, "Saving with %s", queryString);
+		statement = "INSERT INTO " + table + " (" + columns + ") SELECT " + values + " FROM " + table + " WHERE PROJECT = ? AND TIMESTAMP = ?";
+		copyStatements.put(table, statement);
+		return statement;
+	}
+
+	/**
+	 * save the database, in its current state, to a directory as a set of CSV files. The tables are saved in the background, one after
+	 * the other and all in one transaction (see {@link CSVExport}), and this returns at once
+	 * 
+	 * @param saveDirectory
+	 *            the directory in which to save the files
+	 * @return the export, which can be followed, waited for or cancelled, or null if it could not be started
+	 */
+	public static CSVExport saveCSVDataBase(File saveDirectory) {
+		return saveCSVDataBase(saveDirectory, null);
+	}
+
+	/**
+	 * save the database, in its current state, to a directory as a set of CSV files, as {@link #saveCSVDataBase(File)} does, telling a
+	 * listener of the progress
+	 * 
+	 * @param saveDirectory
+	 *            the directory in which to save the files
+	 * @param listener
+	 *            the listener, which is called on the thread that saves the tables. May be null
+	 * @return the export, which can be followed, waited for or cancelled, or null if it could not be started
+	 */
+	public static CSVExport saveCSVDataBase(File saveDirectory, CSVExport.Listener listener) {
+		if (saveDirectory == null)
+			return null;
 		try {
-			s.executeQuery(queryString);
-		} catch (SQLException e) {
-			Dialogues.alert(logger, "Could not save the file called " + tableName);
-			e.printStackTrace();
-			e.printStackTrace();
+			return new CSVExport(saveDirectory).withListener(listener).start(ForkJoinPool.commonPool());
+		} catch (IOException e) {
+			Dialogues.alert(logger, "Failed to create a meaningful name for the save directory");
+			return null;
 		}
 	}
 }
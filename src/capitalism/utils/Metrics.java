@@ -0,0 +1,413 @@
+/*
+ *  Copyright (C) Alan Freeman 2017-2019
+ *  
+ *  This file is part of the Capitalism Simulation, abbreviated to CapSim
+ *  in the remainder of this project
+ *
+ *  Capsim is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+*
+*   Capsim is distributed in the hope that it will be useful,
+*   but WITHOUT ANY WARRANTY; without even the implied warranty of
+*   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*   GNU General Public License for more details.
+*
+*   You should have received a copy of the GNU General Public License
+*   along with Capsim.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package capitalism.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Measures where the time of the simulation goes.
+ *
+ * A section is a named piece of work, such as a command or {@link capitalism.controller.Simulation#advanceOneStep(String, String)}, which
+ * is measured by bracketing it with {@link #start(String)} and {@link Probe#stop()}. Each time a section runs, the metrics record its wall
+ * time, the number of queries it executed, the number of rows it wrote, the number of entities it copied from one timeStamp to the next and,
+ * where the JVM can measure it, the number of bytes it allocated. Sections may be nested, in which case the outer section includes the
+ * cost of the inner one. The queries are counted by name, too. They are counted as the persistence provider executes them, by a
+ * {@link capitalism.model.QueryListener} that {@link capitalism.model.Session} installs in every persistence session, so that the
+ * queries it issues itself, to load related entities or to write out changes, are counted as well.
+ *
+ * Each section, and the query counts, are published as MXBeans in the domain {@code capitalism}, so that they can be watched with
+ * jconsole or any other JMX client while the simulation runs, and can be written to a csv file by {@link #write(File)} after a batch run.
+ * The system property capsim.metrics=false switches the measurements off.
+ */
+public class Metrics {
+	private static final Logger logger = LogManager.getLogger("Metrics");
+
+	private static final String DOMAIN = "capitalism";
+
+	private static boolean enabled = !"false".equalsIgnoreCase(System.getProperty("capsim.metrics"));
+
+	// the sections in the order they first ran
+	private static final Map<String, Section> sections = new LinkedHashMap<String, Section>();
+	private static final Map<String, AtomicLong> queryCounts = new TreeMap<String, AtomicLong>();
+
+	private static final AtomicLong queries = new AtomicLong();
+	private static final AtomicLong rowsWritten = new AtomicLong();
+	private static final AtomicLong entitiesCopied = new AtomicLong();
+
+	private static final com.sun.management.ThreadMXBean allocationBean;
+	private static final Probe idle = new Probe(null);
+
+	static {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			allocationBean = (com.sun.management.ThreadMXBean) bean;
+		} else {
+			allocationBean = null;
+		}
+		if (enabled)
+			register("type=Queries", new Queries());
+	}
+
+	/**
+	 * The metrics of one section, as published over JMX
+	 */
+	public interface SectionMXBean {
+		/** @return the name of the section */
+		public String getName();
+
+		/** @return the number of times the section has run */
+		public long getCount();
+
+		/** @return the total wall time of the section, in milliseconds */
+		public double getTotalMillis();
+
+		/** @return the mean wall time of the section, in milliseconds */
+		public double getMeanMillis();
+
+		/** @return the longest wall time of the section, in milliseconds */
+		public double getMaxMillis();
+
+		/** @return the number of queries executed by the section */
+		public long getQueries();
+
+		/** @return the number of rows written by the section's updates and copies */
+		public long getRowsWritten();
+
+		/** @return the number of entities copied to a new timeStamp by the section */
+		public long getEntitiesCopied();
+
+		/** @return the number of bytes allocated by the section, or 0 if the JVM cannot measure this */
+		public long getAllocatedBytes();
+
+		/** start counting again from zero */
+		public void reset();
+	}
+
+	/**
+	 * The queries, as published over JMX
+	 */
+	public interface QueriesMXBean {
+		/** @return the number of times each query has been executed, by name */
+		public Map<String, Long> getCounts();
+
+		/** @return the number of times any counted query has been executed */
+		public long getTotal();
+
+		/** @return the number of rows written by the counted updates and by copies */
+		public long getRowsWritten();
+
+		/** @return the number of entities copied to a new timeStamp */
+		public long getEntitiesCopied();
+
+		/** start counting again from zero */
+		public void reset();
+	}
+
+	/**
+	 * The accumulated metrics of a section
+	 */
+	public static class Section implements SectionMXBean {
+		private final String name;
+		private long count;
+		private long nanos;
+		private long maxNanos;
+		private long queries;
+		private long rowsWritten;
+		private long entitiesCopied;
+		private long allocatedBytes;
+
+		private Section(String name) {
+			this.name = name;
+		}
+
+		private synchronized void add(long nanos, long queries, long rowsWritten, long entitiesCopied, long allocatedBytes) {
+			count++;
+			this.nanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			this.queries += queries;
+			this.rowsWritten += rowsWritten;
+			this.entitiesCopied += entitiesCopied;
+			this.allocatedBytes += allocatedBytes;
+		}
+
+		@Override public String getName() {
+			return name;
+		}
+
+		@Override public synchronized long getCount() {
+			return count;
+		}
+
+		@Override public synchronized double getTotalMillis() {
+			return nanos / 1e6;
+		}
+
+		@Override public synchronized double getMeanMillis() {
+			return count == 0 ? 0 : nanos / 1e6 / count;
+		}
+
+		@Override public synchronized double getMaxMillis() {
+			return maxNanos / 1e6;
+		}
+
+		@Override public synchronized long getQueries() {
+			return queries;
+		}
+
+		@Override public synchronized long getRowsWritten() {
+			return rowsWritten;
+		}
+
+		@Override public synchronized long getEntitiesCopied() {
+			return entitiesCopied;
+		}
+
+		@Override public synchronized long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		@Override public synchronized void reset() {
+			count = 0;
+			nanos = 0;
+			maxNanos = 0;
+			queries = 0;
+			rowsWritten = 0;
+			entitiesCopied = 0;
+			allocatedBytes = 0;
+		}
+	}
+
+	private static class Queries implements QueriesMXBean {
+		@Override public Map<String, Long> getCounts() {
+			Map<String, Long> counts = new TreeMap<String, Long>();
+			synchronized (queryCounts) {
+				for (Map.Entry<String, AtomicLong> e : queryCounts.entrySet())
+					counts.put(e.getKey(), e.getValue().get());
+			}
+			return counts;
+		}
+
+		@Override public long getTotal() {
+			return queries.get();
+		}
+
+		@Override public long getRowsWritten() {
+			return rowsWritten.get();
+		}
+
+		@Override public long getEntitiesCopied() {
+			return entitiesCopied.get();
+		}
+
+		@Override public void reset() {
+			Metrics.reset();
+		}
+	}
+
+	/**
+	 * One run of a section, begun by {@link Metrics#start(String)}
+	 */
+	public static class Probe {
+		private final Section section;
+		private final long startNanos;
+		private final long startQueries;
+		private final long startRows;
+		private final long startCopies;
+		private final long startBytes;
+
+		private Probe(Section section) {
+			this.section = section;
+			if (section == null) {
+				startNanos = startQueries = startRows = startCopies = startBytes = 0;
+				return;
+			}
+			startQueries = queries.get();
+			startRows = rowsWritten.get();
+			startCopies = entitiesCopied.get();
+			startBytes = allocatedBytes();
+			startNanos = System.nanoTime();
+		}
+
+		/**
+		 * End the run and add what it cost to its section
+		 */
+		public void stop() {
+			if (section == null)
+				return;
+			long nanos = System.nanoTime() - startNanos;
+			section.add(nanos, queries.get() - startQueries, rowsWritten.get() - startRows, entitiesCopied.get() - startCopies,
+					allocatedBytes() - startBytes);
+		}
+	}
+
+	/**
+	 * @return true if the metrics are being recorded
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Begin a run of a section. The caller must call {@link Probe#stop()} on the same thread when the section ends
+	 * 
+	 * @param name
+	 *            the name of the section
+	 * @return the run, which does nothing when stopped if the metrics are switched off
+	 */
+	public static Probe start(String name) {
+		if (!enabled)
+			return idle;
+		return new Probe(section(name));
+	}
+
+	/**
+	 * Count one query executed by the persistence sessions. Called by {@link capitalism.model.QueryListener}, which watches them all.
+	 * 
+	 * @param name
+	 *            the name under which the query is counted
+	 * @param rows
+	 *            the number of rows the query wrote, or 0 if it only read
+	 */
+	public static void executed(String name, int rows) {
+		if (!enabled)
+			return;
+		AtomicLong count;
+		synchronized (queryCounts) {
+			count = queryCounts.get(name);
+			if (count == null) {
+				count = new AtomicLong();
+				queryCounts.put(name, count);
+			}
+		}
+		count.incrementAndGet();
+		queries.incrementAndGet();
+		rowsWritten.addAndGet(rows);
+	}
+
+	/**
+	 * Record that entities were copied to a new timeStamp. The rows this writes are counted with the query that wrote them
+	 * 
+	 * @param count
+	 *            the number of entities copied
+	 */
+	public static void copied(int count) {
+		entitiesCopied.addAndGet(count);
+	}
+
+	/**
+	 * @return the sections that have run, in the order in which they first ran
+	 */
+	public static List<Section> sections() {
+		synchronized (sections) {
+			return new ArrayList<Section>(sections.values());
+		}
+	}
+
+	/**
+	 * Start counting again from zero, in every section and for every query
+	 */
+	public static void reset() {
+		for (Section section : sections())
+			section.reset();
+		synchronized (queryCounts) {
+			for (AtomicLong count : queryCounts.values())
+				count.set(0);
+		}
+		queries.set(0);
+		rowsWritten.set(0);
+		entitiesCopied.set(0);
+	}
+
+	/**
+	 * Write the metrics of each section, and then the count of each query, to a csv file
+	 * 
+	 * @param file
+	 *            the file to write
+	 * @throws IOException
+	 *             if the file cannot be written
+	 */
+	public static void write(File file) throws IOException {
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write("section,count,total ms,mean ms,max ms,queries,rows written,entities copied,allocated bytes");
+			writer.newLine();
+			for (Section s : sections()) {
+				writer.write(String.format("%s,%d,%.3f,%.3f,%.3f,%d,%d,%d,%d", s.getName(), s.getCount(), s.getTotalMillis(), s.getMeanMillis(),
+						s.getMaxMillis(), s.getQueries(), s.getRowsWritten(), s.getEntitiesCopied(), s.getAllocatedBytes()));
+				writer.newLine();
+			}
+			writer.newLine();
+			writer.write("query,count");
+			writer.newLine();
+			for (Map.Entry<String, Long> e : new Queries().getCounts().entrySet()) {
+				writer.write(e.getKey() + "," + e.getValue());
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+		logger.debug("Wrote the metrics of {} sections to {}", sections.size(), file.getPath());
+	}
+
+	private static Section section(String name) {
+		synchronized (sections) {
+			Section section = sections.get(name);
+			if (section == null) {
+				section = new Section(name);
+				sections.put(name, section);
+				register("type=Section,name=" + name, section);
+			}
+			return section;
+		}
+	}
+
+	private static void register(String properties, Object bean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+			if (!server.isRegistered(name))
+				server.registerMBean(bean, name);
+		} catch (JMException | IllegalArgumentException e) {
+			logger.warn("Could not publish the metrics {} because {}", properties, e.getMessage());
+		}
+	}
+
+	private static long allocatedBytes() {
+		return allocationBean == null ? 0 : allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
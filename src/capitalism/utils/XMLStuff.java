@@ -19,52 +19,327 @@
 */
 package capitalism.utils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.ValidationException;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import capitalism.model.Commodity;
+import capitalism.model.Industry;
 import capitalism.model.OneProject;
+import capitalism.model.Project;
+import capitalism.model.Session;
+import capitalism.model.SocialClass;
+import capitalism.model.Stock;
+import capitalism.model.TimeStamp;
 import capitalism.reporting.Dialogues;
+import capitalism.reporting.Reporter;
+import capitalism.view.custom.ActionStates;
+import capitalism.view.custom.DisplayControlsBox;
 
+/**
+ * Saves projects as XML and reads them back.
+ * 
+ * A project held in memory ({@link OneProject}) is marshalled as a whole by {@link #exportToXML(OneProject, File)}. A project in the
+ * database is instead streamed, by {@link #streamToXML(int, File)}: its entities are read in chunks of about {@link #CHUNK_SIZE}, each
+ * chunk is written out and then let go, so the memory used does not grow with the length of the history. Reading is streamed in the same
+ * way by {@link #importFromXML(File)}, which unmarshals one entity at a time and commits every {@link #CHUNK_SIZE} entities. Both produce and
+ * accept the same document as the JAXB annotations of {@link OneProject} describe, and a file whose name ends in .gz is compressed with gzip.
+ */
 public class XMLStuff {
 	private static final Logger logger = LogManager.getLogger("XML handler");
 
+	/** the number of entities read, written or committed at a time when streaming */
+	public static final int CHUNK_SIZE = 1000;
+
+	// the element names of the entities in a saved project, as given by the JAXB annotations of OneProject
+	private static final Map<String, Class<?>> elementTypes = new HashMap<String, Class<?>>();
+	static {
+		elementTypes.put("commodities", Commodity.class);
+		elementTypes.put("industries", Industry.class);
+		elementTypes.put("socialClasses", SocialClass.class);
+		elementTypes.put("stocks", Stock.class);
+		elementTypes.put("timeStamps", TimeStamp.class);
+		elementTypes.put("Project", Project.class);
+	}
+
+	private static JAXBContext jaxbContext = null;
+
+	private static JAXBContext context() throws JAXBException {
+		if (jaxbContext == null)
+			jaxbContext = JAXBContext.newInstance(OneProject.class);
+		return jaxbContext;
+	}
+
+	/**
+	 * @param file
+	 *            a file
+	 * @return true if the name of the file says that it holds XML, compressed or not
+	 */
+	public static boolean isXML(File file) {
+		String name = file.getName().toLowerCase();
+		return name.endsWith(".xml") || name.endsWith(".xml.gz");
+	}
+
 	public static void exportToXML(OneProject oneProject, File file) {
-		JAXBContext commoditiesContext;
+		OutputStream out = null;
 		try {
-			commoditiesContext = JAXBContext.newInstance(OneProject.class);
-			Marshaller commoditiesMarshaller = commoditiesContext.createMarshaller();
+			Marshaller commoditiesMarshaller = context().createMarshaller();
 			commoditiesMarshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-			commoditiesMarshaller.marshal(oneProject, file);
-		} catch (JAXBException e) {
+			out = openForWriting(file);
+			commoditiesMarshaller.marshal(oneProject, out);
+			out.close();
+			out = null;
+		} catch (JAXBException | IOException e) {
 			Dialogues.alert(logger, "Could not save the database because %s", e.getMessage());
+		} finally {
+			closeQuietly(out);
 		}
 	}
 
+	/**
+	 * Save a project from the database as XML, one chunk at a time. The entities are read through a persistence session of their own, which
+	 * is emptied after each chunk, so neither this session nor the shared one comes to hold the whole history. Changes that the shared session
+	 * has not yet written out are written out first.
+	 * 
+	 * @param projectID
+	 *            the project to save
+	 * @param file
+	 *            the file to save it in
+	 * @return true if the project was saved, false otherwise
+	 */
+	public static boolean streamToXML(int projectID, File file) {
+		long start = System.currentTimeMillis();
+		Session.begin();
+		Session.getEntityManager().flush();
+		Session.commit();
+		EntityManager entityManager = Session.createEntityManager();
+		OutputStream out = null;
+		try {
+			Marshaller marshaller = context().createMarshaller();
+			marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+			out = openForWriting(file);
+			XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+			writer.writeStartDocument("UTF-8", "1.0");
+			writer.writeCharacters("\n");
+			writer.writeStartElement("SavedProject");
+			writer.writeCharacters("\n");
+			int rows = streamTable(entityManager, marshaller, writer, projectID, "Commodities", "commodities", Commodity.class);
+			rows += streamTable(entityManager, marshaller, writer, projectID, "Industries", "industries", Industry.class);
+			rows += streamTable(entityManager, marshaller, writer, projectID, "SocialClasses", "socialClasses", SocialClass.class);
+			rows += streamTable(entityManager, marshaller, writer, projectID, "Stocks", "stocks", Stock.class);
+			rows += streamTable(entityManager, marshaller, writer, projectID, "TimeStamps", "timeStamps", TimeStamp.class);
+			Project project = entityManager.find(Project.class, projectID);
+			if (project == null)
+				throw new IOException("there is no project " + projectID);
+			marshaller.marshal(new JAXBElement<Project>(new QName("Project"), Project.class, project), writer);
+			writer.writeCharacters("\n");
+			writer.writeEndElement();
+			writer.writeEndDocument();
+			writer.close();
+			out.close();
+			out = null;
+			logger.debug("Saved {} entities of project {} to {} in {} milliseconds", rows, projectID, file.getPath(), System.currentTimeMillis() - start);
+			return true;
+		} catch (JAXBException | XMLStreamException | IOException e) {
+			Dialogues.alert(logger, "Could not save the project because %s", e.getMessage());
+			return false;
+		} finally {
+			closeQuietly(out);
+			entityManager.close();
+		}
+	}
+
+	/**
+	 * Write the entities of one kind in a project, wrapped in a single element. The entities are read a range of timeStamps at a time,
+	 * the range being chosen, from the number of entities at each timeStamp, to hold about {@link #CHUNK_SIZE} entities.
+	 * 
+	 * @return the number of entities written
+	 */
+	private static <T> int streamTable(EntityManager entityManager, Marshaller marshaller, XMLStreamWriter writer, int projectID, String wrapper,
+			String element, Class<T> entityClass) throws JAXBException, XMLStreamException {
+		String entity = entityClass.getSimpleName();
+		List<Object[]> counts = entityManager.createQuery("SELECT e.pk.timeStampID, COUNT(e) FROM " + entity
+				+ " e WHERE e.pk.projectID = :project GROUP BY e.pk.timeStampID ORDER BY e.pk.timeStampID", Object[].class)
+				.setParameter("project", projectID).getResultList();
+		TypedQuery<T> chunkQuery = entityManager.createQuery("SELECT e FROM " + entity
+				+ " e WHERE e.pk.projectID = :project AND e.pk.timeStampID BETWEEN :first AND :last", entityClass);
+		chunkQuery.setHint("javax.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+		QName name = new QName(element);
+		writer.writeStartElement(wrapper);
+		writer.writeCharacters("\n");
+		int written = 0;
+		int i = 0;
+		while (i < counts.size()) {
+			int first = ((Number) counts.get(i)[0]).intValue();
+			int last = first;
+			long rows = 0;
+			while (i < counts.size() && (rows == 0 || rows + ((Number) counts.get(i)[1]).longValue() <= CHUNK_SIZE)) {
+				last = ((Number) counts.get(i)[0]).intValue();
+				rows += ((Number) counts.get(i)[1]).longValue();
+				i++;
+			}
+			chunkQuery.setParameter("project", projectID).setParameter("first", first).setParameter("last", last);
+			for (T e : chunkQuery.getResultList()) {
+				marshaller.marshal(new JAXBElement<T>(name, entityClass, e), writer);
+				writer.writeCharacters("\n");
+				written++;
+			}
+			entityManager.clear();
+		}
+		writer.writeEndElement();
+		writer.writeCharacters("\n");
+		return written;
+	}
+
 	public static void getDatabaseFromXML() {
 		File file = null;
 		file = Dialogues.loadFileChooser("Location of the new data");
 		if (file == null)
 			return;
-		Unmarshaller jaxbUnmarshaller;
+		if (importFromXML(file) >= 0)
+			DisplayControlsBox.rePopulateProjectCombo();
+	}
+
+	/**
+	 * Read a project from an XML file, or from a binary snapshot written by {@link BinaryStuff}, and add it to the database, without using the
+	 * display. An XML file is read as a stream: each entity is unmarshalled and persisted as it is read, through a persistence session of its
+	 * own that is committed and emptied every {@link #CHUNK_SIZE} entities, so the memory used does not grow with the size of the file. If the
+	 * file cannot be read to the end, whatever part of the project has been committed is removed again.
+	 * 
+	 * @param file
+	 *            the XML file or snapshot
+	 * @return the projectID of the new project, or -1 if the file could not be read or its data did not validate
+	 */
+	public static int importFromXML(File file) {
+		if (BinaryStuff.isBinary(file))
+			return BinaryStuff.importFromBinary(file);
+		long start = System.currentTimeMillis();
+		int projectID = Project.maxProjectID() + 1;
+		Reporter.report(logger, 1, "Importing a new project with project number %d", projectID);
+		EntityManager entityManager = Session.createEntityManager();
+		InputStream in = null;
+		boolean hasProject = false;
+		int rows = 0;
 		try {
-			JAXBContext jaxbContext = JAXBContext.newInstance(OneProject.class);
-			jaxbUnmarshaller = jaxbContext.createUnmarshaller();
-			OneProject oneProject = (OneProject) jaxbUnmarshaller.unmarshal(file);
-			oneProject.importFromEditorToDatabase();
+			Unmarshaller unmarshaller = context().createUnmarshaller();
+			in = openForReading(file);
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+			entityManager.getTransaction().begin();
+			while (reader.hasNext()) {
+				Class<?> type = reader.getEventType() == XMLStreamConstants.START_ELEMENT ? elementTypes.get(reader.getLocalName()) : null;
+				if (type == null) {
+					reader.next();
+					continue;
+				}
+				// unmarshalling consumes the element, and leaves the reader on whatever follows it
+				Object entity = unmarshaller.unmarshal(reader, type).getValue();
+				if (entity instanceof Project) {
+					Project project = (Project) entity;
+					project.setProjectID(projectID);
+					project.setButtonState(ActionStates.lastState().text());
+					hasProject = true;
+				} else if (entity instanceof TimeStamp) {
+					((TimeStamp) entity).setProjectID(projectID);
+				} else if (entity instanceof Commodity) {
+					((Commodity) entity).setProjectID(projectID);
+				} else if (entity instanceof Industry) {
+					((Industry) entity).setProjectID(projectID);
+				} else if (entity instanceof SocialClass) {
+					((SocialClass) entity).setProjectID(projectID);
+				} else {
+					((Stock) entity).setProjectID(projectID);
+				}
+				entityManager.persist(entity);
+				if (++rows % CHUNK_SIZE == 0) {
+					entityManager.getTransaction().commit();
+					entityManager.clear();
+					entityManager.getTransaction().begin();
+				}
+			}
+			if (!hasProject)
+				throw new IOException("the file does not describe a project");
+			entityManager.getTransaction().commit();
+			reader.close();
 		} catch (ValidationException r) {
-			Dialogues.alert(logger, "The file was invalid because {}", r.getMessage());
+			abandonImport(entityManager, projectID, rows >= CHUNK_SIZE);
+			Dialogues.alert(logger, "The file was invalid because %s", r.getMessage());
+			return -1;
+		} catch (JAXBException | XMLStreamException | IOException | RuntimeException e) {
+			abandonImport(entityManager, projectID, rows >= CHUNK_SIZE);
+			Dialogues.alert(logger, "Could not decode this file because %s", e.getMessage());
+			return -1;
+		} finally {
+			closeQuietly(in);
+			entityManager.close();
+		}
+		logger.debug("Imported {} entities from {} in {} milliseconds", rows, file.getPath(), System.currentTimeMillis() - start);
+		return OneProject.initialiseImported(projectID);
+	}
+
+	/**
+	 * Roll back the chunk being imported and, if earlier chunks were committed, remove them
+	 */
+	private static void abandonImport(EntityManager entityManager, int projectID, boolean committed) {
+		if (entityManager.getTransaction().isActive())
+			entityManager.getTransaction().rollback();
+		if (!committed)
 			return;
-		} catch (JAXBException e) {
-			Dialogues.alert(logger, "Could not decode this file because {}", e.getMessage());
+		Session.begin();
+		DBHandler.deleteProject(projectID);
+		Session.commit();
+	}
+
+	private static OutputStream openForWriting(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+		return file.getName().toLowerCase().endsWith(".gz") ? new GZIPOutputStream(out, 65536) : out;
+	}
+
+	private static InputStream openForReading(File file) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+		in.mark(2);
+		boolean gzipped = in.read() == 0x1f && in.read() == 0x8b;
+		in.reset();
+		return gzipped ? new GZIPInputStream(in, 65536) : in;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable == null)
 			return;
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			logger.debug("Could not close a file because {}", e.getMessage());
 		}
 	}
 }
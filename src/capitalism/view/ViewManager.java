@@ -27,6 +27,7 @@ import capitalism.controller.Simulation;
 import capitalism.editor.Editor;
 import capitalism.model.Project;
 import capitalism.model.TimeStamp;
+import capitalism.utils.Metrics;
 import capitalism.view.custom.ActionButtonsBox;
 import capitalism.view.custom.ActionStates;
 import capitalism.view.custom.DisplayControlsBox;
@@ -289,6 +290,7 @@ public class ViewManager {
 	 */
 
 	public static void refreshTimeStampView() {
+		Metrics.Probe probe = Metrics.start("refreshTimeStampView");
 		logger.debug("Refreshing the timeStamp treeview for project {} at period {} and timeStamp {}",
 				Simulation.projectIDCurrent(), Simulation.getPeriodCurrent(), Simulation.timeStampIDCurrent());
 		int periods = Simulation.getPeriodCurrent();
@@ -359,6 +361,7 @@ public class ViewManager {
 			}
 		}
 		trackingControlsBox.getChildren().add(1, timeStampViewer);
+		probe.stop();
 	}
 
 	/**
@@ -369,6 +372,7 @@ public class ViewManager {
 	 * should be self-sufficient but I could not quite get this to work, because of a glitch in javafx.
 	 */
 	public static void refreshDisplay() {
+		Metrics.Probe probe = Metrics.start("refreshDisplay");
 		int currentProject = Simulation.projectIDCurrent();
 		TrackingControlsBox.getProjectCursorLabel().setText("Project " + currentProject);
 		TrackingControlsBox.getTimeStampCursorLabel().setText("Time " + Simulation.timeStampDisplayCursor());
@@ -383,6 +387,7 @@ public class ViewManager {
 		tabbedTableViewer.repopulateTabbedTables();
 		TabbedTableViewer.refreshTables();
 		populateSummaryGrid();
+		probe.stop();
 	}
 
 	/**
@@ -25,25 +25,33 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import capitalism.controller.Simulation;
-import capitalism.model.OneProject;
 import capitalism.reporting.Dialogues;
+import capitalism.reporting.Reporter;
+import capitalism.utils.BinaryStuff;
+import capitalism.utils.CSVExport;
 import capitalism.utils.DBHandler;
-import capitalism.utils.XMLStuff;
 import capitalism.view.custom.ImageButton;
+import javafx.application.Platform;
 
 public class DumpCommand implements DisplayCommand{
 	private static final Logger logger = LogManager.getLogger(DumpCommand.class);
 
 	@Override public void execute(ImageButton caller) {
 		logger.debug("User saved the current project");
-		OneProject oneProject= new OneProject();
-		oneProject.wrap(Simulation.projectIDcurrent());
 		File file=Dialogues.saveFileChooser("Where should this project be saved?");
 		if (file == null) return;
 		logger.debug("Saving new project to {}", file.getAbsolutePath());
-		XMLStuff.exportToXML(oneProject,file);
+		BinaryStuff.exportProject(Simulation.projectIDcurrent(), file);
 		File saveDirectory = Dialogues.directoryChooser("Temporary CSV dump directory");
-		DBHandler.saveCSVDataBase(saveDirectory);//temporary belt and braces check
+		DBHandler.saveCSVDataBase(saveDirectory, new CSVExport.Listener() {//temporary belt and braces check
+			@Override public void tableFinished(String table, boolean succeeded, int finished, int total) {
+				Platform.runLater(() -> Reporter.report(logger, 2, "%s %s (%d of %d)", succeeded ? "Saved" : "Could not save", table, finished, total));
+			}
+
+			@Override public void exportFinished(boolean completed) {
+				Platform.runLater(() -> Reporter.report(logger, 1, completed ? "The CSV dump is complete" : "The CSV dump did not complete"));
+			}
+		});
 	}
 
 }
@@ -134,7 +134,7 @@ public class ActionButtonsBox extends VBox {
 		actionStatesFromLabel.put(actionState.text(), actionState);
 		item.setGraphic(button);
 		button.setOnAction((event) -> {
-			actionState.getCommand().execute();
+			actionState.execute();
 			lastAction = actionState;
 			enableButtons();
 			ViewManager.refreshTimeStampView();
@@ -14,6 +14,8 @@ import capitalism.controller.command.Prices;
 import capitalism.controller.command.Produce;
 import capitalism.controller.command.Revenue;
 import capitalism.controller.command.Trade;
+import capitalism.reporting.Reporter;
+import capitalism.utils.Metrics;
 import javafx.scene.control.Button;
 import javafx.scene.control.TreeItem;
 
@@ -159,6 +161,11 @@ public enum ActionStates {
 	 */
 	protected ArrayList<ActionStates> children = new ArrayList<ActionStates>();
 
+	/**
+	 * the action whose command is executing, or null if none is
+	 */
+	private static ActionStates running = null;
+
 	/**
 	 * at last, the constructor
 	 * 
@@ -219,6 +226,42 @@ public enum ActionStates {
 		return command;
 	}
 
+	/**
+	 * Execute the command of this action, measured by {@link Metrics} as a section named after the command. While it runs, this action
+	 * is the phase that the {@link Reporter} charges reports to; afterwards the phase goes back to whatever was running before, which is
+	 * the superAction if this action is one of its steps, and otherwise nothing
+	 */
+	public void execute() {
+		ActionStates previous = running;
+		enterPhase(this);
+		Metrics.Probe probe = Metrics.start(commandName());
+		try {
+			command.execute();
+		} finally {
+			probe.stop();
+			enterPhase(previous);
+		}
+	}
+
+	/**
+	 * @param actionState
+	 *            the action that is now running, or null if none is
+	 */
+	private static void enterPhase(ActionStates actionState) {
+		running = actionState;
+		if (actionState == null)
+			Reporter.setPhase(null, null);
+		else
+			Reporter.setPhase(actionState.text, actionState.superAction == null ? null : actionState.superAction.text);
+	}
+
+	/**
+	 * @return the name of the class of the command, such as Demand or IndustriesProduce
+	 */
+	public String commandName() {
+		return command.getClass().getSimpleName();
+	}
+
 	/**
 	 * @return the button
 	 */
@@ -233,6 +276,13 @@ public enum ActionStates {
 	public void setButton(Button button) {
 		this.button = button;
 	}
+	/**
+	 * @return the first state at the start of the period
+	 */
+	public static ActionStates firstState() {
+		return M_C_Demand;
+	}
+
 	/** 
 	 * @return the last state at the end of the period
 	 */
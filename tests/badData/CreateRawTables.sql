@@ -1,22 +1,22 @@
  DROP table if exists socialClasses;
- CREATE TABLE socialclasses ( project INT DEFAULT 1 NOT NULL, timeStamp VARCHAR (10) DEFAULT '1' NOT NULL, SocialClassName VARCHAR(45) DEFAULT NULL, 
+ CREATE TABLE socialclasses ( project INT DEFAULT 1 NOT NULL, timeStamp INT DEFAULT 1 NOT NULL, SocialClassName VARCHAR(45) DEFAULT NULL, 
  Size DOUBLE DEFAULT NULL, participationRatio double DEFAULT 1, revenue double DEFAULT 0, primary key (project, timeStamp, SocialClassName)) ENGINE=INNODB DEFAULT CHARSET=UTF8;
  
  DROP table if exists industries;
- CREATE TABLE industries ( project int default 1 not null, timeStamp VARCHAR (10) DEFAULT '1' not null, industryName Varchar(45)not null, 
+ CREATE TABLE industries ( project int default 1 not null, timeStamp INT DEFAULT 1 not null, industryName Varchar(45)not null, 
  commodityName VARCHAR(45) default null,output double DEFAULT 0, proposedOutput double DEFAULT 0, GrowthRate double DEFAULT 0,
  InitialCapital double DEFAULT 0, persistedProfit double default 0,productiveCapital double default  0,
  primary key (project, timeStamp, industryName) ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
  
  DROP table if exists stocks;
- CREATE TABLE stocks ( project int default 1 not null, timeStamp VARCHAR (10) DEFAULT '1' not null, OWNER varchar(45) not NULL, OWNERTYPE ENUM('CLASS','INDUSTRY') DEFAULT NULL, 
+ CREATE TABLE stocks ( project int default 1 not null, timeStamp INT DEFAULT 1 not null, OWNER varchar(45) not NULL, OWNERTYPE ENUM('CLASS','INDUSTRY') DEFAULT NULL, 
  commodity varchar(45) not NULL, stockType varchar(45) DEFAULT NULL, quantity double DEFAULT 0, value double DEFAULT 0, PRICE double DEFAULT 0, 
  productionCoefficient double DEFAULT 0, productionQuantity double default 0, consumptionCoefficient double DEFAULT 0, consumptionQuantity double default 0,
  stockUsedUp double DEFAULT 0,replenishmentDemand double DEFAULT 0, expansionDemand double DEFAULT 0, 
  primary key (project, timeStamp, owner, commodity, stocktype) ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
  
  DROP table if exists commodities;
- CREATE TABLE commodities ( project int default 1 not null, timeStamp VARCHAR (10) DEFAULT '1' not null, name varchar(45) not NULL,
+ CREATE TABLE commodities ( project int default 1 not null, timeStamp INT DEFAULT 1 not null, name varchar(45) not NULL,
  originType ENUM('SOCIALLY_PRODUCED','INDUSTRIALLY_PRODUCED','MONEY') DEFAULT NULL, unitValue double DEFAULT NULL, unitPrice double DEFAULT NULL, 
  turnoverTime double DEFAULT NULL, surplusProduct double DEFAULT 0, allocationShare double default null, 
  functionType ENUM('MONEY','PRODUCTIVE_INPUT','CONSUMER_GOOD') DEFAULT null, stockUsedUp double default 0, 
@@ -28,7 +28,8 @@
  DROP table if exists projects;
  CREATE TABLE projects ( ProjectID INT NOT NULL, Description VARCHAR(45) NULL, 
  currentTimeStamp INT DEFAULT 1, currentTimeStampCursor INT DEFAULT 1, currentTimeStampComparatorCursor INT DEFAULT 1,
- period INT DEFAULT 1, ButtonState VARCHAR(20) DEFAULT NULL, PRIMARY KEY (ProjectID));
+ period INT DEFAULT 1, ButtonState VARCHAR(20) DEFAULT NULL, recordingPolicy VARCHAR(20) DEFAULT 'ALL', recordingInterval INT DEFAULT 1,
+ PRIMARY KEY (ProjectID));
  
  DROP table if exists timeStamps;
  CREATE TABLE timeStamps (timeStampID int Default 1 NOT NULL, projectFK INT default 1 NOT NULL, period INT DEFAULT NULL,superState VARCHAR(45) default NULL, 